@@ -0,0 +1,107 @@
+/* Adaptive Replacement Cache (Megiddo and Modha). Items used once are kept in T1 and items used more than once in T2.
+ * Keys evicted from each are remembered without their values in ghost lists B1 and B2. A miss on a key in B1 means T1
+ * was too small, and a miss on a key in B2 means T2 was, so the target size p of T1 moves toward whichever is losing.
+ * Scans only ever fill T1, so they can't push out T2 unless T1 keeps proving it needs the room.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+public class ARCPolicy<KeyType> implements CachePolicy<KeyType>{
+
+	static final int T1 = 0, T2 = 1, B1 = 2, B2 = 3;
+
+	int capacity;
+	double p = 0; // Target size of T1.
+	CacheList<KeyType> t1 = new CacheList<KeyType>(), t2 = new CacheList<KeyType>();
+	CacheList<KeyType> b1 = new CacheList<KeyType>(), b2 = new CacheList<KeyType>();
+	HashMap<KeyType, CacheNode<KeyType>> ghost; // Keys in B1 and B2.
+	CacheNode<KeyType> added; // The last node added, which shouldn't be evicted to make room for itself.
+	boolean added_from_b2; // Whether the last node added was in B2.
+
+	public ARCPolicy(int capacity){
+		this.capacity = capacity;
+		ghost = new HashMap<KeyType, CacheNode<KeyType>>();
+	}
+
+	public CacheNode<KeyType> add(KeyType key){
+		CacheNode<KeyType> n = ghost.remove(key);
+		added_from_b2 = false;
+		if(n == null){
+			n = new CacheNode<KeyType>(key, T1);
+			t1.addFirst(n);
+		} else {
+			// A ghost hit. Grow the side that would have kept it.
+			if(n.list == B1){
+				p = Math.min(capacity, p + Math.max(b2.size / (double)b1.size, 1));
+				b1.remove(n);
+			} else {
+				p = Math.max(0, p - Math.max(b1.size / (double)b2.size, 1));
+				b2.remove(n);
+				added_from_b2 = true;
+			}
+			n.list = T2;
+			t2.addFirst(n);
+		}
+		added = n;
+		return n;
+	}
+
+	public void hit(CacheNode<KeyType> node){
+		if(node.list == T1){
+			t1.remove(node);
+			node.list = T2;
+			t2.addFirst(node);
+		} else {
+			t2.moveToFront(node);
+		}
+	}
+
+	public void miss(KeyType key){
+	}
+
+	public void remove(CacheNode<KeyType> node){
+		(node.list == T1 ? t1 : t2).remove(node);
+		if(node == added){
+			added = null;
+		}
+	}
+
+	public KeyType evict(){
+		// ARC's REPLACE, with the sizes from before the new node was added.
+		int t1size = t1.size - (added != null && added.list == T1 ? 1 : 0);
+		int t2size = t2.size - (added != null && added.list == T2 ? 1 : 0);
+		boolean fromt1 = t1size > 0 && (t1size > p || (added_from_b2 && t1size == p) || t2size == 0);
+		CacheNode<KeyType> n;
+		if(fromt1){
+			n = t1.removeLast();
+			n.list = B1;
+			b1.addFirst(n);
+		} else if(t2size > 0){
+			n = t2.removeLast();
+			n.list = B2;
+			b2.addFirst(n);
+		} else {
+			// Only the new node is left (a cache of size 1), so it goes without becoming a ghost.
+			n = added;
+			remove(n);
+			return n.key;
+		}
+		ghost.put(n.key, n);
+		// Keep T1 + B1 and the whole directory within ARC's bounds.
+		if(t1.size + b1.size > capacity && b1.size > 0){
+			ghost.remove(b1.removeLast().key);
+		}
+		while(t1.size + t2.size + b1.size + b2.size > 2*capacity && b2.size > 0){
+			ghost.remove(b2.removeLast().key);
+		}
+		return n.key;
+	}
+
+	// Which of T1 and T2 loses an item next depends on p, so this just puts the frequently used T2 first.
+	// Ghosts aren't in the cache, so they're left out.
+	public void order(ArrayList<KeyType> keys){
+		t2.addKeys(keys);
+		t1.addKeys(keys);
+	}
+}
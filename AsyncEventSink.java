@@ -0,0 +1,184 @@
+/* An EventSink that prints events from a background thread so node threads never wait on the console.
+ * Events go into a fixed size ring buffer without locking: writers claim a slot by bumping a counter, fill it in, and
+ * then publish it, and the printing thread takes slots in order as they're published.
+ * If the printer falls a whole buffer behind, new events are dropped and counted rather than making nodes wait.
+ * Run main to compare the cost of logging with OFF, this sink, and printing directly.
+ */
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class AsyncEventSink implements EventSink, Runnable{
+
+	int level; // Noisiest level of events taken.
+	PrintStream out;
+
+	// The ring buffer. Event number n goes in slot n & mask.
+	int mask;
+	double time[];
+	int levels[];
+	String node[], event[], detail[];
+	AtomicLongArray published; // Number of the event in each slot + 1 once it's filled in, so the printer knows it can take it.
+	AtomicLong claimed; // Number of events given slots so far.
+	volatile long consumed = 0; // Number of events printed so far. Slots before this can be reused.
+	AtomicLong dropped; // Events dropped because the buffer was full.
+
+	volatile boolean stopped = false;
+	Thread thread;
+
+	// Creates a sink printing events at or below level to out, holding up to capacity (rounded up to a power of 2) waiting events.
+	// Starts its printing thread.
+	public AsyncEventSink(int level, PrintStream out, int capacity){
+		this.level = level;
+		this.out = out;
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		mask = size-1;
+		time = new double[size];
+		levels = new int[size];
+		node = new String[size];
+		event = new String[size];
+		detail = new String[size];
+		published = new AtomicLongArray(size);
+		claimed = new AtomicLong();
+		dropped = new AtomicLong();
+		thread = new Thread(this);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public boolean enabled(int l){
+		return l > NONE && l <= level;
+	}
+
+	public void event(double t, int l, String n, String e, String d){
+		if(!enabled(l)){
+			return;
+		}
+		long ticket;
+		do{
+			ticket = claimed.get();
+			if(ticket - consumed > mask){
+				dropped.incrementAndGet();
+				return;
+			}
+		}while(!claimed.compareAndSet(ticket, ticket+1));
+		int i = (int)ticket & mask;
+		time[i] = t;
+		levels[i] = l;
+		node[i] = n;
+		event[i] = e;
+		detail[i] = d;
+		published.set(i, ticket+1); // A volatile write, so the printer sees everything written before it.
+	}
+
+	// Returns the amount of events dropped because the buffer was full.
+	public long dropped(){
+		return dropped.get();
+	}
+
+	// Prints events as they're published.
+	public void run(){
+		StringBuilder line = new StringBuilder();
+		long next = 0;
+		while(true){
+			int i = (int)next & mask;
+			if(published.get(i) == next+1){
+				line.setLength(0);
+				line.append(String.format("%10.3f ", time[i]));
+				line.append(levels[i] == WARN ? "WARN  " : levels[i] == INFO ? "INFO  " : "DEBUG ");
+				line.append(node[i]).append(' ').append(event[i]);
+				if(detail[i] != null){
+					line.append(' ').append(detail[i]);
+				}
+				out.println(line);
+				// Don't hold on to strings until the slot is reused.
+				node[i] = null;
+				event[i] = null;
+				detail[i] = null;
+				next++;
+				consumed = next;
+			} else if(stopped){
+				break;
+			} else {
+				out.flush();
+				try{Thread.sleep(1); } catch(InterruptedException e){}
+			}
+		}
+		if(dropped.get() > 0){
+			out.println(dropped.get() + " events dropped");
+		}
+		out.flush();
+	}
+
+	// Prints any events already published and stops the printing thread.
+	public void close(){
+		stopped = true;
+		try{thread.join(); } catch(InterruptedException e){}
+	}
+
+	// Compares logging from several threads at once with OFF, with this sink, and by printing directly.
+	// Output goes nowhere, so this is only the cost to the logging threads.
+	public static void main(String args[]) throws Exception{
+		int threads = 8, events = 200000;
+		PrintStream nowhere = new PrintStream(new OutputStream(){
+			public void write(int b){}
+			public void write(byte b[], int off, int len){}
+		});
+		EventSink sinks[] = {EventSink.OFF, new AsyncEventSink(DEBUG, nowhere, 1 << 16), new PrintSink(nowhere)};
+		String name[] = {"off", "async", "println"};
+		for(int s=0;s<sinks.length;s++){
+			long best = Long.MAX_VALUE;
+			for(int run=0;run<3;run++){
+				best = Math.min(best, logFrom(sinks[s], threads, events));
+			}
+			System.out.println(name[s] + ": " + String.format("%.1f", best / (double)events) + " ns per event per thread");
+		}
+		AsyncEventSink async = (AsyncEventSink)sinks[1];
+		async.close();
+		System.out.println("async dropped " + async.dropped() + " of " + 3L*threads*events + " events");
+	}
+
+	// Returns the nanoseconds it takes threads threads to each log events events the way HashNode does.
+	private static long logFrom(final EventSink sink, int threads, final int events) throws Exception{
+		Thread t[] = new Thread[threads];
+		for(int k=0;k<threads;k++){
+			final String address = "ID-" + k;
+			t[k] = new Thread(new Runnable(){
+				public void run(){
+					for(int j=0;j<events;j++){
+						if(sink.enabled(DEBUG)){
+							sink.event(j, DEBUG, address, "request", "from ID-" + j);
+						}
+					}
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for(int k=0;k<threads;k++){
+			t[k].start();
+		}
+		for(int k=0;k<threads;k++){
+			t[k].join();
+		}
+		return System.nanoTime() - start;
+	}
+}
+
+// Prints events directly from the calling thread, the way nodes used to. Only here for comparison.
+class PrintSink implements EventSink{
+	PrintStream out;
+
+	public PrintSink(PrintStream out){
+		this.out = out;
+	}
+
+	public boolean enabled(int level){
+		return true;
+	}
+
+	public void event(double time, int level, String node, String event, String detail){
+		out.println(String.format("%10.3f ", time) + node + " " + event + " " + detail);
+	}
+}
@@ -0,0 +1,48 @@
+/* Runs a benchmark's main in a few fresh JVMs one after another, so each set of results comes from its own JIT
+ * compilation and heap rather than whatever the code measured before left behind. Differences between the forks show
+ * how much of a difference between two versions is just noise.
+ * Benchmarks call run first thing in main and return if it did the runs. Within a fork, the first WARMUP runs of
+ * each measurement are thrown away and the best of the next RUNS is reported (see timed).
+ * This does what a harness like JMH would do for the few benchmarks here without adding a dependency to the build.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+
+public class BenchmarkFork{
+
+	public static final int FORKS = 3;
+	public static final int WARMUP = 3;
+	public static final int RUNS = 5;
+
+	// If this JVM isn't already a fork, runs main of the benchmark with the same arguments in FORKS new JVMs, waits for
+	// them and returns true. Their output goes straight to ours. Returns false in a fork, which should go on to measure.
+	public static boolean run(Class<?> benchmark, String args[]) throws Exception{
+		if(System.getProperty("benchmark.fork") != null){
+			return false;
+		}
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		for(int f=0;f<FORKS;f++){
+			ArrayList<String> command = new ArrayList<String>();
+			command.add(java);
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add("-Dbenchmark.fork=" + f);
+			command.add(benchmark.getName());
+			for(int k=0;k<args.length;k++){
+				command.add(args[k]);
+			}
+			System.out.println("Fork " + (f+1) + " of " + FORKS + ":");
+			int status = new ProcessBuilder(command).inheritIO().start().waitFor();
+			if(status != 0){
+				System.out.println("Fork " + (f+1) + " exited with status " + status);
+			}
+		}
+		return true;
+	}
+
+	// Returns true if run number `run` of a measurement counts, that is it's past the warm up runs.
+	public static boolean timed(int run){
+		return run >= WARMUP;
+	}
+}
@@ -1,15 +1,35 @@
 /* This is a stream for reading and writing at the bit level. It's designed to be used with compressionalgorithms. 
  * If you just want to write standard types use ByteStream.
+ * Bits fill each byte from its lowest bit up, and numbers are written most significant bit first.
+ * Numbers are moved up to 57 bits at a time by reading or writing the 8 bytes they fall in as one little endian long,
+ * so they cost the same as a single bit. See BitStreamBenchmark.
  * Written by Alrecenk 2010.
  */
 
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
 public class BitStream{
+	// A view of a byte array as little endian longs at any byte offset, so bit k of a long is bit k&7 of byte k>>3.
+	static final VarHandle WORD = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+	static final int MAX_WORD_BITS = 57; // Most bits that always fit in one long starting anywhere in a byte.
 
 	public ByteList data = new ByteList();
 	public int readcounter = 0 ;
 	public int writecounter = 0 ;
 
+	public BitStream(){
+	}
+
+	// Makes a stream for reading the given bytes, from bit start on. The array isn't copied.
+	public BitStream(byte b[], int start){
+		data = new ByteList(b);
+		readcounter = start;
+		writecounter = b.length*8;
+	}
+
 	// Reads an integer 0 or 1 for the next bit.
 	private int readBitsimple(){
 		int index = readcounter/8;
@@ -35,14 +55,40 @@ public class BitStream{
 	// Reads the next "bits" bits and converts them to an unsigned int.
 	public int readUnsignedInt(int bits){
 		if(bits>0){
-			int n = readBit() ;
-			for(int k=1;k<bits;k++){
-				n = (n<<1) | readBit();
-			}
-			return n ;
+			return (int)(Long.reverse(take(bits)) >>> (64-bits)) ;
+		}
+		return 0 ;
+
+	}
+
+	// Reads the next "bits" bits (up to 64) as an unsigned long, most significant bit first.
+	public long readBits(int bits){
+		if(bits > MAX_WORD_BITS){
+			long high = readBits(bits-32);
+			return (high << 32) | readBits(32);
+		}
+		if(bits>0){
+			return Long.reverse(take(bits)) >>> (64-bits) ;
 		}
 		return 0 ;
+	}
 
+	// Returns the next n (up to MAX_WORD_BITS) bits with the first one lowest, and moves past them.
+	private long take(int n){
+		int index = readcounter>>>3 ;
+		long word ;
+		if(index+8 <= data.b.length){
+			word = (long)WORD.get(data.b, index) ;
+		}else{
+			// Too near the end of the array for a whole long.
+			word = 0 ;
+			for(int k=0;index+k<data.b.length;k++){
+				word |= (data.b[index+k]&0xffL) << (8*k) ;
+			}
+		}
+		int offset = readcounter&7 ;
+		readcounter += n ;
+		return (word >>> offset) & ((1L<<n)-1) ;
 	}
 
 	// Reads one bit to determine sign (1 is positive, 0 is negative)
@@ -88,9 +134,34 @@ public class BitStream{
 
 	// Writes the least significant "bits" bits of i to the stream as an unsigned int.
 	public void writeUnsignedInt(int i, int bits){
-		for(int k=bits-1;k>=0;k--){
-			writeBit((i>>k)&1);
+		if(bits>0){
+			put(Long.reverse(i&0xffffffffL) >>> (64-bits), bits) ;
+		}
+	}
+
+	// Writes the least significant "bits" bits (up to 64) of l to the stream, most significant bit first.
+	public void writeBits(long l, int bits){
+		if(bits > MAX_WORD_BITS){
+			writeBits(l >>> 32, bits-32);
+			writeBits(l & 0xffffffffL, 32);
+		}else if(bits>0){
+			put(Long.reverse(l) >>> (64-bits), bits) ;
+		}
+	}
+
+	// Writes the low n (up to MAX_WORD_BITS) bits of v with the lowest one first, replacing whatever bits were there.
+	private void put(long v, int n){
+		int index = writecounter>>>3 ;
+		int offset = writecounter&7 ;
+		if(index+8 > data.b.length){
+			data.extendtolength(Math.max(data.b.length*2, index+8));
 		}
+		long mask = ((1L<<n)-1) << offset ;
+		long word = (long)WORD.get(data.b, index) ;
+		WORD.set(data.b, index, (word & ~mask) | ((v << offset) & mask));
+		writecounter += n ;
+		int end = (writecounter+7)>>>3 ;
+		if(end > data.size)data.size = end ;
 	}
 	
 	// Writes one bit to determine sign (1 is positive, 0 is negative)
@@ -104,10 +175,30 @@ public class BitStream{
 	}
 
 	// Appends bits from a BitStream up to that BitStream's write-counter.
+	// Leaves o's read-counter at its write-counter.
 	public void appendBitStream(BitStream o){
 		o.readcounter = 0 ;
-		for(int k=0;k<o.writecounter ;k++){
-			this.writeBit(o.readBit()) ;
+		if((writecounter&7) == 0){
+			// Byte aligned, so the bytes can be copied straight across.
+			int bytes = o.writecounter>>>3 ;
+			int index = writecounter>>>3 ;
+			if(index+bytes+8 > data.b.length){
+				data.extendtolength(Math.max(data.b.length*2, index+bytes+8));
+			}
+			System.arraycopy(o.data.b, 0, data.b, index, bytes);
+			writecounter += bytes*8 ;
+			o.readcounter = bytes*8 ;
+			if(index+bytes > data.size)data.size = index+bytes ;
+		}
+		copyBits(o, this, o.writecounter - o.readcounter);
+	}
+
+	// Moves bits from one stream's read-counter to another's write-counter a word at a time.
+	private static void copyBits(BitStream from, BitStream to, int bits){
+		while(bits > 0){
+			int n = Math.min(bits, MAX_WORD_BITS);
+			to.put(from.take(n), n);
+			bits -= n ;
 		}
 	}
 
@@ -117,20 +208,15 @@ public class BitStream{
 	public BitStream readSubStream(int bits){
 		BitStream s = new BitStream() ;
 		bits = Math.min(bits,writecounter-readcounter) ;
-		for(int k=0;k<bits;k++){
-			s.writeBit(readBit()) ;
-		}
+		copyBits(this, s, bits);
 		return s ;
 	}
 
-	// Reads a file and converts it to a bitstream.
+	// Reads a file and converts it to a bitstream. Use StreamFile for files too big to hold in memory.
 	public static BitStream read(File f){
 		try{
-			FileInputStream d = new FileInputStream(f);
 			BitStream b = new BitStream();
-			b.data = new ByteList(d.available());
-			d.read(b.data.b,0,b.data.b.length) ;
-			b.data.size = b.data.b.length ;			
+			b.data = new ByteList(StreamFile.readAll(f));
 			b.writecounter = b.data.filledsize()*8 ;
 			//System.out.println("Stream Length: " + b.writecounter);
 			return b ;
@@ -144,7 +230,7 @@ public class BitStream{
 	public void write(File f){
 		try{
 			FileOutputStream d = new FileOutputStream(f);
-			d.write(data.b,0,data.filledsize()+1);
+			d.write(data.b,0,(writecounter+7)/8); // Every byte with a bit written in it.
 			d.close();
 		}catch(Exception e){
 			e.printStackTrace() ;
@@ -206,6 +292,8 @@ public class BitStream{
 		System.out.print("bits: " + s.writecounter);
 		System.out.print("\n");
 		System.out.print("bytes: " + s.data.filledsize());
+		System.out.print("\n");
+		System.out.print("file bytes: " + new File("testBitStream.bit").length());
 	}
 }
 
@@ -240,24 +328,16 @@ class ByteList{
 	}
 	public final void set(int k, byte a){
 		b[k] = a ;
-		if(k>size)size=k;
+		if(k>=size)size=k+1;// Size is one past the highest byte set, like a ByteList made from an array.
 	}
 
 	public final void extendtolength(int newlength){
 		if(newlength > b.length){
-			byte b2[] = new byte[newlength];
-			for(int k=0;k<b.length;k++){
-				b2[k] = b[k];
-			}
-			b = b2 ;
+			b = java.util.Arrays.copyOf(b, newlength) ;
 		}
 	}
 
 	public final void doublelength(){
-		byte b2[] = new byte[b.length*2];
-		for(int k=0;k<b.length;k++){
-			b2[k] = b[k];
-		}
-		b = b2 ;
+		b = java.util.Arrays.copyOf(b, Math.max(b.length*2, 8)) ;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,232 @@
+/* Compares BitStream with the version it replaced, which moved every number a bit at a time, on workloads like
+ * BitStream.main and the compression algorithms it's meant for: single bits, fixed width numbers with a flag bit,
+ * variable length codes of 1 to 16 bits like Huffman codes, and appending and splitting streams.
+ * Each workload is written with both and the bytes compared, so this also checks the bit order didn't change.
+ * Each measurement is warmed up and repeated in a few fresh JVMs (see BenchmarkFork).
+ * Run with a bit count as the argument (default 50000000).
+ */
+
+import java.util.Random;
+
+public class BitStreamBenchmark{
+
+	static final String WORKLOADS[] = {"single bits", "8 bit numbers + flag", "1-16 bit codes", "append and split"};
+
+	public static void main(String args[]) throws Exception{
+		if(BenchmarkFork.run(BitStreamBenchmark.class, args)){
+			return;
+		}
+		int bits = args.length > 0 ? Integer.parseInt(args[0]) : 50000000;
+		// The same random values for every run, made up front so they aren't timed.
+		Random rand = new Random(7);
+		int amount = bits / 8;
+		int value[] = new int[amount], width[] = new int[amount];
+		for(int k=0;k<amount;k++){
+			width[k] = 1 + Math.min(15, Integer.numberOfTrailingZeros(rand.nextInt() | 0x8000)); // Short codes are most common.
+			value[k] = rand.nextInt(1 << width[k]);
+		}
+		int wrong = 0;
+		for(int w=0;w<WORKLOADS.length;w++){
+			if(!java.util.Arrays.equals(bytes(write(w, value, width, 100000)), bytes(writeLegacy(w, value, width, 100000)))){
+				wrong++;
+			}
+		}
+		System.out.println("Bit order check: " + (wrong == 0 ? "passed" : wrong + " workloads differ"));
+		for(int w=0;w<WORKLOADS.length;w++){
+			long write[] = new long[2], read[] = new long[2];
+			int written = 0;
+			for(int c=0;c<2;c++){
+				write[c] = read[c] = Long.MAX_VALUE;
+				long check = 0;
+				// Take the best of the runs after the warm up.
+				for(int run=0;run<BenchmarkFork.WARMUP + BenchmarkFork.RUNS;run++){
+					long start = System.nanoTime(), wrote;
+					if(c == 0){
+						Legacy s = writeLegacy(w, value, width, amount);
+						wrote = System.nanoTime() - start;
+						written = s.writecounter;
+						start = System.nanoTime();
+						check += readLegacy(s, w, width, amount);
+					} else {
+						BitStream s = write(w, value, width, amount);
+						wrote = System.nanoTime() - start;
+						written = s.writecounter;
+						start = System.nanoTime();
+						check += read(s, w, width, amount);
+					}
+					if(BenchmarkFork.timed(run)){
+						write[c] = Math.min(write[c], wrote);
+						read[c] = Math.min(read[c], System.nanoTime() - start);
+					}
+				}
+			}
+			System.out.println(WORKLOADS[w] + ": " + written + " bits, legacy " + rate(written, write[0]) + " / " + rate(written, read[0])
+					+ ", BitStream " + rate(written, write[1]) + " / " + rate(written, read[1]) + " million bits/s written / read");
+		}
+	}
+
+	static String rate(long bits, long nanos){
+		return String.format("%.0f", bits * 1000.0 / nanos);
+	}
+
+	// Writes the values for a workload.
+	static BitStream write(int workload, int value[], int width[], int amount){
+		BitStream s = new BitStream();
+		if(workload == 0){
+			for(int k=0;k<amount*8;k++){
+				s.writeBit((value[k>>3] >> (k&7)) & 1);
+			}
+		} else if(workload == 1){
+			for(int k=0;k<amount;k++){
+				s.writeUnsignedInt(value[k] & 0xff, 8);
+				s.writeBit(1);
+			}
+		} else {
+			for(int k=0;k<amount;k++){
+				s.writeUnsignedInt(value[k], width[k]);
+			}
+			if(workload == 3){
+				// Split it into pieces of odd sizes and put them back together.
+				BitStream joined = new BitStream();
+				while(s.readcounter < s.writecounter){
+					joined.appendBitStream(s.readSubStream(1001));
+				}
+				s = joined;
+			}
+		}
+		return s;
+	}
+
+	// Reads back the values for a workload, returning a sum of them so they can't be optimized away.
+	static long read(BitStream s, int workload, int width[], int amount){
+		s.readcounter = 0;
+		long sum = 0;
+		if(workload == 0){
+			for(int k=0;k<amount*8;k++){
+				sum += s.readBit();
+			}
+		} else if(workload == 1){
+			for(int k=0;k<amount;k++){
+				sum += s.readUnsignedInt(8) + s.readBit();
+			}
+		} else {
+			for(int k=0;k<amount;k++){
+				sum += s.readUnsignedInt(width[k]);
+			}
+		}
+		return sum;
+	}
+
+	static Legacy writeLegacy(int workload, int value[], int width[], int amount){
+		Legacy s = new Legacy();
+		if(workload == 0){
+			for(int k=0;k<amount*8;k++){
+				s.writeBit((value[k>>3] >> (k&7)) & 1);
+			}
+		} else if(workload == 1){
+			for(int k=0;k<amount;k++){
+				s.writeUnsignedInt(value[k] & 0xff, 8);
+				s.writeBit(1);
+			}
+		} else {
+			for(int k=0;k<amount;k++){
+				s.writeUnsignedInt(value[k], width[k]);
+			}
+			if(workload == 3){
+				Legacy joined = new Legacy();
+				while(s.readcounter < s.writecounter){
+					joined.appendBitStream(s.readSubStream(1001));
+				}
+				s = joined;
+			}
+		}
+		return s;
+	}
+
+	static long readLegacy(Legacy s, int workload, int width[], int amount){
+		s.readcounter = 0;
+		long sum = 0;
+		if(workload == 0){
+			for(int k=0;k<amount*8;k++){
+				sum += s.readBit();
+			}
+		} else if(workload == 1){
+			for(int k=0;k<amount;k++){
+				sum += s.readUnsignedInt(8) + s.readBit();
+			}
+		} else {
+			for(int k=0;k<amount;k++){
+				sum += s.readUnsignedInt(width[k]);
+			}
+		}
+		return sum;
+	}
+
+	// The bytes holding a stream's written bits.
+	static byte[] bytes(BitStream s){
+		return java.util.Arrays.copyOf(s.data.b, (s.writecounter+7)/8);
+	}
+
+	static byte[] bytes(Legacy s){
+		return java.util.Arrays.copyOf(s.b, (s.writecounter+7)/8);
+	}
+
+	// Just enough of the bit at a time BitStream (and the ByteList under it) from before to time the same workloads.
+	private static class Legacy{
+		byte b[] = new byte[100];
+		int readcounter = 0, writecounter = 0;
+
+		int readBit(){
+			int bit = (b[readcounter>>3]>>(readcounter&7))& 1;
+			readcounter++;
+			return bit;
+		}
+
+		int readUnsignedInt(int bits){
+			if(bits>0){
+				int n = readBit();
+				for(int k=1;k<bits;k++){
+					n = (n<<1) | readBit();
+				}
+				return n;
+			}
+			return 0;
+		}
+
+		void writeBit(int value){
+			int index = writecounter>>3;
+			int bit = writecounter&7;
+			while(index >= b.length){
+				byte b2[] = new byte[b.length*2];
+				for(int k=0;k<b.length;k++){
+					b2[k] = b[k];
+				}
+				b = b2;
+			}
+			b[index] = (byte)(b[index]-(b[index]&(1<<bit)) + (value<<bit));
+			writecounter++;
+		}
+
+		void writeUnsignedInt(int i, int bits){
+			for(int k=bits-1;k>=0;k--){
+				writeBit((i>>k)&1);
+			}
+		}
+
+		void appendBitStream(Legacy o){
+			o.readcounter = 0;
+			for(int k=0;k<o.writecounter;k++){
+				writeBit(o.readBit());
+			}
+		}
+
+		Legacy readSubStream(int bits){
+			Legacy s = new Legacy();
+			bits = Math.min(bits,writecounter-readcounter);
+			for(int k=0;k<bits;k++){
+				s.writeBit(readBit());
+			}
+			return s;
+		}
+	}
+}
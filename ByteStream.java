@@ -1,18 +1,51 @@
 /* A variable length array of bytes with convenient methods for sequentially/randomly reading/writing primitive types and other streams to files and sockets.
+ * Values are big endian (most significant byte first). Multi-byte values are read and written in one step through
+ * VarHandle views of the byte array, and copies use System.arraycopy.
+ * Strings are either an int length and 2 bytes a character (the original format) or, with COMPACT_STRINGS, a varint
+ * length and UTF-8 bytes, optionally with repeats in a message written as a reference to their first appearance.
+ * Messages say which in flag bits of their type byte (see writeType and readType), so both formats can be read.
+ * Methods aren't synchronized, since a stream is only ever used by the one thread building or parsing a message.
+ * Share one between threads only through something that synchronizes, like the network's transmit queue.
+ * view and slice give read-only streams over the same array without copying it, so a router can read a message's
+ * header (see HashNode.requestID and HashNode.key) and pass the rest along untouched.
  * Written by Alrecenk 2010.
  */
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 public class ByteStream{
+	// Views of a byte array as big endian shorts, ints and longs at any byte offset.
+	static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+	static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+	static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
 	public byte data[];
 	public int filledsize = 0 ;//the highest byte index written to so far + 1 (usually the number of bytes written)
+	// Where the stream starts in data. Only views made by slice start past 0, and pointers and positions are still
+	// positions in the whole array.
+	public int start = 0 ;
+	public boolean readonly = false ;// Set on views, which share data with another stream.
 
 	//where to read or write when doing so sequentially
 	public int readpointer=0 ;
 	public int writepointer=0 ;
 
+	// Flags in the top bits of a message's type byte saying how its strings are encoded. Types must fit in TYPE_MASK.
+	public static final int COMPACT_STRINGS = 0x80; // A varint length and UTF-8 bytes, instead of an int length and 2 bytes a character.
+	public static final int INTERNED_STRINGS = 0x40; // With COMPACT_STRINGS, strings repeated in the message refer back to their first appearance.
+	public static final int TYPE_MASK = 0x3F;
+
+	// How strings are read and written. Set by writeType and readType.
+	public boolean compact = false;
+	boolean interned = false;
+	String strings[] = null; // Strings written or read so far in the message when interning, in order.
+	int string_count = 0;
+
 	public ByteStream(int size){
 		data = new byte[size];
 	}
@@ -27,132 +60,195 @@ public class ByteStream{
 		writepointer = filledsize ;
 	}
 
+	// Copies a stream. The copy can be written even if s is a view, and starts at 0 like any other stream.
 	public ByteStream(ByteStream s){
-		data = new byte[s.data.length];
-		for(int k=0;k<data.length;k++){
-			data[k] = s.data[k] ;
+		data = Arrays.copyOfRange(s.data, s.start, s.readonly ? s.filledsize : s.data.length);
+		filledsize = s.filledsize - s.start;
+		readpointer = s.readpointer - s.start ;
+		writepointer = s.writepointer - s.start ;
+		compact = s.compact ;
+	}
+
+	// Returns a read-only stream over the same bytes as this one, with its own read pointer at the start.
+	public ByteStream view(){
+		return view(start, filledsize);
+	}
+
+	// Returns a read-only stream over the next length bytes, sharing this stream's array, and moves past them.
+	// DOES NOT do any bounds checking for speed reasons, so be careful.
+	public ByteStream slice(int length){
+		ByteStream s = view(readpointer, readpointer+length);
+		readpointer += length;
+		return s;
+	}
+
+	// Returns a read-only stream over the bytes from begin up to end.
+	private ByteStream view(int begin, int end){
+		ByteStream s = new ByteStream(data);
+		s.start = begin;
+		s.readpointer = begin;
+		s.filledsize = end;
+		s.writepointer = end;
+		s.readonly = true;
+		s.compact = compact;
+		if(interned){
+			// Strings in the view can refer to ones read before it.
+			s.interned = true;
+			s.strings = strings.clone();
+			s.string_count = string_count;
 		}
-		filledsize = s.filledsize;
-		readpointer = s.readpointer ;
-		writepointer = s.writepointer ;
+		return s;
 	}
 
 	// Creates a ByteStream wrapper for a BitStream assuming the writepointer is at the end of the stream
 	public ByteStream(BitStream s){
 		int size = (int)(s.writecounter+7)/8 ;
 		data = new byte[size] ;
-		for(int k=0;k<data.length;k++){
-			data[k] = s.data.b[k] ;
-		}
+		System.arraycopy(s.data.b, 0, data, 0, size);
 		writepointer = size ;
 		readpointer = 0 ;
 		filledsize = size ;
 	}
 
+	// Streams for building messages, one per thread. See forMessage.
+	private static final ThreadLocal<ByteStream> BUILDER = new ThreadLocal<ByteStream>(){
+		protected ByteStream initialValue(){
+			return new ByteStream(256);
+		}
+	};
+
+	// Returns an empty stream for building a message on this thread. It's the same stream every time, so its array has
+	// usually grown big enough already and building a message allocates nothing but the exact size copy from getBytes.
+	// Take the bytes with getBytes before building another message, and don't keep the stream.
+	public static ByteStream forMessage(){
+		ByteStream s = BUILDER.get();
+		s.reset();
+		return s;
+	}
+
+	// Empties the stream to be written again, keeping its array.
+	public void reset(){
+		readpointer = 0;
+		writepointer = 0;
+		filledsize = 0;
+		setStringFormat(0);
+	}
+
 	// Converts byte stream to a BitStream.
-	public synchronized BitStream converttobits(){
+	public BitStream converttobits(){
 		BitStream s = new BitStream();
-		s.data = new ByteList(data);
-		s.writecounter = filledsize*8 ;
+		s.data = new ByteList(start == 0 ? data : Arrays.copyOfRange(data, start, filledsize));
+		s.writecounter = filledSize()*8 ;
 		s.readcounter = 0 ;
 		return s ;
 	}
 
+	// Makes sure there's room to write length bytes at position wp, growing the data array if there isn't.
+	// Views can't be written, since that would change the stream they share their array with.
+	private void ensureRoom(int wp, int length){
+		if(readonly){
+			throw new java.nio.ReadOnlyBufferException();
+		}
+		if(wp+length>data.length){
+			extendToLength(Math.max(data.length*2, wp+length));
+		}
+	}
+
 	// Read the next byte in the stream.
-	public synchronized byte readByte(){
+	public byte readByte(){
 		byte d = data[readpointer];
 		readpointer++;
 		return d ;
 	}
 	// Write the next byte in the stream.
-	public synchronized void writeByte(byte b){
-		if(writepointer>=data.length){
-			doubleLength();
-		}
+	public void writeByte(byte b){
+		ensureRoom(writepointer, 1);
 		data[writepointer] = b;
 		writepointer++;
 		if(writepointer>filledsize)filledsize=writepointer;//keep track of furthest area written
 	}
 
 	// Read the next two bytes as a signed short.
-	public synchronized short readShort(){
-		short s = (short)(((data[readpointer]&0xff)<<8) | (data[readpointer+1]&0xff)) ;//most significant byte first
+	public short readShort(){
+		short s = (short)SHORT.get(data, readpointer);
 		readpointer+=2;
 		return s ;
 	}
 
 	// Write the given short into the next two bytes.
-	public synchronized void writeShort(short s){
-		if(writepointer+1>=data.length){//make sure there is room to write
-			doubleLength();
-		}
-		data[writepointer] = (byte)((s&0xff00)>>>8) ;//most significant byte first
-		data[writepointer+1] = (byte)(s&0xff) ;
+	public void writeShort(short s){
+		ensureRoom(writepointer, 2);
+		SHORT.set(data, writepointer, s);
 		writepointer+=2;
 		if(writepointer>filledsize)filledsize=writepointer;//keep track of furthest area written
 	}
 
 	// Read the next 4 bytes as a signed int.
-	public synchronized int readInt(){
-		int i = ((data[readpointer]&0xff)<<24) | ((data[readpointer+1]&0xff)<<16) | ((data[readpointer+2]&0xff)<<8)| ((data[readpointer+3]&0xff));//most significant byte first
+	public int readInt(){
+		int i = (int)INT.get(data, readpointer);
 		readpointer+=4;
 		return i ;		
 	}
 
 	// Write the given signed int to the next 4 bytes.
-	public synchronized void writeInt(int i){
-		if(writepointer+3>=data.length){//make sure there is room to write
-			doubleLength();
-		}
-		data[writepointer] = (byte)((i&0xff000000)>>>24) ;//most significant byte first
-		data[writepointer+1] = (byte)((i&0xff0000)>>>16) ;
-		data[writepointer+2] = (byte)((i&0xff00)>>>8) ;
-		data[writepointer+3] = (byte)(i&0xff) ;
+	public void writeInt(int i){
+		ensureRoom(writepointer, 4);
+		INT.set(data, writepointer, i);
 		writepointer+=4;
 		if(writepointer>filledsize)filledsize=writepointer;//keep track of furthest area written
 	}
 
 	// Read the next 8 bytes as a signed long.
-	public synchronized long readLong(){
-
-		long i = (((long)data[readpointer]&0xff)<<56) | 
-				(((long)data[readpointer+1]&0xff)<<48) | 
-				(((long)data[readpointer+2]&0xff)<<40) | 
-				(((long)data[readpointer+3]&0xff)<<32) | 
-				(((long)data[readpointer+4]&0xff)<<24) | 
-				(((long)data[readpointer+5]&0xff)<<16) | 
-				(((long)data[readpointer+6]&0xff)<<8) | 
-				(((long)data[readpointer+7]&0xff))  ;
+	public long readLong(){
+		long i = (long)LONG.get(data, readpointer);
 		readpointer+=8;
 		return i ;		
 	}
 
 	// Write the given signed long to the next 8 bytes.
-	public synchronized void writeLong(long l){
-		if(writepointer+7>=data.length){//make sure there is room to write
-			doubleLength();
-		}
-		data[writepointer] = (byte)((l>>>56)&0xff) ;//most significant byte first
-		data[writepointer+1] = (byte)((l>>>48)&0xff) ;
-		data[writepointer+2] = (byte)((l>>>40)&0xff) ;
-		data[writepointer+3] = (byte)((l>>>32)&0xff) ;
-		data[writepointer+4] = (byte)((l>>>24)&0xff) ;
-		data[writepointer+5] = (byte)((l>>>16)&0xff) ;
-		data[writepointer+6] = (byte)((l>>>8)&0xff) ;
-		data[writepointer+7] = (byte)(l&0xff) ;
+	public void writeLong(long l){
+		ensureRoom(writepointer, 8);
+		LONG.set(data, writepointer, l);
 		writepointer+=8;
 		if(writepointer>filledsize)filledsize=writepointer;//keep track of furthest area written
 	}
 
 	// Read the next 4 bytes as a float.
-	public synchronized float readFloat(){
+	public float readFloat(){
 		return Float.intBitsToFloat(readInt()) ;
 	}
 
 	// Write the next 4 bytes as a float.
-	public synchronized void writeFloat(float f){
+	public void writeFloat(float f){
 		writeInt(Float.floatToIntBits(f));
 	}
+
+	// Read the next 8 bytes as a double.
+	public double readDouble(){
+		return Double.longBitsToDouble(readLong()) ;
+	}
+
+	// Write the next 8 bytes as a double.
+	public void writeDouble(double d){
+		writeLong(Double.doubleToLongBits(d));
+	}
+
+	// Reads a byte array written by writeBytes.
+	public byte[] readBytes(){
+		int length = readVarInt();
+		byte b[] = Arrays.copyOfRange(data, readpointer, readpointer+length);
+		readpointer += length;
+		return b;
+	}
+
+	// Writes a byte array as a varint length followed by its bytes.
+	public void writeBytes(byte b[]){
+		writeVarInt(b.length);
+		ensureRoom(writepointer, b.length);
+		System.arraycopy(b, 0, data, writepointer, b.length);
+		writepointer += b.length;
+		if(writepointer>filledsize)filledsize=writepointer;//keep track of furthest area written
+	}
 	
 	// Read a byte at a specific location.
 	public final byte readByte(int k){		
@@ -160,88 +256,223 @@ public class ByteStream{
 	}
 
 	// Write a byte at a specific location.
-	public synchronized void writeByte(byte b, int writepointer){
-		if(writepointer>=data.length){
-			doubleLength();
-		}
-		data[writepointer] = b;
-		writepointer++;
-		if(writepointer>filledsize)filledsize=writepointer;//keep track of furthest area written
+	public void writeByte(byte b, int wp){
+		ensureRoom(wp, 1);
+		data[wp] = b;
+		if(wp+1>filledsize)filledsize=wp+1;//keep track of furthest area written
 	}
 
 	// Read a short at a specific location.
-	public short readShort(int readpointer){
-		short s = (short)(((data[readpointer]&0xff)<<8) | (data[readpointer+1]&0xff)) ;//most significant byte first
-		readpointer+=2;
-		return s ;
+	public short readShort(int rp){
+		return (short)SHORT.get(data, rp);
 	}
 
 	// Write a short at a specific location.
-	public synchronized void writeShort(short s, int wp){
-		if(wp+1>=data.length){//make sure there is room to write
-			doubleLength();
-		}
-		data[wp] = (byte)((s&0xff00)>>>8) ;//most significant byte first
-		data[wp+1] = (byte)(s&0xff) ;
-		if(wp>filledsize)filledsize=wp;//keep track of furthest area written
+	public void writeShort(short s, int wp){
+		ensureRoom(wp, 2);
+		SHORT.set(data, wp, s);
+		if(wp+2>filledsize)filledsize=wp+2;//keep track of furthest area written
 	}
 
 	// Read an int at a specific location.
 	public int readInt(int rp){
-		int i = ((data[rp]&0xff)<<24) | ((data[rp+1]&0xff)<<16) | ((data[rp+2]&0xff)<<8)| ((data[rp+3]&0xff));//most significant byte first
-		//readpointer+=4;
-		return i ;		
+		return (int)INT.get(data, rp);
 	}
 
 	// Write an int at a specific location.
-	public synchronized void writeInt(int i, int wp){
-		if(wp+3>=data.length){//make sure there is room to write
-			doubleLength();
-		}
-		data[wp] = (byte)((i&0xff000000)>>>24) ;//most significant byte first
-		data[wp+1] = (byte)((i&0xff0000)>>>16) ;
-		data[wp+2] = (byte)((i&0xff00)>>>8) ;
-		data[wp+3] = (byte)(i&0xff) ;
+	public void writeInt(int i, int wp){
+		ensureRoom(wp, 4);
+		INT.set(data, wp, i);
 		if(wp+4>filledsize)filledsize=wp+4;//keep track of furthest area written
 	}
 
 	// Read a float at a specific location.
-	public synchronized float readFloat(int rp){
+	public float readFloat(int rp){
 		return Float.intBitsToFloat(readInt(rp)) ;
 	}
 
 	// Write a float at a specific location.
-	public synchronized void writeFloat(float f, int wp){
+	public void writeFloat(float f, int wp){
 		writeInt(Float.floatToIntBits(f),wp);
 	}
 
+	// Writes a message type byte with the given flags, and sets how strings are written from here on to match.
+	public void writeType(int type, int flags){
+		writeByte((byte)(type | flags));
+		setStringFormat(flags);
+	}
+
+	// Reads a message type byte written by writeType, returning the type without flags.
+	// Sets how strings are read from here on to match.
+	public byte readType(){
+		int b = readByte();
+		setStringFormat(b & ~TYPE_MASK);
+		return (byte)(b & TYPE_MASK);
+	}
+
+	// Returns the type of a message from writeType without reading the rest.
+	public static byte type(byte message[]){
+		return (byte)(message[0] & TYPE_MASK);
+	}
+
+	// Sets how strings are read and written from the type flags. Interning only applies to compact strings.
+	public void setStringFormat(int flags){
+		compact = (flags & COMPACT_STRINGS) != 0;
+		interned = compact && (flags & INTERNED_STRINGS) != 0;
+		if(interned && strings == null){
+			strings = new String[16];
+		}
+		// Clears the table rather than dropping it, so a pooled stream doesn't allocate a new one for every message.
+		for(int k=0;k<string_count;k++){
+			strings[k] = null;
+		}
+		string_count = 0;
+	}
+
+	// Adds a string to the table of strings in the message when interning.
+	private void addString(String s){
+		if(string_count == strings.length){
+			strings = Arrays.copyOf(strings, strings.length*2);
+		}
+		strings[string_count++] = s;
+	}
+
+	// Writes an unsigned int 7 bits to a byte, low bits first, with the top bit set on every byte but the last.
+	public void writeVarInt(int v){
+		ensureRoom(writepointer, 5);
+		int wp = writepointer;
+		while((v & ~0x7F) != 0){
+			data[wp++] = (byte)((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		data[wp++] = (byte)v;
+		writepointer = wp;
+		if(writepointer>filledsize)filledsize=writepointer;//keep track of furthest area written
+	}
+
+	// Reads an int written by writeVarInt.
+	public int readVarInt(){
+		int v = 0, shift = 0;
+		byte b;
+		do{
+			b = data[readpointer++];
+			v |= (b & 0x7F) << shift;
+			shift += 7;
+		}while(b < 0);
+		return v;
+	}
+
 	// Reads a string. Strings written as null will return as "".
-	public synchronized String readString(){
+	public String readString(){
+		if(compact){
+			return readCompactString();
+		}
 		int length = readInt();
 		char c[] = new char[length];
 		for(int k=0;k<c.length;k++){
-			c[k] = (char) readShort();
+			c[k] = (char)(short)SHORT.get(data, readpointer+2*k);
 		}
+		readpointer+=2*length;
 		return new String(c);
 	}
 
-	// Writes a string.
-	public synchronized void writeString(String s){
+	// Moves past a string without decoding it.
+	public void skipString(){
+		if(!compact){
+			readpointer += 4 + 2*readInt();
+			return;
+		}
+		int length = readVarInt();
+		if(interned){
+			if((length & 1) != 0){
+				return;
+			}
+			length >>>= 1;
+			// Later references need its index, so it still goes in the table.
+			addString(new String(data, readpointer, length, StandardCharsets.UTF_8));
+		}
+		readpointer += length;
+	}
+
+	// Writes a string, as its length followed by each of its characters as 2 bytes unless compact is set.
+	public void writeString(String s){
+		if(compact){
+			writeCompactString(s == null ? "" : s);
+			return;
+		}
 		if(s == null){
 			writeInt(0);
 			return;
 		}
 		int length = s.length();
-		writeInt(length);
-		char c[] = s.toCharArray(); ;
-		for(int k=0;k<c.length;k++){
-			writeShort((short)c[k]);
+		ensureRoom(writepointer, 4+2*length);
+		INT.set(data, writepointer, length);
+		int wp = writepointer+4;
+		for(int k=0;k<length;k++){
+			SHORT.set(data, wp+2*k, (short)s.charAt(k));
+		}
+		writepointer = wp+2*length;
+		if(writepointer>filledsize)filledsize=writepointer;//keep track of furthest area written
+	}
+
+	// Writes a string as a varint byte count and UTF-8 bytes. When interning, the count is shifted left one and a string
+	// already in the message is written as its index shifted left one with the low bit set instead.
+	private void writeCompactString(String s){
+		int shift = 0;
+		if(interned){
+			// Messages that intern hold a short list of peers, so a scan is cheaper than hashing.
+			for(int k=0;k<string_count;k++){
+				if(strings[k].equals(s)){
+					writeVarInt((k << 1) | 1);
+					return;
+				}
+			}
+			addString(s);
+			shift = 1;
 		}
+		int length = s.length();
+		int k = 0;
+		while(k < length && s.charAt(k) < 0x80){
+			k++;
+		}
+		if(k == length){
+			// ASCII, which keys and addresses nearly always are, is one byte a character.
+			writeVarInt(length << shift);
+			ensureRoom(writepointer, length);
+			for(k=0;k<length;k++){
+				data[writepointer+k] = (byte)s.charAt(k);
+			}
+			writepointer += length;
+		} else {
+			byte b[] = s.getBytes(StandardCharsets.UTF_8);
+			writeVarInt(b.length << shift);
+			ensureRoom(writepointer, b.length);
+			System.arraycopy(b, 0, data, writepointer, b.length);
+			writepointer += b.length;
+		}
+		if(writepointer>filledsize)filledsize=writepointer;//keep track of furthest area written
+	}
+
+	// Reads a string written by writeCompactString.
+	private String readCompactString(){
+		int length = readVarInt();
+		if(interned){
+			if((length & 1) != 0){
+				return strings[length >>> 1];
+			}
+			length >>>= 1;
+		}
+		String s = new String(data, readpointer, length, StandardCharsets.UTF_8); // Copies ASCII straight across.
+		readpointer += length;
+		if(interned){
+			addString(s);
+		}
+		return s;
 	}
 
 	// Returns the current filled size of the data for this stream.
 	public final int filledSize(){
-		return filledsize ;
+		return filledsize - start ;
 	}
 
 	// Return the total array data allocated for this stream.
@@ -250,79 +481,51 @@ public class ByteStream{
 	}
 
 	// Extend length of data array to the given length(must be longer than current length).
-	public synchronized void extendToLength(int newlength){
+	public void extendToLength(int newlength){
 		if(newlength > data.length){
-			byte b2[] = new byte[newlength];
-			for(int k=0;k<data.length;k++){
-				b2[k] = data[k];
-			}
-			data = b2 ;
+			data = Arrays.copyOf(data, newlength);
 		}
 	}
 
 	// Double length of data array.
-	public synchronized void doubleLength(){
-		byte b2[] = new byte[data.length*2];
-		for(int k=0;k<data.length;k++){
-			b2[k] = data[k];
-		}
-		data = b2 ;
+	public void doubleLength(){
+		data = Arrays.copyOf(data, Math.max(data.length*2, 1));
 	}
 
 	// Cuts the length of the ByteStream to just long enough to hold the things that have already been written.
-	public synchronized void clearExtraSpace(){
-		byte b2[] = new byte[filledsize];
-		for(int k=0;k<b2.length;k++){
-			b2[k] = data[k];
-		}
-		data = b2 ;
+	public void clearExtraSpace(){
+		ensureRoom(0, 0);
+		data = Arrays.copyOf(data, filledsize);
 	}
 	
 	// Return all of the bytes that have been written.
-	public synchronized byte[] getBytes(){
-		byte b2[] = new byte[filledsize];
-		for(int k=0;k<b2.length;k++){
-			b2[k] = data[k];
-		}
-		return b2;
+	public byte[] getBytes(){
+		return Arrays.copyOfRange(data, start, filledsize);
 	}
 
 	// Appends a ByteStream onto the end of this one.
-	public synchronized void append(ByteStream bs){
-		byte d2[] = new byte[filledsize+bs.filledsize];
-		for(int k=0;k<filledsize;k++){
-			d2[k] = data[k];
-		}
-		for(int k=0;k<bs.filledsize;k++){
-			d2[k+filledsize] = bs.data[k] ;
-		}
-		data = d2 ;
-		filledsize += bs.filledsize ;
+	public void append(ByteStream bs){
+		int length = bs.filledSize();
+		ensureRoom(filledsize, length);
+		System.arraycopy(bs.data, bs.start, data, filledsize, length);
+		filledsize += length ;
 		writepointer = filledsize ;
 	}
 
 	// Reads a subset of this stream into another stream
 	// starting at readpointer and reading length.
+	// The new stream has its own copy of the bytes and can be written. Use slice to read them without copying.
 	// DOES NOT do any bounds checking for speed reasons, so be careful.
-	public synchronized ByteStream readstream(int length){
-		byte data2[] = new byte[length];
-		for(int k=0;k<data2.length;k++){
-			data2[k] = data[readpointer+k];
-		}
+	public ByteStream readstream(int length){
+		ByteStream s = new ByteStream(Arrays.copyOfRange(data, readpointer, readpointer+length));
 		readpointer+=length ;
-		return new ByteStream(data2) ;
+		return s ;
 	}
 
-	// Reads a file into a ByteStream.
+	// Reads a file into a ByteStream. Use StreamFile for files too big to hold in memory.
 	public static ByteStream read(File f){
 		try{
-			FileInputStream d = new FileInputStream(f);
-			ByteStream b = new ByteStream(d.available());
-			d.read(b.data,0,b.data.length) ;
-			b.filledsize = b.data.length ;
-			b.writepointer = b.filledsize ;
-
-			return b ;
+			return new ByteStream(StreamFile.readAll(f)) ;
 		}catch(Exception e){
 			System.err.println("Failed to read ByteStream from file: " + e ) ;
 			e.printStackTrace() ;
@@ -334,7 +537,7 @@ public class ByteStream{
 	public void write(File f){
 		try{
 			FileOutputStream d = new FileOutputStream(f);
-			d.write(data,0,filledsize);
+			d.write(data,start,filledSize());
 			d.close();
 		}catch(Exception e){
 			System.err.println("Failed to write ByteStream to file: " + e ) ;
@@ -353,6 +556,7 @@ public class ByteStream{
 		stream.writeInt(17926549);
 		stream.writeInt(-7926549);
 		stream.writeFloat(0.8765f);
+		stream.writeLong(-1234567890123456789L);
 		System.out.println(stream.readByte());
 		System.out.println(stream.readByte());
 		System.out.println(stream.readShort());
@@ -361,5 +565,48 @@ public class ByteStream{
 		System.out.println(stream.readInt());
 		System.out.println(stream.readInt());
 		System.out.println(stream.readFloat());
+		System.out.println(stream.readLong());
+
+		// The same strings with each string format.
+		String strings[] = {"Hello world!", "", null, "\u00e9t\u00e9 \u20ac \ud83d\ude00", "Hello world!"};
+		int flags[] = {0, COMPACT_STRINGS, COMPACT_STRINGS | INTERNED_STRINGS};
+		for(int f=0;f<flags.length;f++){
+			ByteStream s = new ByteStream();
+			s.writeType(5, flags[f]);
+			for(int k=0;k<strings.length;k++){
+				s.writeString(strings[k]);
+			}
+			s.writeVarInt(300);
+			ByteStream r = new ByteStream(s.getBytes());
+			boolean same = r.readType() == 5;
+			for(int k=0;k<strings.length;k++){
+				same &= r.readString().equals(strings[k] == null ? "" : strings[k]);
+			}
+			same &= r.readVarInt() == 300;
+			System.out.println("String flags " + flags[f] + ": " + s.filledSize() + " bytes, " + (same ? "read back correctly" : "READ BACK WRONG"));
+		}
+
+		// Views share the array, read on their own, and can't be written.
+		ByteStream whole = new ByteStream();
+		whole.writeType(5, COMPACT_STRINGS | INTERNED_STRINGS);
+		whole.writeString("skipped");
+		whole.writeString("skipped");
+		whole.writeInt(42);
+		whole.writeString("inside");
+		whole.writeInt(7);
+		ByteStream r = whole.view();
+		r.readType();
+		r.skipString();
+		r.skipString();
+		r.readInt();
+		ByteStream inner = r.slice(7);
+		boolean right = inner.data == whole.data && inner.readString().equals("inside") && inner.filledSize() == 7
+				&& r.readInt() == 7 && new ByteStream(inner).getBytes().length == 7;
+		try{
+			inner.writeInt(1);
+			right = false;
+		}catch(java.nio.ReadOnlyBufferException e){
+		}
+		System.out.println("Views and slices: " + (right ? "passed" : "FAILED"));
 	}
 }
\ No newline at end of file
@@ -0,0 +1,267 @@
+/* Compares ByteStream with the version it replaced, which synchronized every method and moved every value a byte at
+ * a time, on encoding and decoding messages shaped like HashNode responses and peer lists.
+ * Each message is encoded with both and the bytes compared, so this also checks the original wire format didn't change.
+ * ByteStream is also timed with compact strings, with and without interning, along with the size of each encoding.
+ * Then it measures the bytes allocated building messages with HashNode, which builds them in pooled streams.
+ * Last it compares decoding a whole store request with reading only its key (HashNode.key) like a router does.
+ * Each measurement is warmed up and repeated in a few fresh JVMs (see BenchmarkFork).
+ * Run with a message count as the argument (default 1000000).
+ */
+
+public class ByteStreamBenchmark{
+
+	public static void main(String args[]) throws Exception{
+		if(BenchmarkFork.run(ByteStreamBenchmark.class, args)){
+			return;
+		}
+		int amount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		String key[] = new String[1000], value[] = new String[1000];
+		java.util.Random rand = new java.util.Random(5);
+		for(int k=0;k<key.length;k++){
+			key[k] = "key" + rand.nextInt(100000);
+			value[k] = Long.toHexString(rand.nextLong()) + Long.toHexString(rand.nextLong()) + " value " + k;
+		}
+		// Check both give the same bytes and read them back the same.
+		int wrong = 0;
+		for(int k=0;k<key.length;k++){
+			byte a[] = encode(new ByteStream(), 0, k, key[k], value[k]), b[] = encodeLegacy(new Legacy(), k, key[k], value[k]);
+			if(!java.util.Arrays.equals(a, b) || decode(b) != decodeLegacy(a)){
+				wrong++;
+			}
+		}
+		System.out.println("Wire format check: " + (wrong == 0 ? "passed" : wrong + " mismatches"));
+
+		String name[] = {"legacy:                    ", "ByteStream:                ", "compact strings:           ", "compact, interned strings: "};
+		int flags[] = {0, 0, ByteStream.COMPACT_STRINGS, ByteStream.COMPACT_STRINGS | ByteStream.INTERNED_STRINGS};
+		for(int c=0;c<name.length;c++){
+			byte encoded[][] = new byte[key.length][];
+			long size = 0;
+			for(int k=0;k<key.length;k++){
+				encoded[k] = encode(new ByteStream(), flags[c], k, key[k], value[k]);
+				size += encoded[k].length;
+			}
+			long encode = Long.MAX_VALUE, decode = Long.MAX_VALUE;
+			long check = 0;
+			// Take the best of the runs after the warm up.
+			for(int run=0;run<BenchmarkFork.WARMUP + BenchmarkFork.RUNS;run++){
+				long start = System.nanoTime();
+				for(int k=0;k<amount;k++){
+					int i = k % key.length;
+					check += c == 0 ? encodeLegacy(new Legacy(), k, key[i], value[i]).length : encode(new ByteStream(), flags[c], k, key[i], value[i]).length;
+				}
+				if(BenchmarkFork.timed(run)){
+					encode = Math.min(encode, System.nanoTime() - start);
+				}
+				start = System.nanoTime();
+				for(int k=0;k<amount;k++){
+					check += c == 0 ? decodeLegacy(encoded[k % key.length]) : decode(encoded[k % key.length]);
+				}
+				if(BenchmarkFork.timed(run)){
+					decode = Math.min(decode, System.nanoTime() - start);
+				}
+			}
+			System.out.println(name[c] + String.format("%.1f", size / (double)key.length) + " bytes/message, "
+					+ String.format("%.1f", encode / (double)amount) + " ns/message to encode, "
+					+ String.format("%.1f", decode / (double)amount) + " ns/message to decode (" + check + ")");
+		}
+
+		Peer peer[] = new Peer[8];
+		for(int k=0;k<peer.length;k++){
+			peer[k] = new Peer("ID-" + (k/2), k / 8f); // 4 nodes with 2 positions each.
+		}
+		long allocated = 0, size = 0;
+		// Only the last run counts, after the pools and the JIT have warmed up.
+		for(int run=0;run<BenchmarkFork.WARMUP + 1;run++){
+			allocated = PlacementBenchmark.allocatedBytes();
+			size = 0;
+			for(int k=0;k<amount;k++){
+				int i = k % key.length;
+				size += HashNode.makeResponse(k, key[i], value[i]).length + HashNode.makePeerResponse(0.5f, peer, k).length;
+			}
+			allocated = PlacementBenchmark.allocatedBytes() - allocated;
+		}
+		System.out.println("HashNode responses and peer responses: " + String.format("%.1f", size / (2.0*amount)) + " bytes/message, "
+				+ (allocated < 0 ? "?" : String.format("%.1f", allocated / (2.0*amount))) + " bytes allocated/message");
+
+		String big = "";
+		for(int k=0;k<64;k++){
+			big += value[k];
+		}
+		byte store[] = HashNode.makeStoreRequest(key[0], big);
+		long whole = Long.MAX_VALUE, header = Long.MAX_VALUE;
+		long check = 0;
+		for(int run=0;run<BenchmarkFork.WARMUP + BenchmarkFork.RUNS;run++){
+			long start = System.nanoTime();
+			for(int k=0;k<amount;k++){
+				ByteStream stream = new ByteStream(store);
+				stream.readType();
+				check += stream.readString().length() + stream.readString().length();
+			}
+			if(BenchmarkFork.timed(run)){
+				whole = Math.min(whole, System.nanoTime() - start);
+			}
+			start = System.nanoTime();
+			for(int k=0;k<amount;k++){
+				check += HashNode.key(store).length();
+			}
+			if(BenchmarkFork.timed(run)){
+				header = Math.min(header, System.nanoTime() - start);
+			}
+		}
+		System.out.println(store.length + " byte store request: " + String.format("%.1f", whole / (double)amount) + " ns to decode, "
+				+ String.format("%.1f", header / (double)amount) + " ns to read the key (" + check + ")");
+	}
+
+	// A response followed by a short peer list, like HashNode.makeResponse and makePeerResponse write.
+	// The peer list is one node with 4 positions, so interning has an address to save.
+	static byte[] encode(ByteStream stream, int flags, int id, String key, String value){
+		stream.writeType(HashNode.RESPONSE, flags);
+		stream.writeInt(id);
+		stream.writeString(key);
+		stream.writeString(value);
+		stream.writeShort((short)4);
+		for(int k=0;k<4;k++){
+			stream.writeString("ID-" + id);
+			stream.writeFloat(k * 0.25f);
+		}
+		return stream.getBytes();
+	}
+
+	// Reads a message from encode, returning a checksum of what was read so it can't be optimized away.
+	static int decode(byte message[]){
+		ByteStream stream = new ByteStream(message);
+		int sum = stream.readType() + stream.readInt();
+		sum += stream.readString().length() + stream.readString().length();
+		int peers = stream.readShort();
+		for(int k=0;k<peers;k++){
+			sum += stream.readString().length() + (int)(stream.readFloat()*4);
+		}
+		return sum;
+	}
+
+	static byte[] encodeLegacy(Legacy stream, int id, String key, String value){
+		stream.writeByte(HashNode.RESPONSE);
+		stream.writeInt(id);
+		stream.writeString(key);
+		stream.writeString(value);
+		stream.writeShort((short)4);
+		for(int k=0;k<4;k++){
+			stream.writeString("ID-" + id);
+			stream.writeFloat(k * 0.25f);
+		}
+		return stream.getBytes();
+	}
+
+	static int decodeLegacy(byte message[]){
+		Legacy stream = new Legacy(message);
+		int sum = stream.readByte() + stream.readInt();
+		sum += stream.readString().length() + stream.readString().length();
+		int peers = stream.readShort();
+		for(int k=0;k<peers;k++){
+			sum += stream.readString().length() + (int)(stream.readFloat()*4);
+		}
+		return sum;
+	}
+
+	// Just enough of the synchronized, byte at a time ByteStream from before to time the same messages against it.
+	private static class Legacy{
+		byte data[];
+		int filledsize = 0, readpointer = 0, writepointer = 0;
+
+		Legacy(){
+			data = new byte[100];
+		}
+
+		Legacy(byte c[]){
+			data = c;
+			filledsize = data.length;
+			writepointer = filledsize;
+		}
+
+		synchronized byte readByte(){
+			return data[readpointer++];
+		}
+
+		synchronized void writeByte(byte b){
+			if(writepointer>=data.length){
+				doubleLength();
+			}
+			data[writepointer++] = b;
+			if(writepointer>filledsize)filledsize=writepointer;
+		}
+
+		synchronized short readShort(){
+			short s = (short)(((data[readpointer]&0xff)<<8) | (data[readpointer+1]&0xff));
+			readpointer+=2;
+			return s;
+		}
+
+		synchronized void writeShort(short s){
+			if(writepointer+1>=data.length){
+				doubleLength();
+			}
+			data[writepointer] = (byte)((s&0xff00)>>>8);
+			data[writepointer+1] = (byte)(s&0xff);
+			writepointer+=2;
+			if(writepointer>filledsize)filledsize=writepointer;
+		}
+
+		synchronized int readInt(){
+			int i = ((data[readpointer]&0xff)<<24) | ((data[readpointer+1]&0xff)<<16) | ((data[readpointer+2]&0xff)<<8)| ((data[readpointer+3]&0xff));
+			readpointer+=4;
+			return i;
+		}
+
+		synchronized void writeInt(int i){
+			if(writepointer+3>=data.length){
+				doubleLength();
+			}
+			data[writepointer] = (byte)((i&0xff000000)>>>24);
+			data[writepointer+1] = (byte)((i&0xff0000)>>>16);
+			data[writepointer+2] = (byte)((i&0xff00)>>>8);
+			data[writepointer+3] = (byte)(i&0xff);
+			writepointer+=4;
+			if(writepointer>filledsize)filledsize=writepointer;
+		}
+
+		synchronized float readFloat(){
+			return Float.intBitsToFloat(readInt());
+		}
+
+		synchronized void writeFloat(float f){
+			writeInt(Float.floatToIntBits(f));
+		}
+
+		synchronized String readString(){
+			char c[] = new char[readInt()];
+			for(int k=0;k<c.length;k++){
+				c[k] = (char)readShort();
+			}
+			return new String(c);
+		}
+
+		synchronized void writeString(String s){
+			writeInt(s.length());
+			char c[] = s.toCharArray();
+			for(int k=0;k<c.length;k++){
+				writeShort((short)c[k]);
+			}
+		}
+
+		synchronized void doubleLength(){
+			byte b2[] = new byte[data.length*2];
+			for(int k=0;k<data.length;k++){
+				b2[k] = data[k];
+			}
+			data = b2;
+		}
+
+		synchronized byte[] getBytes(){
+			byte b2[] = new byte[filledsize];
+			for(int k=0;k<b2.length;k++){
+				b2[k] = data[k];
+			}
+			return b2;
+		}
+	}
+}
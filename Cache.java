@@ -1,8 +1,10 @@
 /* This is an efficient implementation of a fixed size cache using Java generics.
- * It uses a least recently used eviction policy implemented via a combination hashtable/linked list data structure.
+ * By default it uses a least recently used eviction policy implemented via a combination hashtable/linked list data structure.
+ * Other eviction policies can be plugged in (see CachePolicy).
  * Written by Alrecenk October 2015 for no particular reason. Feel free to use for whatever.
  */
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Random;
 
@@ -12,7 +14,14 @@ public class Cache<KeyType, RecordType>{
 	public static void main(String args[]){
 		//Initialize integer to String cache with maximum size of 500.
 		Cache<Integer, String> cache = new Cache<Integer, String>(500);
-		int hits = 0, misses = 0;
+		// The loader runs the full operation whenever a key isn't in the cache.
+		final int misses[] = new int[1];
+		Loader<Integer, String> loader = new Loader<Integer, String>(){
+			public String load(Integer key){
+				misses[0]++;
+				return expensiveDeterministicOperation(key);
+			}
+		};
 		for(int k=0;k<100000;k++){
 			// Caches perform well in uneven key distributions.
 			float power = 1 ;
@@ -20,20 +29,23 @@ public class Cache<KeyType, RecordType>{
 				power*=Math.random();
 			}
 			int key = (int)(power*10000); // Keys up to 9999 but more common in lower numbers.
-			// Try to fetch key from cache.
-			String value = cache.get(key);
-			if(value == null){
-				// If it wasn't in the cache then do the full operation and cache it.
-				value = expensiveDeterministicOperation(key);
-				cache.put(key, value);
-				misses++;
-			}else{
-				hits++;
-			}
+			// Fetch key from cache, or do the full operation and cache it if it wasn't there.
+			cache.get(key, loader);
 		}
 		
 		System.out.println(cache); // Print out the keys in the cache
-		System.out.println("Hits:" + hits +"   Misses:" + misses);
+		System.out.println("Hits:" + (100000 - misses[0]) +"   Misses:" + misses[0]);
+
+		// A cache limited to 10000 characters of values, where values expire after a second.
+		Cache<Integer, String> sized = new Cache<Integer, String>(10000, new LRUPolicy<Integer>(), new Weigher<Integer, String>(){
+			public long weight(Integer key, String value){
+				return value.length();
+			}
+		}, REAL_TIME, 1.0);
+		for(int k=0;k<1000;k++){
+			sized.put(k, expensiveDeterministicOperation(k).substring(k % 50));
+		}
+		System.out.println("Weighted cache holds " + sized.size() + " items weighing " + sized.filled);
 	}
 	// An expensive but deterministic operation such as retrieving a file from a remote server.
 	public static String expensiveDeterministicOperation(Integer i){
@@ -46,106 +58,158 @@ public class Cache<KeyType, RecordType>{
 	}
 //------------Generic Cache Implementation Begins Here ---------
 	// Hash table to fetch records for keys. 
-	// CacheValue includes record and pointer to queue position.
+	// CacheValue includes record and the eviction policy's node for it.
 	HashMap<KeyType,CacheValue> table; 
-	// Doubly linked queue to keep track of least recently used item.
-	QueueNode head, tail; 
+	// Decides which item to evict when the cache is full.
+	CachePolicy<KeyType> policy;
+	// Weighs each item, or null if every item weighs 1.
+	Weigher<KeyType,RecordType> weigher;
+	// Source of the time used for expiry, and how long items live after being put if not given.
+	Clock clock;
+	double time_to_live;
 
-	// Allowed capacity of cache and how much is already full.
-	int capacity, filled = 0 ;
+	// Allowed capacity of cache and how much is already full, in total weight.
+	long capacity, filled = 0 ;
 
-	public Cache(int size) {  
-		capacity = size;
-		table = new HashMap<KeyType,CacheValue>(2*size); // Double table size reduces hash collisions.
+	// Weighs an item, such as the length of a value in bytes.
+	public interface Weigher<KeyType, RecordType>{
+		public long weight(KeyType k, RecordType r);
 	}
 
-	//Nodes for queue keeping track of item access order.
-	private class QueueNode{
-		QueueNode next ;
-		QueueNode previous ;
-		KeyType key;
+	// Says what time it is for expiring items, in whatever units time to live is given in.
+	// Use REAL_TIME or the time of a simulation, like new Cache.Clock(){ public double now(){ return network.getTime(); } }.
+	public interface Clock{
+		public double now();
+	}
 
-		public QueueNode(KeyType k){
-			key = k ;
+	// Seconds of real time.
+	public static final Clock REAL_TIME = new Clock(){
+		public double now(){
+			return System.nanoTime() * 1e-9;
 		}
+	};
 
-		void removeFromQueue(){
-			if(this==head)head = next;
-			if(this==tail)tail = previous;
-			if(previous!=null)previous.next = next;
-			if(next!=null)next.previous = previous;
-			next = null;
-			previous = null;
-		}
+	// Creates a record for a key that isn't in the cache. See get(key, loader).
+	public interface Loader<KeyType, RecordType>{
+		public RecordType load(KeyType k);
+	}
 
-		void removeFromTable(){
-			table.remove(key);
-		}
+	// Creates a cache that evicts the least recently used item.
+	public Cache(int size) {  
+		this(size, new LRUPolicy<KeyType>());
 	}
-	// Groups a queue node and a record, so they can be fetched from the hash table together.
+
+	// Creates a cache that evicts items according to the given policy, such as new TinyLFUPolicy<KeyType>(size).
+	public Cache(int size, CachePolicy<KeyType> policy) {  
+		this(size, policy, null, REAL_TIME, Double.POSITIVE_INFINITY);
+	}
+
+	// Creates a cache holding items up to a total weight of capacity, where weigher gives the weight of each item (or
+	// null for 1 each). Items expire time_to_live after they're put by clock, unless put with their own time to live.
+	public Cache(long capacity, CachePolicy<KeyType> policy, Weigher<KeyType,RecordType> weigher, Clock clock, double time_to_live) {  
+		this.capacity = capacity;
+		this.policy = policy;
+		this.weigher = weigher;
+		this.clock = clock;
+		this.time_to_live = time_to_live;
+		int size = (int)Math.min(capacity, 1 << 20); // With weights this is only a guess at how many items there will be.
+		table = new HashMap<KeyType,CacheValue>(2*size); // Double table size reduces hash collisions.
+	}
+
+	// Groups a policy node and a record, so they can be fetched from the hash table together.
 	private class CacheValue{
 		public CacheValue(RecordType r){
 			record = r ;
 		}
-		QueueNode node;
+		CacheNode<KeyType> node;
 		RecordType record;
+		long weight;
+		double expires;
 	}
 
 	// Fetch a Record from the cache or null if it is not present.
-	// Keeps track of accesses for future evictions.
+	// Keeps track of accesses for future evictions. Expired items are removed when they're found.
 	public RecordType get(KeyType k){
 		CacheValue c = table.get(k);
-		if(c == null)return null;
-		// If found move to head of queue.
-		QueueNode n = c.node;
-		n.removeFromQueue();
-		n.next = head;
-		if(head!=null)head.previous = n;
-		head = n;
+		// Items put with an infinite time to live (the default) never expire, so the clock isn't needed for them.
+		if(c != null && c.expires != Double.POSITIVE_INFINITY && c.expires <= clock.now()){
+			remove(k);
+			c = null;
+		}
+		if(c == null){
+			policy.miss(k);
+			return null;
+		}
+		policy.hit(c.node);
 		return c.record;
 	}
 
+	// Fetch a Record from the cache, or if it's not present, create it with loader and put it in the cache.
+	// Nothing is cached if loader returns null. ConcurrentCache makes threads missing the same key share one load.
+	public RecordType get(KeyType k, Loader<KeyType,RecordType> loader){
+		RecordType r = get(k);
+		if(r == null){
+			r = loader.load(k);
+			if(r != null){
+				put(k, r);
+			}
+		}
+		return r;
+	}
+
 	// Puts a record in the cache. Replaces record with matching key if found.
-	// If cache is full evicts least recently accessed item.
+	// If cache is full evicts the items chosen by the policy.
 	public void put(KeyType k, RecordType r){
+		put(k, r, time_to_live);
+	}
+
+	// Puts a record in the cache that expires after time_to_live by the cache's clock.
+	public void put(KeyType k, RecordType r, double time_to_live){
+		long weight = weigher == null ? 1 : weigher.weight(k, r);
 		//If item is in the cache just update its value.
-		CacheValue d = table.get(k);
-		if(d!=null){ 
-			d.record = r;
+		CacheValue c = table.get(k);
+		if(c!=null){ 
+			c.record = r;
+			filled += weight - c.weight;
 		}else{
 			// If not in the cache then add it.
-			CacheValue c = new CacheValue(r);
-			QueueNode n = new QueueNode(k);
-			c.node = n;
+			c = new CacheValue(r);
+			c.node = policy.add(k);
 			table.put(k,c);
-			// Put the item at the head of the queue.
-			n.next = head;
-			if(head!=null)head.previous = n;
-			head = n;
-			// First item in queue is also the tail
-			if(tail==null)tail = head; 
-			filled++;
-			//If the cache is full remove the item at the tail of the queue.
-			if(filled > capacity){
-				QueueNode t = tail.previous;
-				tail.removeFromTable();
-				tail.removeFromQueue();
-				tail = t;
-				filled--;
-			}
+			filled += weight;
+		}
+		c.weight = weight;
+		c.expires = time_to_live == Double.POSITIVE_INFINITY ? time_to_live : clock.now() + time_to_live;
+		//If the cache is full remove the items the policy picks.
+		while(filled > capacity){
+			filled -= table.remove(policy.evict()).weight;
 		}
 	}
-	// Prints the keys for the items currently in the cache.
+
+	// Removes the record for a key, returning it or null if it wasn't in the cache.
+	public RecordType remove(KeyType k){
+		CacheValue c = table.remove(k);
+		if(c == null){
+			return null;
+		}
+		policy.remove(c.node);
+		filled -= c.weight;
+		return c.record;
+	}
+
+	// Returns the amount of items in the cache, including any that have expired but haven't been found yet.
+	public int size(){
+		return table.size();
+	}
+
+	// Prints the keys for the items currently in the cache, in the policy's order (most recently used first for LRU).
 	public String toString(){
-		QueueNode node = head;
-		String s = "Keys:" + node.key;
-		while(node != tail){
-			node = node.next;
-			if(node==null){
-				break;
-			}
-			s+=", " + node.key;
+		ArrayList<KeyType> keys = new ArrayList<KeyType>(table.size());
+		policy.order(keys);
+		StringBuilder s = new StringBuilder("Keys:");
+		for(int k=0;k<keys.size();k++){
+			s.append(k > 0 ? ", " : "").append(keys.get(k));
 		}
-		return s ;
+		return s.toString();
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,51 @@
+/* A doubly linked list of CacheNodes from most to least recently used, which policies keep their items in.
+ */
+
+import java.util.ArrayList;
+
+class CacheList<KeyType>{
+	CacheNode<KeyType> head, tail;
+	int size = 0;
+
+	void addFirst(CacheNode<KeyType> n){
+		n.previous = null;
+		n.next = head;
+		if(head != null) head.previous = n;
+		head = n;
+		if(tail == null) tail = n;
+		size++;
+	}
+
+	void remove(CacheNode<KeyType> n){
+		if(n == head) head = n.next;
+		if(n == tail) tail = n.previous;
+		if(n.previous != null) n.previous.next = n.next;
+		if(n.next != null) n.next.previous = n.previous;
+		n.next = null;
+		n.previous = null;
+		size--;
+	}
+
+	void moveToFront(CacheNode<KeyType> n){
+		if(n != head){
+			remove(n);
+			addFirst(n);
+		}
+	}
+
+	// Adds the keys in the list to keys, most recently used first.
+	void addKeys(ArrayList<KeyType> keys){
+		for(CacheNode<KeyType> n = head; n != null; n = n.next){
+			keys.add(n.key);
+		}
+	}
+
+	// Removes and returns the least recently used node, or null if the list is empty.
+	CacheNode<KeyType> removeLast(){
+		CacheNode<KeyType> n = tail;
+		if(n != null){
+			remove(n);
+		}
+		return n;
+	}
+}
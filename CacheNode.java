@@ -0,0 +1,13 @@
+/* A CachePolicy's record of an item in the cache, linked into one of the policy's lists.
+ */
+
+class CacheNode<KeyType>{
+	KeyType key;
+	CacheNode<KeyType> previous, next;
+	int list; // Which of its policy's lists the node is in.
+
+	CacheNode(KeyType key, int list){
+		this.key = key;
+		this.list = list;
+	}
+}
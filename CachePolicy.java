@@ -0,0 +1,32 @@
+/* Decides which item a Cache evicts when it's full. Set one with the Cache(size, policy) constructor.
+ * LRUPolicy evicts the least recently used item, which is what Cache has always done.
+ * SLRUPolicy, ARCPolicy and TinyLFUPolicy also look at how often items are used, so a one off scan of cold keys
+ * doesn't flush out the items that are used all the time. See CacheSimulator for how they compare.
+ * Policies keep their own CacheNode for each item, which the cache stores with the item and hands back,
+ * so they never have to look anything up.
+ */
+
+import java.util.ArrayList;
+
+public interface CachePolicy<KeyType>{
+
+	// A key was added to the cache. Returns the node the policy keeps for it.
+	public CacheNode<KeyType> add(KeyType key);
+
+	// The item with this node was fetched from the cache.
+	public void hit(CacheNode<KeyType> node);
+
+	// A key that isn't in the cache was asked for.
+	public void miss(KeyType key);
+
+	// The item with this node was removed from the cache by something other than evict.
+	public void remove(CacheNode<KeyType> node);
+
+	// Picks an item to evict, forgets it, and returns its key. The cache removes it.
+	// This can be the item that was just added, if the policy decides it isn't worth keeping.
+	public KeyType evict();
+
+	// Adds the keys of the items in the cache to keys, from the one the policy would keep longest to the one it would
+	// evict next (as near as the policy can say without evicting anything). Cache.toString prints them in this order.
+	public void order(ArrayList<KeyType> keys);
+}
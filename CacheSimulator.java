@@ -0,0 +1,110 @@
+/* Replays traces of keys through Caches with each eviction policy and reports their hit ratios.
+ * Traces are the skewed workload from Cache.main, the same workload interrupted by scans of keys that are never used
+ * again (which pushes everything out of an LRU cache), and a loop over slightly more keys than fit (where LRU always misses).
+ * Run with a cache size as the first argument (default 500) and optionally a file of keys, one per line, to replay as well.
+ */
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Random;
+
+public class CacheSimulator{
+
+	static final String POLICIES[] = {"LRU", "SLRU", "ARC", "TinyLFU"};
+
+	public static void main(String args[]) throws Exception{
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		ArrayList<String> names = new ArrayList<String>();
+		ArrayList<Object[]> traces = new ArrayList<Object[]>();
+		names.add("skewed");
+		traces.add(skewed(1000000, 0, 0, 1));
+		names.add("skewed with scans");
+		traces.add(skewed(1000000, 20000, 2*size, 2));
+		names.add("loop");
+		traces.add(loop(1000000, size + size/10));
+		if(args.length > 1){
+			names.add(args[1]);
+			traces.add(file(args[1]));
+		}
+		String header = String.format("%-20s", "trace (" + size + ")");
+		for(int p=0;p<POLICIES.length;p++){
+			header += String.format("%10s", POLICIES[p]);
+		}
+		System.out.println(header);
+		for(int t=0;t<traces.size();t++){
+			String line = String.format("%-20s", names.get(t));
+			for(int p=0;p<POLICIES.length;p++){
+				line += String.format("%9.2f%%", 100 * hitRatio(traces.get(t), size, POLICIES[p]));
+			}
+			System.out.println(line);
+		}
+	}
+
+	// Returns a Cache of the given size using the named policy.
+	static Cache<Object, Object> create(int size, String policy){
+		if(policy.equals("SLRU")){
+			return new Cache<Object, Object>(size, new SLRUPolicy<Object>(size));
+		} else if(policy.equals("ARC")){
+			return new Cache<Object, Object>(size, new ARCPolicy<Object>(size));
+		} else if(policy.equals("TinyLFU")){
+			return new Cache<Object, Object>(size, new TinyLFUPolicy<Object>(size));
+		}
+		return new Cache<Object, Object>(size);
+	}
+
+	// Returns the fraction of gets that hit when trace is replayed through a cache that stores every key it misses.
+	static double hitRatio(Object trace[], int size, String policy){
+		Cache<Object, Object> cache = create(size, policy);
+		int hits = 0;
+		for(int k=0;k<trace.length;k++){
+			if(cache.get(trace[k]) != null){
+				hits++;
+			} else {
+				cache.put(trace[k], trace[k]);
+			}
+		}
+		return hits / (double)trace.length;
+	}
+
+	// The Cache.main workload: keys up to 9999, far more common in lower numbers.
+	// Every period accesses a run of scan_length keys that are never seen again is inserted.
+	static Object[] skewed(int length, int period, int scan_length, int seed){
+		Random rand = new Random(seed);
+		Object trace[] = new Object[length];
+		int scanned = 0;
+		for(int k=0;k<length;k++){
+			if(period > 0 && k % period < scan_length){
+				trace[k] = -1 - scanned++; // Negative keys never repeat and never collide with the skewed ones.
+			} else {
+				double power = 1;
+				for(int j=0;j<5;j++){
+					power *= rand.nextDouble();
+				}
+				trace[k] = (int)(power*10000);
+			}
+		}
+		return trace;
+	}
+
+	// Keys 0 to keys-1 over and over.
+	static Object[] loop(int length, int keys){
+		Object trace[] = new Object[length];
+		for(int k=0;k<length;k++){
+			trace[k] = k % keys;
+		}
+		return trace;
+	}
+
+	// Reads a trace of keys, one per line.
+	static Object[] file(String name) throws Exception{
+		ArrayList<String> keys = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(name));
+		String line;
+		while((line = in.readLine()) != null){
+			keys.add(line.trim());
+		}
+		in.close();
+		return keys.toArray();
+	}
+}
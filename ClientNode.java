@@ -2,8 +2,6 @@
  * Use send(to, message) to send messages from the node
  * and receive() to get any arriving messages (returns null if no arrivals).
  */
-import java.awt.Color;
-import java.awt.Graphics;
 
 public class ClientNode extends Node{
 
@@ -15,19 +13,16 @@ public class ClientNode extends Node{
 
 	// Pull a message off the message_queue or return null if no messages.
 	public Message receive(){
-		if(message_queue.peek() !=null){
-			return message_queue.poll();
-		} else {
-			return null;
-		}
+		return nextMessage();
 	}
 
-	// Override draw method to make clients blue squres.
-	public synchronized void draw(Graphics gr){
-		if(!stopped){
-			gr.setColor(Color.blue);
-			gr.drawRect((int)x-10,(int)y-10,20,20);
-		}
+	// Clients are drawn as blue squares.
+	public int color(){
+		return 0x0000FF;
+	}
+
+	public int shape(){
+		return NetworkView.SQUARE;
 	}
 }
 
@@ -0,0 +1,492 @@
+/* A HashStore that keeps its entries as UTF-8 bytes instead of String objects.
+ * Records (key length, key, value length, value) are appended to one big heap and found through an open addressing
+ * table of heap offsets and key hashes, so an entry costs its bytes plus about 16 bytes of table instead of several objects.
+ * Replaced and removed records are left as garbage in the heap until it's compacted.
+ * The heap is made of regions of up to 1 GB, since a ByteBuffer can't hold more than 2 GB, and offsets are longs, so it
+ * can grow as big as memory (or the spill file) allows. Records never cross from one region into the next.
+ * The heap can be told to spill into a memory mapped file once it outgrows a given size, which moves the bulk of the
+ * data out of the Java heap. The file is scratch space and is overwritten.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+public class CompactStore implements HashStore{
+
+	// Slot markers. Otherwise a slot holds the heap offset of its record + 1.
+	static final long EMPTY = 0, DELETED = -1;
+	// Most slots, the biggest power of 2 an array can have. A table this big keeps filling past 3/4 until it's full.
+	static final int MAX_SLOTS = 1 << 30;
+	// Regions are 1 << REGION_BITS bytes once full.
+	static final int REGION_BITS = 30;
+
+	long slot[]; // Record offset + 1 for each slot, or EMPTY or DELETED.
+	int hash[]; // Hash of the key in each slot, so most mismatches never touch the heap.
+	int count = 0; // Amount of keys stored.
+	int deleted = 0; // Amount of slots marked DELETED.
+
+	ByteBuffer region[]; // The records. Region r holds heap offsets from r << region_bits on. Only the last isn't full size.
+	int regions = 0; // Amount of regions in use.
+	int region_bits; // Size of a full region as a power of 2.
+	long used = 0; // Bytes of the heap written so far, including any left at the end of regions.
+	long garbage = 0; // Bytes of the heap taken up by replaced or removed records.
+
+	File spill; // File to move the heap into or null to always keep it in memory.
+	long spill_size; // Heap size at which it moves into the file.
+	boolean mapped = false; // True once the heap is in the file.
+
+	// Creates a store that is kept entirely in memory.
+	public CompactStore(){
+		this(null, 0);
+	}
+
+	// Creates a store whose heap moves to a memory mapped spill file once it would grow past spill_size bytes.
+	public CompactStore(File spill, long spill_size){
+		this(spill, spill_size, REGION_BITS);
+	}
+
+	// Creates a store with regions of 1 << region_bits bytes. Small regions are only useful for testing.
+	CompactStore(File spill, long spill_size, int region_bits){
+		this.spill = spill;
+		this.spill_size = spill_size;
+		this.region_bits = region_bits;
+		slot = new long[16];
+		hash = new int[16];
+		region = new ByteBuffer[1];
+		region[0] = ByteBuffer.allocate(Math.min(1024, 1 << region_bits));
+		regions = 1;
+	}
+
+	public String get(String key){
+		byte k[] = key.getBytes(StandardCharsets.UTF_8);
+		int i = find(k, hashKey(k));
+		if(i < 0){
+			return null;
+		}
+		return readValue(slot[i]-1);
+	}
+
+	public void put(String key, String value){
+		byte k[] = key.getBytes(StandardCharsets.UTF_8);
+		byte v[] = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+		int h = hashKey(k);
+		int i = find(k, h);
+		if(i < 0 && count+1 >= MAX_SLOTS){
+			throw new IllegalStateException("CompactStore can't hold more than " + (MAX_SLOTS-1) + " keys");
+		}
+		long offset = writeRecord(k, v);
+		if(i >= 0){
+			// Replace the record, leaving the old one as garbage.
+			garbage += recordSize(slot[i]-1);
+			slot[i] = offset+1;
+			compactIfWasteful();
+		} else {
+			// In longs, since these pass the int range long before the table reaches MAX_SLOTS.
+			if((long)(count+deleted+1)*4 > (long)slot.length*3){
+				// Grow if mostly full of keys, otherwise just clear out the deleted slots.
+				if((long)count*2 >= slot.length && slot.length < MAX_SLOTS){
+					resize(slot.length*2);
+					i = find(k, h);
+				} else if(slot.length < MAX_SLOTS || (long)deleted*8 > slot.length || count+deleted+1 >= slot.length){
+					resize(slot.length);
+					i = find(k, h);
+				}
+			}
+			i = -i-1;
+			if(slot[i] == DELETED){
+				deleted--;
+			}
+			slot[i] = offset+1;
+			hash[i] = h;
+			count++;
+		}
+	}
+
+	public String remove(String key){
+		byte k[] = key.getBytes(StandardCharsets.UTF_8);
+		int i = find(k, hashKey(k));
+		if(i < 0){
+			return null;
+		}
+		long offset = slot[i]-1;
+		String value = readValue(offset);
+		garbage += recordSize(offset);
+		slot[i] = DELETED;
+		hash[i] = 0;
+		count--;
+		deleted++;
+		compactIfWasteful();
+		return value;
+	}
+
+	public int size(){
+		return count;
+	}
+
+	public ArrayList<String> keys(){
+		ArrayList<String> keys = new ArrayList<String>(count);
+		for(int k=0;k<slot.length;k++){
+			if(slot[k] > 0){
+				keys.add(readKey(slot[k]-1));
+			}
+		}
+		return keys;
+	}
+
+	// Returns the bytes of heap in use, including garbage.
+	public long heapSize(){
+		return used;
+	}
+
+	// Returns the slot holding key k, or -(slot to insert it at)-1 if it isn't stored.
+	private int find(byte k[], int h){
+		int mask = slot.length-1;
+		int i = h & mask;
+		int insert = -1;
+		while(slot[i] != EMPTY){
+			if(slot[i] == DELETED){
+				if(insert < 0){
+					insert = i;
+				}
+			} else if(hash[i] == h && keyEquals(slot[i]-1, k)){
+				return i;
+			}
+			i = (i+1) & mask;
+		}
+		return -(insert < 0 ? i : insert)-1;
+	}
+
+	// Rebuilds the table with the given amount of slots (a power of 2), dropping deleted slots.
+	private void resize(int size){
+		long oldslot[] = slot;
+		int oldhash[] = hash;
+		slot = new long[size];
+		hash = new int[size];
+		int mask = size-1;
+		for(int k=0;k<oldslot.length;k++){
+			if(oldslot[k] > 0){
+				int i = oldhash[k] & mask;
+				while(slot[i] != EMPTY){
+					i = (i+1) & mask;
+				}
+				slot[i] = oldslot[k];
+				hash[i] = oldhash[k];
+			}
+		}
+		deleted = 0;
+	}
+
+	// FNV-1a over the key bytes followed by a finalizer so the low bits used for slots are well mixed.
+	private static int hashKey(byte k[]){
+		int h = 0x811c9dc5;
+		for(int j=0;j<k.length;j++){
+			h = (h ^ (k[j]&0xff)) * 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	// Returns the region holding a heap offset.
+	private ByteBuffer regionOf(long offset){
+		return region[(int)(offset >>> region_bits)];
+	}
+
+	// Returns where a heap offset is within its region.
+	private int within(long offset){
+		return (int)(offset & ((1L << region_bits) - 1));
+	}
+
+	// Returns true if the record at offset has key k.
+	private boolean keyEquals(long offset, byte k[]){
+		ByteBuffer r = regionOf(offset);
+		int at = within(offset);
+		if(r.getInt(at) != k.length){
+			return false;
+		}
+		at += 4;
+		for(int j=0;j<k.length;j++){
+			if(r.get(at+j) != k[j]){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Returns where a record of the given size starting at offset would go: offset itself, or the start of the next
+	// region if it wouldn't fit in what's left of this one.
+	private long placeRecord(long offset, int size){
+		if(within(offset) + (long)size > 1L << region_bits){
+			return ((offset >>> region_bits) + 1) << region_bits;
+		}
+		return offset;
+	}
+
+	// Appends a record to the heap and returns its offset. A null value is stored with length -1.
+	private long writeRecord(byte k[], byte v[]){
+		int vlength = v == null ? 0 : v.length;
+		long size = 8L + k.length + vlength;
+		if(size > 1L << region_bits){
+			throw new IllegalArgumentException("CompactStore record of " + size + " bytes is bigger than a region");
+		}
+		long offset = placeRecord(used, (int)size);
+		ensureCapacity(offset + size);
+		ByteBuffer r = regionOf(offset);
+		int at = within(offset);
+		r.putInt(at, k.length);
+		r.put(at+4, k);
+		r.putInt(at+4+k.length, v == null ? -1 : v.length);
+		if(v != null){
+			r.put(at+8+k.length, v);
+		}
+		used = offset + size;
+		return offset;
+	}
+
+	private int recordSize(long offset){
+		ByteBuffer r = regionOf(offset);
+		int at = within(offset);
+		int klength = r.getInt(at);
+		int vlength = r.getInt(at+4+klength);
+		return 8 + klength + Math.max(vlength, 0);
+	}
+
+	private String readKey(long offset){
+		ByteBuffer r = regionOf(offset);
+		int at = within(offset);
+		return new String(getBytes(r, at+4, r.getInt(at)), StandardCharsets.UTF_8);
+	}
+
+	private String readValue(long offset){
+		ByteBuffer r = regionOf(offset);
+		int voffset = within(offset) + 4 + r.getInt(within(offset));
+		int vlength = r.getInt(voffset);
+		if(vlength < 0){
+			return null;
+		}
+		return new String(getBytes(r, voffset+4, vlength), StandardCharsets.UTF_8);
+	}
+
+	private static byte[] getBytes(ByteBuffer r, int offset, int length){
+		byte b[] = new byte[length];
+		r.get(offset, b);
+		return b;
+	}
+
+	// Makes the heap reach at least end, by doubling the region end falls in or adding regions up to it.
+	// Moves the heap into the spill file first if it would grow past spill_size.
+	private void ensureCapacity(long end){
+		int last = (int)((end-1) >>> region_bits);
+		int needed = within(end-1) + 1;
+		if(last < regions && region[last].capacity() >= needed){
+			return;
+		}
+		int full = 1 << region_bits;
+		int size = last < regions ? (int)Math.min(full, Math.max(2L*region[last].capacity(), needed)) : Math.max(needed, Math.min(full, 1024));
+		if(spill != null && !mapped && ((long)last << region_bits) + size > spill_size){
+			spillHeap();
+		}
+		if(last >= region.length){
+			region = Arrays.copyOf(region, Math.max(last+1, region.length*2));
+		}
+		for(int r=regions;r<last;r++){
+			// Regions skipped over are never written, so they only need to exist.
+			region[r] = newRegion(r, 1);
+		}
+		ByteBuffer grown = newRegion(last, size);
+		if(last < regions){
+			ByteBuffer old = region[last];
+			if(!mapped){
+				grown.duplicate().put(old.duplicate().clear());
+			}
+			// A mapped region's bytes are already in the file, so the bigger mapping of it has them.
+			unmap(old);
+		}
+		region[last] = grown;
+		regions = Math.max(regions, last+1);
+	}
+
+	// Returns a new region r of the given size, in memory or mapped from its part of the spill file.
+	private ByteBuffer newRegion(int r, int size){
+		if(!mapped){
+			return ByteBuffer.allocate(size);
+		}
+		try{
+			RandomAccessFile f = new RandomAccessFile(spill, "rw");
+			try{
+				// The mapping stays valid after the file is closed.
+				return f.getChannel().map(FileChannel.MapMode.READ_WRITE, (long)r << region_bits, size);
+			}finally{
+				f.close();
+			}
+		}catch(IOException e){
+			throw new IllegalStateException("Failed to map CompactStore spill file: " + e);
+		}
+	}
+
+	// Moves every region out of memory into the spill file.
+	private void spillHeap(){
+		mapped = true;
+		for(int r=0;r<regions;r++){
+			ByteBuffer moved = newRegion(r, region[r].capacity());
+			moved.duplicate().put(region[r].duplicate().clear());
+			region[r] = moved;
+		}
+	}
+
+	// Releases a mapping right away instead of whenever the garbage collector gets to it, since until then it still
+	// takes up address space (and the file pages it maps) alongside the bigger mapping that replaced it.
+	// Uses sun.misc.Unsafe.invokeCleaner, so on a JVM without it mappings are left to the garbage collector.
+	private static void unmap(ByteBuffer b){
+		if(!(b instanceof MappedByteBuffer)){
+			return;
+		}
+		try{
+			Class<?> unsafe = Class.forName("sun.misc.Unsafe");
+			Field f = unsafe.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			unsafe.getMethod("invokeCleaner", ByteBuffer.class).invoke(f.get(null), b);
+		}catch(Exception e){
+			// Left to the garbage collector.
+		}
+	}
+
+	// Compacts the heap once most of it is garbage.
+	private void compactIfWasteful(){
+		if(garbage > 65536 && garbage > used/2){
+			compact();
+		}
+	}
+
+	// Moves all live records down to the start of the heap in their current order, removing the garbage between them.
+	// Regions left empty at the end are released.
+	public void compact(){
+		long order[] = new long[count];
+		int n = 0;
+		for(int k=0;k<slot.length;k++){
+			if(slot[k] > 0){
+				order[n++] = slot[k]-1;
+			}
+		}
+		Arrays.sort(order, 0, n);
+		// Slot of each record in heap order. Offsets are unique, so each one is found exactly once.
+		int at[] = new int[n];
+		for(int k=0;k<slot.length;k++){
+			if(slot[k] > 0){
+				at[Arrays.binarySearch(order, 0, n, slot[k]-1)] = k;
+			}
+		}
+		long write = 0;
+		for(int k=0;k<n;k++){
+			long offset = order[k];
+			int size = recordSize(offset);
+			write = placeRecord(write, size);
+			if(offset != write){
+				// Records only ever move down, so copying one at a time never overwrites one not yet moved.
+				regionOf(write).put(within(write), getBytes(regionOf(offset), within(offset), size));
+				slot[at[k]] = write+1;
+			}
+			write += size;
+		}
+		used = write;
+		garbage = 0;
+		int keep = Math.max(1, (int)((used + (1L << region_bits) - 1) >>> region_bits));
+		while(regions > keep){
+			regions--;
+			unmap(region[regions]);
+			region[regions] = null;
+		}
+	}
+
+	// Unit test comparing the store against a HashMap, and the memory each takes for the same entries.
+	public static void main(String args[]) throws Exception{
+		Random rand = new Random(12345);
+		CompactStore store = new CompactStore();
+		HashMap<String, String> map = new HashMap<String, String>();
+		for(int k=0;k<200000;k++){
+			String key = "key" + rand.nextInt(50000);
+			double r = rand.nextDouble();
+			if(r < 0.6){
+				String value = "value" + rand.nextInt();
+				store.put(key, value);
+				map.put(key, value);
+			} else if(r < 0.8){
+				String a = store.remove(key), b = map.remove(key);
+				if(a == null ? b != null : !a.equals(b)) System.out.println("Mismatched remove of " + key);
+			} else {
+				String a = store.get(key), b = map.get(key);
+				if(a == null ? b != null : !a.equals(b)) System.out.println("Mismatched get of " + key);
+			}
+		}
+		System.out.println("Random operations: " + store.size() + " keys, HashMap has " + map.size());
+
+		File f = File.createTempFile("CompactStore", ".heap");
+		f.deleteOnExit();
+		CompactStore spilled = new CompactStore(f, 1<<16);
+		for(int k=0;k<100000;k++){
+			spilled.put("key" + k, "value" + k);
+		}
+		int wrong = 0;
+		for(int k=0;k<100000;k++){
+			if(!("value" + k).equals(spilled.get("key" + k))) wrong++;
+		}
+		System.out.println("Spilled " + spilled.heapSize() + " bytes to file, mapped: " + spilled.mapped + ", wrong values: " + wrong);
+
+		// Small regions go through everything big heaps do (several regions, records skipping to the next region,
+		// growing and remapping the last one, compacting across regions) without needing gigabytes.
+		CompactStore regioned = new CompactStore(f, 1<<18, 16);
+		HashMap<String, String> expected = new HashMap<String, String>();
+		for(int k=0;k<300000;k++){
+			String key = "key" + rand.nextInt(20000);
+			if(rand.nextDouble() < 0.8){
+				String value = "value" + k + (k % 7 == 0 ? new String(new char[rand.nextInt(2000)]).replace('\0', 'x') : "");
+				regioned.put(key, value);
+				expected.put(key, value);
+			} else {
+				String a = regioned.remove(key), b = expected.remove(key);
+				if(a == null ? b != null : !a.equals(b)) System.out.println("Mismatched remove of " + key);
+			}
+		}
+		wrong = 0;
+		for(String key : expected.keySet()){
+			if(!expected.get(key).equals(regioned.get(key))) wrong++;
+		}
+		System.out.println("Regions of 64 KB: " + regioned.regions + " regions, " + regioned.heapSize() + " bytes, mapped: "
+				+ regioned.mapped + ", " + regioned.size() + " keys, wrong values: " + wrong);
+
+		int amount = 1000000;
+		long before = usedMemory();
+		HashStore stores[] = {new MapStore(), new CompactStore()};
+		long bytes[] = new long[stores.length];
+		for(int s=0;s<stores.length;s++){
+			for(int k=0;k<amount;k++){
+				stores[s].put("ID-" + k, "some value " + k);
+			}
+			long after = usedMemory();
+			bytes[s] = after - before;
+			before = after;
+		}
+		System.out.println("MapStore bytes per key: " + bytes[0]/amount);
+		System.out.println("CompactStore bytes per key: " + bytes[1]/amount);
+	}
+
+	private static long usedMemory(){
+		for(int k=0;k<3;k++){
+			System.gc();
+		}
+		return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+	}
+}
@@ -0,0 +1,507 @@
+/* Compresses messages with entropy codes written through BitStream, so nodes can trade some CPU for fewer bytes on
+ * links (the network charges every message by its length). Set Node.compression to have a node compress what it sends.
+ * Receivers decompress anything compressed whatever their own setting, so it can differ between nodes.
+ * STATIC_HUFFMAN uses one fixed Huffman code built from typical message bytes. ADAPTIVE_HUFFMAN starts from that code
+ * and rebuilds it from the bytes seen so far at doubling intervals, which helps long messages with an unusual mix of bytes.
+ * DICTIONARY replaces repeats of earlier parts of the message (like the addresses in multi responses) with references
+ * back to them (LZ77). Every message is treated as starting with PRESET, a few address prefixes and common words, so
+ * short messages like peer responses have something to refer back to as well. The rest is Huffman coded in runs.
+ * A message is only sent compressed if that makes it smaller. Compressed messages have type COMPRESSED, so every other
+ * message type must be less than it. Totals over every message are kept for report. Run main to compare the modes.
+ */
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Compression{
+
+	public static final int NONE = 0, STATIC_HUFFMAN = 1, ADAPTIVE_HUFFMAN = 2, DICTIONARY = 3;
+	static final String NAMES[] = {"none", "static Huffman", "adaptive Huffman", "dictionary"};
+
+	// The type byte of a compressed message, followed by the mode, the original length as a varint, and the bits.
+	public static final byte COMPRESSED = ByteStream.TYPE_MASK;
+
+	static final HuffmanCode STATIC = HuffmanCode.build(model());
+
+	// Totals over every message compressed and decompressed, from every thread. See report.
+	static final AtomicLong original = new AtomicLong(), compressed = new AtomicLong(), sent = new AtomicLong();
+	static final AtomicLong compress_nanos = new AtomicLong(), decompress_nanos = new AtomicLong(), decompressed = new AtomicLong();
+
+	// Bit streams for compressing, one per thread, reused so compressing doesn't allocate them.
+	private static final ThreadLocal<BitStream> BITS = new ThreadLocal<BitStream>(){
+		protected BitStream initialValue(){
+			return new BitStream();
+		}
+	};
+
+	// Returns the message compressed with the given mode, or the message itself if that doesn't make it smaller.
+	public static byte[] compress(byte message[], int mode){
+		if(mode == NONE || message.length == 0){
+			return message;
+		}
+		long start = System.nanoTime();
+		BitStream bits = BITS.get();
+		bits.writecounter = 0;
+		if(mode == STATIC_HUFFMAN){
+			for(int k=0;k<message.length;k++){
+				STATIC.write(bits, message[k] & 0xff);
+			}
+		} else if(mode == ADAPTIVE_HUFFMAN){
+			encodeAdaptive(bits, message);
+		} else {
+			encodeDictionary(bits, message);
+		}
+		int header = 2 + varIntLength(message.length);
+		int length = header + (bits.writecounter+7)/8;
+		byte result[] = message;
+		if(length < message.length){
+			result = new byte[length];
+			result[0] = COMPRESSED;
+			result[1] = (byte)mode;
+			int i = 2;
+			for(int v = message.length; ; v >>>= 7){
+				if((v & ~0x7F) == 0){
+					result[i++] = (byte)v;
+					break;
+				}
+				result[i++] = (byte)((v & 0x7F) | 0x80);
+			}
+			System.arraycopy(bits.data.b, 0, result, header, length - header);
+		}
+		compress_nanos.addAndGet(System.nanoTime() - start);
+		original.addAndGet(message.length);
+		compressed.addAndGet(result.length);
+		sent.incrementAndGet();
+		return result;
+	}
+
+	// Returns true if the message was compressed by compress.
+	public static boolean isCompressed(byte message[]){
+		return message.length > 2 && message[0] == COMPRESSED;
+	}
+
+	// Returns the original of a compressed message.
+	public static byte[] decompress(byte message[]){
+		long start = System.nanoTime();
+		ByteStream header = new ByteStream(message);
+		header.readByte();
+		int mode = header.readByte();
+		byte result[] = new byte[header.readVarInt()];
+		BitStream bits = new BitStream(message, header.readpointer*8);
+		if(mode == STATIC_HUFFMAN){
+			for(int k=0;k<result.length;k++){
+				result[k] = (byte)STATIC.read(bits);
+			}
+		} else if(mode == ADAPTIVE_HUFFMAN){
+			decodeAdaptive(bits, result);
+		} else if(mode == DICTIONARY){
+			decodeDictionary(bits, result);
+		} else {
+			throw new IllegalArgumentException("Unknown compression mode " + mode);
+		}
+		decompress_nanos.addAndGet(System.nanoTime() - start);
+		decompressed.addAndGet(result.length);
+		return result;
+	}
+
+	// Describes every message compressed so far: how much smaller they got and the CPU time it took.
+	public static String report(){
+		long in = original.get(), out = compressed.get();
+		return sent.get() + " messages compressed from " + in + " to " + out + " bytes (ratio "
+				+ (in == 0 ? "-" : String.format("%.3f", out / (double)in)) + "), "
+				+ (in == 0 ? "-" : String.format("%.1f", compress_nanos.get() / (in / 1024.0) / 1000)) + " us/KB to compress, "
+				+ (decompressed.get() == 0 ? "-" : String.format("%.1f", decompress_nanos.get() / (decompressed.get() / 1024.0) / 1000)) + " us/KB to decompress";
+	}
+
+	// Zeroes the totals for report.
+	public static void resetReport(){
+		original.set(0);
+		compressed.set(0);
+		sent.set(0);
+		compress_nanos.set(0);
+		decompress_nanos.set(0);
+		decompressed.set(0);
+	}
+
+	static int varIntLength(int v){
+		int length = 1;
+		while((v & ~0x7F) != 0){
+			v >>>= 7;
+			length++;
+		}
+		return length;
+	}
+
+	// Relative frequencies of bytes in typical messages: zeros in the high bytes of small ints, small counts and
+	// types, and the letters, digits and punctuation of keys and addresses.
+	static long[] model(){
+		long freq[] = new long[256];
+		for(int k=0;k<256;k++){
+			freq[k] = k < 32 ? 30 : k < 127 ? 10 : 3;
+		}
+		freq[0] = 400;
+		for(int k='a';k<='z';k++){
+			freq[k] = 50;
+		}
+		for(int k='0';k<='9';k++){
+			freq[k] = 80;
+		}
+		for(int k='A';k<='Z';k++){
+			freq[k] = 20;
+		}
+		String punctuation = "-.:_ /";
+		for(int k=0;k<punctuation.length();k++){
+			freq[punctuation.charAt(k)] = 40;
+		}
+		return freq;
+	}
+
+	// Each byte is coded with a Huffman code built from the static model plus the bytes so far, rebuilt after 16, 32,
+	// 64 and so on bytes up to every 1024. The decoder rebuilds at the same points, so the codes never have to be sent.
+	static void encodeAdaptive(BitStream bits, byte message[]){
+		long freq[] = model();
+		HuffmanCode code = STATIC;
+		int rebuild = 16;
+		for(int k=0;k<message.length;k++){
+			int b = message[k] & 0xff;
+			code.write(bits, b);
+			freq[b] += ADAPTIVE_WEIGHT;
+			if(k+1 == rebuild){
+				code = HuffmanCode.build(freq);
+				rebuild += Math.min(rebuild, 1024);
+			}
+		}
+	}
+
+	static void decodeAdaptive(BitStream bits, byte result[]){
+		long freq[] = model();
+		HuffmanCode code = STATIC;
+		int rebuild = 16;
+		for(int k=0;k<result.length;k++){
+			int b = code.read(bits);
+			result[k] = (byte)b;
+			freq[b] += ADAPTIVE_WEIGHT;
+			if(k+1 == rebuild){
+				code = HuffmanCode.build(freq);
+				rebuild += Math.min(rebuild, 1024);
+			}
+		}
+	}
+
+	static final int ADAPTIVE_WEIGHT = 64; // How much each byte seen counts compared to the model.
+
+	static final int MIN_MATCH = 3, MAX_MATCH = 1 << 12;
+	static final int HASH_BITS = 12;
+
+	// Bytes both ends act as if every message started with, so even the first appearance of something common can be
+	// sent as a repeat: the words keys and values start with in the simulations, and the lengths and prefixes of the
+	// addresses in peer lists. Later entries are reached with shorter distances, so the most common go last.
+	static final byte PRESET[] = "value key\u0018ID-0.\u001aID-0.".getBytes(java.nio.charset.StandardCharsets.ISO_8859_1);
+
+	// The code for bytes that aren't repeats. Unlike STATIC, it expects the bytes of floats and other binary fields
+	// as often as text: the exponent bytes of positions between 0 and 1, and every high byte about as often as a
+	// letter, since those are what's left of a peer list once its repeats are taken out.
+	static final HuffmanCode LITERALS = HuffmanCode.build(literalModel());
+
+	static long[] literalModel(){
+		long freq[] = model();
+		for(int k=127;k<256;k++){
+			freq[k] = 12;
+		}
+		for(int k=0x3c;k<=0x3f;k++){
+			freq[k] = 60;
+		}
+		return freq;
+	}
+
+	// Hash tables for finding repeats, one per thread.
+	private static final ThreadLocal<int[]> HASHES = new ThreadLocal<int[]>(){
+		protected int[] initialValue(){
+			return new int[1 << HASH_BITS];
+		}
+	};
+
+	// Returns byte k of the message as if PRESET came before it, so negative k are in PRESET.
+	static byte at(byte message[], int k){
+		return k < 0 ? PRESET[PRESET.length + k] : message[k];
+	}
+
+	// Writes the message as runs of bytes that aren't repeats, each followed by a repeat of at least MIN_MATCH earlier
+	// bytes (LZ77). A run is its length plus one as an Elias gamma code and its bytes in the LITERALS code. A repeat is
+	// its length less MIN_MATCH-1 as a gamma code and how far back it starts less one in just enough bits to reach
+	// the start of PRESET. The message can end after a run, which the decoder knows from the length.
+	static void encodeDictionary(BitStream bits, byte message[]){
+		int last[] = HASHES.get(); // 1 + PRESET.length + the last position each hash of 3 bytes was seen at, or 0.
+		Arrays.fill(last, 0);
+		for(int k=-PRESET.length;k+MIN_MATCH<=0;k++){
+			last[hash(message, k)] = k + PRESET.length + 1;
+		}
+		int run = 0; // Where the current run of literals started.
+		int k = 0;
+		while(k < message.length){
+			int match = 0, distance = 0;
+			if(k + MIN_MATCH <= message.length){
+				int h = hash(message, k);
+				int candidate = last[h] - 1 - PRESET.length;
+				last[h] = k + PRESET.length + 1;
+				if(candidate >= -PRESET.length){
+					int limit = Math.min(message.length - k, MAX_MATCH);
+					while(match < limit && at(message, candidate+match) == message[k+match]){
+						match++;
+					}
+					distance = k - candidate;
+				}
+			}
+			if(match >= MIN_MATCH){
+				writeRun(bits, message, run, k);
+				writeGamma(bits, match - MIN_MATCH + 1);
+				bits.writeUnsignedInt(distance-1, bitsFor(k + PRESET.length));
+				// Remember the positions inside the repeat too, so later repeats can refer into it.
+				for(int j=k+1;j<k+match && j+MIN_MATCH<=message.length;j++){
+					last[hash(message, j)] = j + PRESET.length + 1;
+				}
+				k += match;
+				run = k;
+			} else {
+				k++;
+			}
+		}
+		if(run < message.length){
+			writeRun(bits, message, run, message.length);
+		}
+	}
+
+	// Writes the literals from start up to end.
+	static void writeRun(BitStream bits, byte message[], int start, int end){
+		writeGamma(bits, end - start + 1);
+		for(int k=start;k<end;k++){
+			LITERALS.write(bits, message[k] & 0xff);
+		}
+	}
+
+	static void decodeDictionary(BitStream bits, byte result[]){
+		int k = 0;
+		while(k < result.length){
+			int run = readGamma(bits) - 1;
+			for(int j=0;j<run;j++){
+				result[k++] = (byte)LITERALS.read(bits);
+			}
+			if(k == result.length){
+				break;
+			}
+			int match = readGamma(bits) + MIN_MATCH - 1;
+			int from = k - 1 - bits.readUnsignedInt(bitsFor(k + PRESET.length));
+			// Byte at a time, since a repeat can overlap itself.
+			for(int j=0;j<match;j++){
+				result[k+j] = at(result, from+j);
+			}
+			k += match;
+		}
+	}
+
+	static int hash(byte b[], int k){
+		int h = ((at(b, k) & 0xff) | (at(b, k+1) & 0xff) << 8 | (at(b, k+2) & 0xff) << 16) * 0x9E3779B1;
+		return h >>> (32 - HASH_BITS);
+	}
+
+	// Bits needed to write any number less than n.
+	static int bitsFor(int n){
+		return 32 - Integer.numberOfLeadingZeros(Math.max(n-1, 0));
+	}
+
+	// Writes n (at least 1) as one less zero than its bits followed by its bits, so small numbers are short.
+	static void writeGamma(BitStream bits, int n){
+		int length = 32 - Integer.numberOfLeadingZeros(n);
+		bits.writeUnsignedInt(0, length-1);
+		bits.writeUnsignedInt(n, length);
+	}
+
+	static int readGamma(BitStream bits){
+		int zeros = 0;
+		while(bits.readBit() == 0){
+			zeros++;
+		}
+		return (1 << zeros) | bits.readUnsignedInt(zeros);
+	}
+
+	// Compares the modes on messages HashNode builds: requests, responses, peer responses from nodes with several
+	// positions, and multi responses. Reports the size of each kind and the CPU time per KB to compress and decompress.
+	public static void main(String args[]){
+		Random rand = new Random(11);
+		String kinds[] = {"request", "response", "peer response", "multi response"};
+		byte messages[][][] = new byte[kinds.length][2000][];
+		for(int k=0;k<2000;k++){
+			String key = "key" + rand.nextInt(100000);
+			String value = "value of " + key + " is " + Long.toHexString(rand.nextLong());
+			messages[0][k] = HashNode.makeRequest(key, k);
+			messages[1][k] = HashNode.makeResponse(k, key, value);
+			Peer peer[] = new Peer[(HashNode.PEERDEPTH+1)*2];
+			for(int j=0;j<peer.length;j++){
+				// Several positions for each of a few nodes, like virtual nodes give.
+				float p[] = HashNode.randomPositions(4, 1, new Random(j/4));
+				peer[j] = new Peer("ID-" + p[0], p[j%4]);
+			}
+			messages[2][k] = HashNode.makePeerResponse(rand.nextFloat(), peer, k);
+			String keys[] = new String[50], values[] = new String[50];
+			for(int j=0;j<keys.length;j++){
+				keys[j] = "key" + rand.nextInt(100000);
+				values[j] = "value of " + keys[j];
+			}
+			messages[3][k] = HashNode.makeMultiResponse(k, keys, values);
+		}
+		int wrong = 0;
+		for(int mode=STATIC_HUFFMAN;mode<=DICTIONARY;mode++){
+			System.out.println(NAMES[mode] + ":");
+			for(int kind=0;kind<kinds.length;kind++){
+				long best_in = Long.MAX_VALUE, best_out = Long.MAX_VALUE;
+				long in = 0, out = 0;
+				for(int run=0;run<5;run++){
+					in = out = 0;
+					long start = System.nanoTime();
+					byte packed[][] = new byte[messages[kind].length][];
+					for(int k=0;k<packed.length;k++){
+						packed[k] = compress(messages[kind][k], mode);
+						in += messages[kind][k].length;
+						out += packed[k].length;
+					}
+					best_in = Math.min(best_in, System.nanoTime() - start);
+					start = System.nanoTime();
+					for(int k=0;k<packed.length;k++){
+						byte back[] = isCompressed(packed[k]) ? decompress(packed[k]) : packed[k];
+						if(run == 0 && !Arrays.equals(back, messages[kind][k])){
+							wrong++;
+						}
+					}
+					best_out = Math.min(best_out, System.nanoTime() - start);
+				}
+				System.out.println("   " + kinds[kind] + ": " + String.format("%.1f", in / (double)messages[kind].length) + " -> "
+						+ String.format("%.1f", out / (double)messages[kind].length) + " bytes (ratio " + String.format("%.3f", out / (double)in) + "), "
+						+ String.format("%.1f", best_in / (in / 1024.0) / 1000) + " us/KB to compress, "
+						+ String.format("%.1f", best_out / (in / 1024.0) / 1000) + " us/KB to decompress");
+			}
+		}
+		System.out.println("Round trip check: " + (wrong == 0 ? "passed" : wrong + " messages came back wrong"));
+	}
+}
+
+// A canonical Huffman code for bytes. Codes of the same length are consecutive numbers in byte order, so a code can
+// be decoded from the first code and count of each length. Codes up to 8 bits long are decoded with one table lookup.
+class HuffmanCode{
+
+	static final int MAX_LENGTH = 20;
+	static final int LOOKUP_BITS = 8;
+
+	int length[] = new int[256], code[] = new int[256];
+	int count[] = new int[MAX_LENGTH+1], first[] = new int[MAX_LENGTH+1], index[] = new int[MAX_LENGTH+1];
+	int sorted[] = new int[256]; // Bytes in order of code.
+	int lookup[] = new int[1 << LOOKUP_BITS]; // Byte | length << 8 for each 8 bit prefix starting with a short code, or -1.
+
+	// Builds a code for byte frequencies (all at least 1), scaling them down until no code is longer than MAX_LENGTH.
+	static HuffmanCode build(long frequency[]){
+		long freq[] = frequency.clone();
+		while(true){
+			int length[] = lengths(freq);
+			int longest = 0;
+			for(int k=0;k<256;k++){
+				longest = Math.max(longest, length[k]);
+			}
+			if(longest <= MAX_LENGTH){
+				return new HuffmanCode(length);
+			}
+			for(int k=0;k<256;k++){
+				freq[k] = Math.max(1, freq[k] / 2);
+			}
+		}
+	}
+
+	// Returns the Huffman code length of each byte, by repeatedly joining the two lightest trees.
+	// Leaves are taken in order of weight and joined trees are made in order of weight, so two queues are enough.
+	static int[] lengths(long freq[]){
+		long order[] = new long[256];
+		for(int k=0;k<256;k++){
+			order[k] = (freq[k] << 8) | k;
+		}
+		Arrays.sort(order);
+		long weight[] = new long[511];
+		int parent[] = new int[511];
+		for(int k=0;k<256;k++){
+			weight[k] = order[k] >>> 8;
+		}
+		int leaf = 0, tree = 256, made = 256;
+		while(made < 511){
+			int a = (leaf < 256 && (tree == made || weight[leaf] <= weight[tree])) ? leaf++ : tree++;
+			int b = (leaf < 256 && (tree == made || weight[leaf] <= weight[tree])) ? leaf++ : tree++;
+			weight[made] = weight[a] + weight[b];
+			parent[a] = made;
+			parent[b] = made;
+			made++;
+		}
+		// Trees are made after their children, so going backwards from the root finds every parent's depth first.
+		int depth[] = new int[511];
+		for(int k=509;k>=0;k--){
+			depth[k] = depth[parent[k]] + 1;
+		}
+		int length[] = new int[256];
+		for(int k=0;k<256;k++){
+			length[(int)(order[k] & 0xff)] = depth[k];
+		}
+		return length;
+	}
+
+	HuffmanCode(int length[]){
+		this.length = length;
+		for(int k=0;k<256;k++){
+			count[length[k]]++;
+		}
+		int next[] = new int[MAX_LENGTH+1];
+		int c = 0, position = 0;
+		for(int l=1;l<=MAX_LENGTH;l++){
+			c = (c + count[l-1]) << 1;
+			first[l] = c;
+			next[l] = c;
+			index[l] = position;
+			position += count[l];
+		}
+		int filled[] = index.clone();
+		for(int k=0;k<256;k++){
+			int l = length[k];
+			code[k] = next[l]++;
+			sorted[filled[l]++] = k;
+		}
+		Arrays.fill(lookup, -1);
+		for(int k=0;k<256;k++){
+			int l = length[k];
+			if(l <= LOOKUP_BITS){
+				int start = code[k] << (LOOKUP_BITS - l);
+				for(int j=0;j<(1 << (LOOKUP_BITS - l));j++){
+					lookup[start + j] = k | (l << 8);
+				}
+			}
+		}
+	}
+
+	void write(BitStream bits, int b){
+		bits.writeUnsignedInt(code[b], length[b]);
+	}
+
+	int read(BitStream bits){
+		int start = bits.readcounter;
+		int e = lookup[bits.readUnsignedInt(LOOKUP_BITS)];
+		if(e >= 0){
+			bits.readcounter = start + (e >>> 8);
+			return e & 0xff;
+		}
+		// A longer code, so decode it a bit at a time.
+		int c = 0;
+		bits.readcounter = start;
+		for(int l=1;l<=MAX_LENGTH;l++){
+			c = (c << 1) | bits.readBit();
+			int i = c - first[l];
+			if(i >= 0 && i < count[l]){
+				return sorted[index[l] + i];
+			}
+		}
+		throw new IllegalStateException("Invalid Huffman code");
+	}
+}
@@ -0,0 +1,272 @@
+/* A fixed size cache that can be shared between threads, such as node threads and the GUI timer.
+ * Cache can't be shared as is, because even get moves an item in its access order.
+ * This splits the keys between several Caches (segments), each with its own lock, so threads using different segments
+ * never wait on each other and get and put stay O(1). Each segment evicts its own least recently used item (or whatever
+ * the segments' CachePolicy picks), which is close to evicting the least recently used item overall when there are many
+ * keys. Segments are kept to at least MIN_SEGMENT_CAPACITY each, since a segment of a handful of items evicts almost at
+ * random, so small caches get fewer segments than asked for.
+ * get(key, loader) makes threads that miss the same key at the same time wait for one load instead of all loading it.
+ * Run main to compare throughput with one thread using a Cache, and to see misses share loads.
+ */
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConcurrentCache<KeyType, RecordType>{
+
+	// Fewest items (or total weight) a segment holds.
+	static final int MIN_SEGMENT_CAPACITY = 64;
+
+	Cache<KeyType, RecordType> segment[];
+	int mask; // Segments are picked by the low bits of a key's spread hash.
+	ConcurrentHashMap<KeyType, FutureTask<RecordType>> loading; // Loads in progress.
+
+	// Creates a cache holding up to about size items, split over enough segments for the available processors.
+	public ConcurrentCache(int size){
+		this(size, 4 * Runtime.getRuntime().availableProcessors());
+	}
+
+	// Creates a cache holding up to about size items, split over segments segments (rounded up to a power of 2).
+	public ConcurrentCache(int size, int segments){
+		this(size, segments, null, Cache.REAL_TIME, Double.POSITIVE_INFINITY);
+	}
+
+	// Creates a cache holding items up to a total weight of about capacity, split over segments segments (rounded up to
+	// a power of 2). See the matching Cache constructor.
+	public ConcurrentCache(long capacity, int segments, Cache.Weigher<KeyType, RecordType> weigher, Cache.Clock clock, double time_to_live){
+		this(capacity, segments, new PolicyMaker<KeyType>(){
+			public CachePolicy<KeyType> make(int capacity){
+				return new LRUPolicy<KeyType>();
+			}
+		}, weigher, clock, time_to_live);
+	}
+
+	// Creates a cache like the one above whose segments each evict with a policy from policies.
+	public ConcurrentCache(long capacity, int segments, PolicyMaker<KeyType> policies, Cache.Weigher<KeyType, RecordType> weigher,
+			Cache.Clock clock, double time_to_live){
+		int amount = Integer.highestOneBit(Math.max(segments, 2) - 1) << 1;
+		while(amount > 1 && capacity / amount < MIN_SEGMENT_CAPACITY){
+			amount >>= 1;
+		}
+		mask = amount-1;
+		segment = newSegments(amount);
+		long each = Math.max(1, (capacity + amount - 1) / amount);
+		for(int k=0;k<amount;k++){
+			CachePolicy<KeyType> policy = policies.make((int)Math.min(each, Integer.MAX_VALUE));
+			segment[k] = new Cache<KeyType, RecordType>(each, policy, weigher, clock, time_to_live);
+		}
+		loading = new ConcurrentHashMap<KeyType, FutureTask<RecordType>>();
+	}
+
+	// Makes a new policy for each segment, since policies keep state for the items of one cache.
+	public interface PolicyMaker<KeyType>{
+		// Returns a policy for a segment holding up to capacity items (or total weight).
+		public CachePolicy<KeyType> make(int capacity);
+	}
+
+	// Java can't make an array of a generic type, so this makes an array of any Cache and casts it.
+	@SuppressWarnings("unchecked")
+	private static <KeyType, RecordType> Cache<KeyType, RecordType>[] newSegments(int amount){
+		return (Cache<KeyType, RecordType>[])new Cache<?, ?>[amount];
+	}
+
+	// Returns the segment for a key. The hash is spread so keys with similar hashCodes (like small Integers) don't share one.
+	private Cache<KeyType, RecordType> segmentFor(KeyType k){
+		int h = k.hashCode() * 0x9E3779B9;
+		return segment[(h ^ (h >>> 16)) & mask];
+	}
+
+	// Fetch a Record from the cache or null if it is not present.
+	public RecordType get(KeyType k){
+		Cache<KeyType, RecordType> s = segmentFor(k);
+		synchronized(s){
+			return s.get(k);
+		}
+	}
+
+	// Fetch a Record from the cache, or if it's not present, create it with loader and put it in the cache.
+	// If other threads miss the same key while it's loading they wait for that load rather than starting their own.
+	// The load runs without holding the segment's lock, so other keys aren't held up by it.
+	public RecordType get(final KeyType k, final Cache.Loader<KeyType, RecordType> loader){
+		RecordType r = get(k);
+		if(r != null){
+			return r;
+		}
+		FutureTask<RecordType> load = new FutureTask<RecordType>(new Callable<RecordType>(){
+			public RecordType call(){
+				// Another load may have finished between the miss and this load being registered.
+				RecordType r = get(k);
+				if(r == null){
+					r = loader.load(k);
+					if(r != null){
+						put(k, r);
+					}
+				}
+				return r;
+			}
+		});
+		FutureTask<RecordType> running = loading.putIfAbsent(k, load);
+		if(running == null){
+			try{
+				load.run();
+			}finally{
+				loading.remove(k, load);
+			}
+			running = load;
+		}
+		try{
+			return running.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			return null;
+		}catch(ExecutionException e){
+			if(e.getCause() instanceof RuntimeException){
+				throw (RuntimeException)e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	// Puts a record in the cache. Replaces record with matching key if found.
+	// If the key's segment is full evicts its least recently accessed item.
+	public void put(KeyType k, RecordType r){
+		Cache<KeyType, RecordType> s = segmentFor(k);
+		synchronized(s){
+			s.put(k, r);
+		}
+	}
+
+	// Puts a record in the cache that expires after time_to_live by the cache's clock.
+	public void put(KeyType k, RecordType r, double time_to_live){
+		Cache<KeyType, RecordType> s = segmentFor(k);
+		synchronized(s){
+			s.put(k, r, time_to_live);
+		}
+	}
+
+	// Removes the record for a key, returning it or null if it wasn't in the cache.
+	public RecordType remove(KeyType k){
+		Cache<KeyType, RecordType> s = segmentFor(k);
+		synchronized(s){
+			return s.remove(k);
+		}
+	}
+
+	// Returns the amount of items in the cache.
+	public int size(){
+		int size = 0;
+		for(int k=0;k<segment.length;k++){
+			synchronized(segment[k]){
+				size += segment[k].size();
+			}
+		}
+		return size;
+	}
+
+	// Throughput test using the workload from Cache.main: one thread on a Cache, then more and more threads on a ConcurrentCache.
+	public static void main(String args[]) throws Exception{
+		final int operations = 2000000;
+		final Cache<Integer, String> cache = new Cache<Integer, String>(500);
+		long best = Long.MAX_VALUE;
+		for(int run=0;run<3;run++){
+			long start = System.nanoTime();
+			workload(operations, new Store(){
+				public String get(Integer k){ return cache.get(k); }
+				public void put(Integer k, String v){ cache.put(k, v); }
+			});
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.println("Cache, 1 thread: " + String.format("%.2f", operations * 1000.0 / best) + " million ops/s");
+
+		final ConcurrentCache<Integer, String> shared = new ConcurrentCache<Integer, String>(500);
+		final Store store = new Store(){
+			public String get(Integer k){ return shared.get(k); }
+			public void put(Integer k, String v){ shared.put(k, v); }
+		};
+		for(int threads=1;threads<=2*Runtime.getRuntime().availableProcessors();threads*=2){
+			best = Long.MAX_VALUE;
+			for(int run=0;run<3;run++){
+				Thread t[] = new Thread[threads];
+				for(int k=0;k<threads;k++){
+					t[k] = new Thread(new Runnable(){
+						public void run(){
+							workload(operations, store);
+						}
+					});
+				}
+				long start = System.nanoTime();
+				for(int k=0;k<threads;k++){
+					t[k].start();
+				}
+				for(int k=0;k<threads;k++){
+					t[k].join();
+				}
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			System.out.println("ConcurrentCache, " + threads + " threads: " + String.format("%.2f", (double)operations * threads * 1000.0 / best)
+					+ " million ops/s, " + shared.size() + " items");
+		}
+
+		// Threads all asking for the same few keys at once, with a slow loader. Each key should only be loaded once.
+		final ConcurrentCache<Integer, String> coalescing = new ConcurrentCache<Integer, String>(500, 8,
+				new PolicyMaker<Integer>(){
+					public CachePolicy<Integer> make(int capacity){
+						return new TinyLFUPolicy<Integer>(capacity);
+					}
+				}, null, Cache.REAL_TIME, Double.POSITIVE_INFINITY);
+		final AtomicInteger loads = new AtomicInteger();
+		final Cache.Loader<Integer, String> slow = new Cache.Loader<Integer, String>(){
+			public String load(Integer k){
+				loads.incrementAndGet();
+				try{Thread.sleep(20); } catch(InterruptedException e){}
+				return Cache.expensiveDeterministicOperation(k);
+			}
+		};
+		Thread t[] = new Thread[16];
+		for(int k=0;k<t.length;k++){
+			t[k] = new Thread(new Runnable(){
+				public void run(){
+					for(int j=0;j<10;j++){
+						coalescing.get(j, slow);
+					}
+				}
+			});
+			t[k].start();
+		}
+		for(int k=0;k<t.length;k++){
+			t[k].join();
+		}
+		System.out.println(t.length + " threads getting the same 10 keys with a loader: " + loads.get() + " loads ("
+				+ coalescing.segment.length + " TinyLFU segments)");
+	}
+
+	// A cache under test.
+	interface Store{
+		public String get(Integer k);
+		public void put(Integer k, String v);
+	}
+
+	// The Cache.main access pattern. Misses store a short string instead of calling the expensive operation,
+	// so the cache itself is what's being timed.
+	static int workload(int operations, Store store){
+		ThreadLocalRandom rand = ThreadLocalRandom.current();
+		int hits = 0;
+		for(int k=0;k<operations;k++){
+			double power = 1;
+			for(int j=0;j<5;j++){
+				power *= rand.nextDouble();
+			}
+			Integer key = (int)(power*10000);
+			if(store.get(key) == null){
+				store.put(key, "value");
+			} else {
+				hits++;
+			}
+		}
+		return hits;
+	}
+}
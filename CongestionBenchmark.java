@@ -0,0 +1,89 @@
+/* Measures how HashNode's load aware forwarding (HashNode.load_slack) does when links are congested.
+ * Clients send requests for random keys through a few gateway nodes faster than the links between nodes can carry,
+ * with half of the requests going to a handful of hot keys. The same run is done with forwarding always to the
+ * closest peer and with load aware forwarding, counting the requests answered and how long they took.
+ * Each run takes about 15 seconds. Run with a load_slack as the argument to try another value (default 0.5).
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+
+public class CongestionBenchmark{
+
+	public static void main(String args[]) throws Exception{
+		double slack = args.length > 0 ? Double.parseDouble(args[0]) : 0.5;
+		double runs[] = {0, slack};
+		for(int k=0;k<runs.length;k++){
+			System.out.println(run(runs[k]));
+		}
+		System.exit(0); // The simulations' threads are still running.
+	}
+
+	// Runs a congested simulation with the given load_slack on every node and returns a line of results.
+	static String run(double slack) throws Exception{
+		int nodes = 100, gateways = 3, keys = 1000, hotkeys = 10, clients = 10;
+		double sending = 40, draining = 30; // Network time to send requests for and then to wait for the last responses.
+		Random rand = new Random(3);
+		Network net = new Network(150, 0.001f, .1f, 0, 0, 12345);
+		net.time_speed = 5;
+		HashNode ring[] = new HashNode[nodes];
+		for(int k=0;k<nodes;k++){
+			ring[k] = new HashNode("ID-" + k, HashNode.randomPositions(4, 1, rand));
+			ring[k].load_slack = slack;
+		}
+		HashNode.bootstrap(ring);
+		for(int k=0;k<nodes;k++){
+			net.addNode(ring[k], rand.nextFloat()*800, rand.nextFloat()*800, 99999999);
+		}
+		ClientNode client[] = new ClientNode[clients];
+		for(int k=0;k<clients;k++){
+			client[k] = new ClientNode("client" + k);
+			net.addNode(client[k], 450, 450, 99999999);
+			// Only links between nodes are congested, since clients can't route around anything.
+			for(int g=0;g<gateways;g++){
+				net.setLink(client[k].address, ring[g].address, 0.1f, 99999999);
+				net.setLink(ring[g].address, client[k].address, 0.1f, 99999999);
+			}
+		}
+		for(int k=0;k<keys;k++){
+			client[0].send(ring[rand.nextInt(nodes)].address, HashNode.makeStoreRequest("key" + k, "value" + k));
+		}
+		Thread.sleep(2000);
+
+		HashMap<Integer, Double> sent = new HashMap<Integer, Double>(); // Request number -> time sent.
+		ArrayList<Double> latency = new ArrayList<Double>();
+		int requests = 0;
+		double start = net.getTime();
+		while(net.getTime() < start + sending + draining){
+			for(int k=0;k<15 && net.getTime() < start + sending;k++){
+				int key = rand.nextFloat() < 0.5 ? rand.nextInt(hotkeys) : rand.nextInt(keys);
+				sent.put(requests, net.getTime());
+				client[rand.nextInt(clients)].send(ring[rand.nextInt(gateways)].address, HashNode.makeRequest("key" + key, requests));
+				requests++;
+			}
+			Thread.sleep(10);
+			for(int k=0;k<clients;k++){
+				Message m;
+				while((m = client[k].receive()) != null){
+					if(ByteStream.type(m.message) == HashNode.RESPONSE){
+						Double time = sent.remove(HashNode.requestID(m.message));
+						if(time != null){
+							latency.add(net.getTime() - time);
+						}
+					}
+				}
+			}
+		}
+		net.stop();
+		Collections.sort(latency);
+		String line = "load_slack " + slack + ": " + latency.size() + " of " + requests + " requests answered ("
+				+ String.format("%.1f", 100.0 * latency.size() / requests) + "%)";
+		if(latency.size() == 0){
+			return line;
+		}
+		return line + ", median time " + String.format("%.2f", latency.get(latency.size()/2))
+				+ ", 99th percentile " + String.format("%.2f", latency.get(latency.size()*99/100));
+	}
+}
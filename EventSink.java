@@ -0,0 +1,36 @@
+/* Receives events from nodes instead of them printing to the console.
+ * Printing from every node thread serializes them all on the console's lock, so it dominates the run time of big simulations.
+ * Network.events is OFF by default, which drops everything without building any strings.
+ * Use AsyncEventSink to see events, which hands them to a background thread through a ring buffer.
+ * Nodes log through Node.log, and should check Node.logging before building a detail string.
+ */
+
+public interface EventSink{
+
+	// Levels, from quietest to noisiest. A sink takes every event at or below its level.
+	public static final int NONE = 0; // Nothing.
+	public static final int WARN = 1; // Something unexpected happened.
+	public static final int INFO = 2; // Changes in the state of a node, like new peers.
+	public static final int DEBUG = 3; // Every message.
+
+	// Returns true if events at the given level are wanted.
+	public boolean enabled(int level);
+
+	// Takes an event from the node with the given address at the given network time.
+	// event names what happened and detail says anything else about it.
+	// Must be safe to call from many threads at once and must not block.
+	public void event(double time, int level, String node, String event, String detail);
+
+	// Drops every event.
+	public static final EventSink OFF = new NoEvents();
+}
+
+class NoEvents implements EventSink{
+
+	public boolean enabled(int level){
+		return false;
+	}
+
+	public void event(double time, int level, String node, String event, String detail){
+	}
+}
@@ -1,15 +1,15 @@
 /* This is a JFrame test of the Network simulator using dumb nodes.
- * It shows how to initialize, edit, and run a network.
+ * It runs a RandomNetworkScenario, which shows how to initialize, edit, and run a network.
  * Nodes spawn and die at random and randomly select a list of targets to message(round robin).
  * Nodes will also add nodes they receive messages from to their target list.
  * When a node or link's capacity is reached it will turn red and being to slow down.
+ * Run HeadlessRunner with scenario=network to run the same thing without a window.
  */
 
 import java.awt.* ;
 import java.awt.event.* ;
 import javax.swing.* ;
 import java.awt.image.BufferedImage ;
-import java.util.ArrayList;
 import java.awt.image.BufferStrategy ;
 
 public class GUINetworkTest extends JFrame
@@ -21,6 +21,7 @@ implements ActionListener,MouseListener
 	static int width=1024,height=768;
 	BufferStrategy strategy ;
 
+	RandomNetworkScenario scenario;
 	Network net;
 	
 	// Initialize the JFrame.
@@ -39,25 +40,11 @@ implements ActionListener,MouseListener
 		pane = getContentPane();
 		pane.addMouseListener(this);
 		pane.requestFocus();
-		Timer clock = new Timer(10, this); 
+		scenario = new RandomNetworkScenario(null);
+		scenario.start();
+		net = scenario.net;
+		Timer clock = new Timer(Scenario.STEP, this); 
 		clock.start();
-
-		net = new Network(30, 0.01f, .1f, 0.2f, 100f, 12345);
-		int amount=10;
-		// Start with some random nodes.
-		for(int k=0;k<amount;k++){
-			ArrayList<String> target = new ArrayList<String>();
-			if(k > 3){
-				for(int j=0;j<3;j++){
-					target.add(net.RandomNode());
-				}
-			}
-			Node node = new TestNode(""+k, target, (float)(.1+Math.random()), 10);
-			net.addNode(node, 
-					(float)(300 + Math.sin(k * 2 * Math.PI / amount)*200), 
-					(float)(300 + Math.cos(k * 2 * Math.PI / amount)*200),
-					20);
-		}
 	}
 	
 	// Paint method is override to perform double buffering.
@@ -77,24 +64,15 @@ implements ActionListener,MouseListener
 	public void paint2(Graphics g){
 		g.setColor(Color.white);
 		g.fillRect(0,0, width, height);
-		net.draw(g,2f);
+		NetworkView view = net.view();
+		if(view != null){
+			view.draw(g, 2f);
+		}
 	}
 	
 	// The timer.
 	public void actionPerformed(ActionEvent e ){
-		// Kill nodes at random.
-		if(Math.random() < 0.001){
-			net.stop(net.RandomNode());
-		}
-		// Add nodes at random.
-		if(Math.random() < 0.003){
-			ArrayList<String> target = new ArrayList<String>();
-			for(int j=0;j<3;j++){
-				target.add(net.RandomNode());
-			}
-			Node node = new TestNode(""+(int)(Math.random()*10000), target, (float)(.1+Math.random()), 10);
-			net.addNode(node, (float)(100 + Math.random()*800), (float)(100 + Math.random()*500),20);
-		}
+		scenario.step();
 		repaint();
 	}
 
@@ -1,55 +1,382 @@
 /* This is a basic distributed hashtable implementation to demonstrate practical use of the simulator.
- * It will work if you initialize all nodes before making any requests and keep all nodes online.
- * It's not fault tolerant(when a node goes offline its data is lost) and the work distribution is basically random.
+ * It will work as long as you keep all nodes online. Nodes can join while requests are running, since whenever a node
+ * learns of a peer closer to some of its keys it passes them on (see handOffKeys), and a new node announces itself to
+ * its neighbors until it has found its real ones (see announce). Use bootstrap to build a large initial ring all at once.
+ * Requests carry a request number, and forwarded requests are retried through other peers if they time out, so lookups survive packet loss.
+ * Lookups can be routed recursively (REQUEST) or driven by the requester (FINDREQUEST, see IterativeLookup).
+ * With an ordered placement (see KeyPlacement.ordered) keys keep their order around the ring, and RANGEREQUEST scans a
+ * key range node by node.
+ * MULTIREQUEST and MULTISTORE carry many keys at once for bulk loads. They're split up by next hop along the way.
+ * Nodes can have several positions on the ring (virtual nodes), which evens out the key space each one owns and lets
+ * faster nodes own more of it (see randomPositions).
+ * It's not fault tolerant(when a node goes offline its data is lost).
  * It's also not particularly efficient (peer connections pay no attention to latency).
  * Don't use this algorithm for real applications.
  */
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Random;
 
 public class HashNode extends Node{
 
-	// All of the possible message types.
+	// All of the possible message types. They must be less than Compression.COMPRESSED.
 	static final byte REQUEST = 1; // A request for an object in the table.
 	static final byte RESPONSE = 2;// A response of an object in the table.
 	static final byte STOREREQUEST = 3;// A request to store an object in the table.
 	static final byte PEERREQUEST = 4; // A broadcast to the entire network to generate peers for a new node
 	static final byte PEERRESPONSE = 5; // The response of peers
+	static final byte FINDREQUEST = 6; // An iterative request, answered with a response if we own the key or closer peers if not.
+	static final byte FINDRESPONSE = 7; // Peers closer to a key than the node queried.
+	static final byte RANGEREQUEST = 8; // A request for every item in a range of keys, passed along the ring.
+	static final byte RANGERESPONSE = 9; // A page of items from a range request.
+	static final byte MULTIREQUEST = 10; // A request for several objects in the table.
+	static final byte MULTIRESPONSE = 11; // The objects found for a multi request.
+	static final byte MULTISTORE = 12; // A request to store several objects in the table.
+
+	// The fields of each type of message in the order they're sent. make* methods write them and process* methods read
+	// them by their number here. See MessageSchema.
+	static final MessageSchema REQUEST_FIELDS = new MessageSchema(REQUEST, "request", 0, "int request", "string key");
+	static final MessageSchema RESPONSE_FIELDS = new MessageSchema(RESPONSE, "response", 0, "int request", "string key", "string value");
+	static final MessageSchema STOREREQUEST_FIELDS = new MessageSchema(STOREREQUEST, "store request", 0, "string key", "string value");
+	static final MessageSchema PEERREQUEST_FIELDS = new MessageSchema(PEERREQUEST, "peer request", 0,
+			"string address", "float position", "float min", "float max", "int request", "float timeout");
+	// Nodes with several positions repeat addresses in peer lists, so they're interned.
+	static final MessageSchema PEERRESPONSE_FIELDS = new MessageSchema(PEERRESPONSE, "peer response", ByteStream.INTERNED_STRINGS,
+			"float target", "int request", "peer[] peers");
+	static final MessageSchema FINDREQUEST_FIELDS = new MessageSchema(FINDREQUEST, "find request", 0, "int request", "string key");
+	static final MessageSchema FINDRESPONSE_FIELDS = new MessageSchema(FINDRESPONSE, "find response", ByteStream.INTERNED_STRINGS,
+			"int request", "string key", "peer[] peers");
+	static final MessageSchema RANGEREQUEST_FIELDS = new MessageSchema(RANGEREQUEST, "range request", 0,
+			"int request", "string replyto", "string start", "string end", "int pagesize", "int sequence", "float segment");
+	static final MessageSchema RANGERESPONSE_FIELDS = new MessageSchema(RANGERESPONSE, "range response", 0,
+			"int request", "int sequence", "byte last", "pair[] items");
+	static final MessageSchema MULTIREQUEST_FIELDS = new MessageSchema(MULTIREQUEST, "multi request", 0, "int request", "string[] keys");
+	static final MessageSchema MULTIRESPONSE_FIELDS = new MessageSchema(MULTIRESPONSE, "multi response", 0, "int request", "pair[] items");
+	static final MessageSchema MULTISTORE_FIELDS = new MessageSchema(MULTISTORE, "multi store", 0, "pair[] items");
+
+	// How strings are encoded in messages this node sends (see ByteStream.writeType). Nodes read either format, so
+	// setting this to 0 to send the original 2 bytes a character format doesn't need to happen on every node at once.
+	static int string_flags = ByteStream.COMPACT_STRINGS;
+
+	// How keys are placed on the ring. Use KeyPlacement.ordered to keep ranges of keys on consecutive nodes.
+	// Must be the same for every node in a network.
+	static KeyPlacement placement = KeyPlacement.HASHED;
 
 	// Tree depth created by peer selecting algorithm.
 	static final int PEERDEPTH = 3;
+	// Request number of peer responses sent to a new neighbor without it asking.
+	static final int ANNOUNCE = -1;
+	// Request number of peer responses sent back to a node that announced itself, with the peers we know around it.
+	static final int NEIGHBORS = -2;
 
-	// The position of the node from 0 to 1.
+	// Maximum number of closer peers returned in a find response.
+	static final int FINDPEERS = 3;
+
+	// The position of the node from 0 to 1. This is the first of its positions.
 	float position;
+	// Every position the node has on the ring. It owns the keys nearest to any of them, so keys go to the nearest position
+	// of any node and routing works the same as with one position per node.
+	float positions[];
+	// Most positions a node can have.
+	static final int MAX_POSITIONS = 64;
 
-	// Our list of peers in order from lowest to highest and satisfying the peer properties 
-	// (may contain nulls and neighboring duplicates).
+	// Our lists of peers, one for each of our positions (peer[v] is around positions[v]).
+	// Each is in order from lowest to highest and satisfies the peer properties (may contain nulls and neighboring duplicates).
 	// See getPeerTargets for generation. use peer_list for iterating over peers.
-	Peer[] peer;
-	ArrayList<Peer> peer_list ; // Same as peer, but no nulls or duplicates.
+	Peer[][] peer;
+	ArrayList<Peer> peer_list ; // Every peer in peer in order of position, with no nulls or duplicates.
+
+	HashStore table; // Our subset of the distributed hashtable. See setStore to use something other than a MapStore.
+	KeyIndex index; // The keys in table by position. Keep it in step with store and unstore.
+	LinkedHashMap<Integer, PendingRequest> pending_request; // Keep track of open requests(requestID -> pending request) oldest first.
+	LinkedHashMap<Integer, PeerFan> pending_peer_request;// Keep track of open peer requests(requestID > pending request) oldest first.
+	int requestID = 0 ; // Number requests so we can tell them apart easily.
+	// The last message decoded of each type. Handlers are done with one before the next is decoded, so it's reused.
+	private MessageSchema.Fields decoded[] = new MessageSchema.Fields[ByteStream.TYPE_MASK+1];
 
-	HashMap<String, String> table; // Our subset of the distributed hashtable.
-	HashMap<String, ArrayList<String>> pending_request; // Keep track of open requests(key -> ID's requesting).
-	HashMap<Integer, PeerFan> pending_peer_request;// Keep track of open peer requests(requestID > pending request)
-	int requestID = 0 ; // Number peer requests so we can tell them apart easily.
+	// Forwarded requests that time out (in network time) are retried with the next closest peer.
+	// Timeouts come from each peer's observed round trip times the way TCP does it,
+	// since a response has to come back from the end of the rest of the path. request_timeout is used until a peer has any.
+	double request_timeout = 20;
+	static final double MIN_REQUEST_TIMEOUT = 0.5;
+	static final int MAX_REQUEST_RETRIES = 2;
+	HashMap<String, double[]> round_trip; // Peer address -> {smoothed round trip time, round trip variation}.
+	double next_timeout_check = 0; // Forwarded requests are only checked for timeouts every so often.
+	// Limit on open forwarded requests. The oldest is dropped to make room for a new one.
+	static final int MAX_PENDING_REQUESTS = 1024;
+
+	// Requests are passed to a peer nearly as close to the key as the closest peer if our link to the closest one is
+	// backed up (see Node.queueDelay). Nearly as close means giving up at most load_slack of the progress toward the key
+	// the closest peer would make. Set to 0 to always use the closest peer.
+	double load_slack = 0.5;
+	// Queue delay (in network time) the link to a peer needs over the link to another before the other is used instead.
+	static final double CONGESTION_MARGIN = 0.05;
+
+	// Network time a new node gives its peer request before asking again.
+	// Each node a peer request fans out through passes on a share of the time it was given, so sub-requests give up
+	// and answer with what they have before the node waiting on them does.
+	double peer_request_timeout = 30;
+	static final float PEER_TIMEOUT_SHARE = 0.8f;
+	// Limit on open fanned out peer requests. The oldest is answered with what it has to make room for a new one.
+	static final int MAX_PENDING_PEER_REQUESTS = 256;
+	volatile String join_address; // The node our own peer request was sent to. Set last, since the node's thread is already running.
+	double join_sent; // Time our own peer request was last sent.
 
 	// Initializes a HashNode wit the given address, key position, and initial network connection.
 	// Also add the node to the network with the given position and rate, and send an initial peer request.
 	public HashNode(String address, float pos, String connect, Network net, float x, float y, float rate){
-		super(address);
-		position = pos;
-		peer = new Peer[PEERDEPTH*2+2];
-		peer_list = new ArrayList<Peer>();
-		table = new HashMap<String, String>();
-		pending_request = new HashMap<String, ArrayList<String>>();
-		pending_peer_request = new HashMap<Integer, PeerFan>();
+		this(address, new float[]{pos}, connect, net, x, y, rate);
+	}
+
+	// Initializes a HashNode with several positions on the ring. See randomPositions.
+	public HashNode(String address, float pos[], String connect, Network net, float x, float y, float rate){
+		this(address, pos);
 		// Add to network.
 		net.addNode(this, x, y, rate);
 		// Request peer list.
-		send(connect, makePeerRequest(address, pos, 0, 1, requestID));
-		requestID++;
+		join(connect);
+	}
+
+	// Initializes a HashNode without adding it to a network or joining.
+	// Use this with bootstrap to build a ring directly, then add the nodes to the network with Network.addNode.
+	public HashNode(String address, float pos){
+		this(address, new float[]{pos});
+	}
+
+	// Initializes a HashNode with several positions on the ring without adding it to a network or joining.
+	public HashNode(String address, float pos[]){
+		super(address);
+		positions = pos.clone();
+		position = positions[0];
+		peer = new Peer[positions.length][PEERDEPTH*2+2];
+		peer_list = new ArrayList<Peer>();
+		table = new MapStore();
+		index = new KeyIndex();
+		pending_request = new LinkedHashMap<Integer, PendingRequest>();
+		pending_peer_request = new LinkedHashMap<Integer, PeerFan>();
+		round_trip = new HashMap<String, double[]>();
+	}
+	// For Network.restore, which fills in the rest with restore.
+	private HashNode(String address){
+		this(address, new float[]{0});
+	}
+
+	// Sends a peer request for each of this node's positions to the node it's joining through.
+	private void join(String connect){
+		join_sent = getTime();
+		for(int v=0;v<positions.length;v++){
+			send(connect, makePeerRequest(address, positions[v], 0, 1, requestID, (float)peer_request_timeout));
+			requestID++;
+		}
+		join_address = connect;
+	}
+
+	// Returns random positions for a node with the given download rate, one for every rate_per_position of rate.
+	// A node owns about as much of the key space as its share of all positions, so this makes load follow bandwidth.
+	// Many positions per node also evens out the gaps between them (see PlacementBenchmark).
+	public static float[] randomPositions(float rate, float rate_per_position, Random rand){
+		int amount = Math.max(1, Math.min(MAX_POSITIONS, Math.round(rate / rate_per_position)));
+		float pos[] = new float[amount];
+		for(int k=0;k<amount;k++){
+			pos[k] = rand.nextFloat();
+		}
+		return pos;
+	}
+
+	// Changes the storage used for this node's part of the table, moving over anything already stored.
+	// Call before adding the node to a network or from its own thread, since the table isn't synchronized.
+	public void setStore(HashStore store){
+		ArrayList<String> keys = table.keys();
+		for(int k=0;k<keys.size();k++){
+			store.put(keys.get(k), table.get(keys.get(k)));
+		}
+		table = store;
+	}
+
+	// Writes the node's positions, peers, table, timing and open requests for Network.checkpoint.
+	// The table's items are saved but not what kind of store holds them, so restore puts them in a MapStore.
+	public void save(ByteStream s){
+		super.save(s);
+		s.writeVarInt(positions.length);
+		for(int v=0;v<positions.length;v++){
+			s.writeFloat(positions[v]);
+			writePeers(s, peer[v]);
+		}
+		ArrayList<String> keys = table.keys();
+		s.writeVarInt(keys.size());
+		for(int k=0;k<keys.size();k++){
+			s.writeString(keys.get(k));
+			s.writeString(table.get(keys.get(k)));
+		}
+		s.writeInt(requestID);
+		s.writeDouble(request_timeout);
+		s.writeDouble(load_slack);
+		s.writeDouble(peer_request_timeout);
+		s.writeDouble(next_timeout_check);
+		s.writeString(join_address == null ? "" : join_address);
+		s.writeDouble(join_sent);
+		s.writeVarInt(round_trip.size());
+		Iterator<String> r = round_trip.keySet().iterator();
+		while(r.hasNext()){
+			String a = r.next();
+			double rt[] = round_trip.get(a);
+			s.writeString(a);
+			s.writeDouble(rt[0]);
+			s.writeDouble(rt[1]);
+		}
+		// Parts of a split multi request share its batch, so batches are written once and referred to by number.
+		IdentityHashMap<PendingBatch, Integer> batches = new IdentityHashMap<PendingBatch, Integer>();
+		ArrayList<PendingBatch> batch = new ArrayList<PendingBatch>();
+		Iterator<PendingRequest> p = pending_request.values().iterator();
+		while(p.hasNext()){
+			PendingBatch b = p.next().batch;
+			if(b != null && !batches.containsKey(b)){
+				batches.put(b, batch.size());
+				batch.add(b);
+			}
+		}
+		s.writeVarInt(batch.size());
+		for(int k=0;k<batch.size();k++){
+			PendingBatch b = batch.get(k);
+			s.writeString(b.from);
+			s.writeInt(b.fromID);
+			s.writeInt(b.parts);
+			s.writeVarInt(b.key.size());
+			for(int j=0;j<b.key.size();j++){
+				s.writeString(b.key.get(j));
+				s.writeString(b.value.get(j));
+			}
+		}
+		s.writeVarInt(pending_request.size());
+		Iterator<Integer> i = pending_request.keySet().iterator();
+		while(i.hasNext()){
+			int id = i.next();
+			PendingRequest pr = pending_request.get(id);
+			s.writeInt(id);
+			s.writeString(pr.from == null ? "" : pr.from);
+			s.writeInt(pr.fromID);
+			s.writeFloat(pr.keypos);
+			s.writeBytes(pr.message);
+			s.writeVarInt(pr.tried.size());
+			for(int k=0;k<pr.tried.size();k++){
+				s.writeString(pr.tried.get(k));
+			}
+			s.writeDouble(pr.sent);
+			s.writeDouble(pr.timeout);
+			s.writeInt(pr.retries);
+			s.writeInt(pr.batch == null ? -1 : batches.get(pr.batch));
+		}
+		s.writeVarInt(pending_peer_request.size());
+		i = pending_peer_request.keySet().iterator();
+		while(i.hasNext()){
+			int id = i.next();
+			PeerFan pf = pending_peer_request.get(id);
+			s.writeInt(id);
+			s.writeString(pf.from);
+			s.writeFloat(pf.cpos);
+			s.writeInt(pf.requests);
+			s.writeInt(pf.responses);
+			writePeers(s, pf.best_peers);
+			s.writeInt(pf.responseID);
+			s.writeDouble(pf.deadline);
+		}
+	}
+
+	// Reads what save wrote.
+	public void restore(ByteStream s){
+		super.restore(s);
+		positions = new float[s.readVarInt()];
+		peer = new Peer[positions.length][];
+		for(int v=0;v<positions.length;v++){
+			positions[v] = s.readFloat();
+			peer[v] = readPeers(s);
+		}
+		position = positions[0];
+		updatePeerList();
+		int items = s.readVarInt();
+		for(int k=0;k<items;k++){
+			String key = s.readString();
+			store(key, getPosition(key), s.readString());
+		}
+		requestID = s.readInt();
+		request_timeout = s.readDouble();
+		load_slack = s.readDouble();
+		peer_request_timeout = s.readDouble();
+		next_timeout_check = s.readDouble();
+		String join = s.readString();
+		join_address = join.equals("") ? null : join;
+		join_sent = s.readDouble();
+		int peers = s.readVarInt();
+		for(int k=0;k<peers;k++){
+			String a = s.readString();
+			round_trip.put(a, new double[]{s.readDouble(), s.readDouble()});
+		}
+		PendingBatch batch[] = new PendingBatch[s.readVarInt()];
+		for(int k=0;k<batch.length;k++){
+			batch[k] = new PendingBatch(s.readString(), s.readInt(), s.readInt());
+			int found = s.readVarInt();
+			for(int j=0;j<found;j++){
+				batch[k].add(s.readString(), s.readString());
+			}
+		}
+		int pending = s.readVarInt();
+		for(int k=0;k<pending;k++){
+			int id = s.readInt();
+			String from = s.readString();
+			PendingRequest pr = new PendingRequest(from.equals("") ? null : from, s.readInt(), s.readFloat(), s.readBytes());
+			int tried = s.readVarInt();
+			for(int j=0;j<tried;j++){
+				pr.tried.add(s.readString());
+			}
+			pr.sent = s.readDouble();
+			pr.timeout = s.readDouble();
+			pr.retries = s.readInt();
+			int b = s.readInt();
+			pr.batch = b < 0 ? null : batch[b];
+			pending_request.put(id, pr);
+		}
+		pending = s.readVarInt();
+		for(int k=0;k<pending;k++){
+			int id = s.readInt();
+			PeerFan pf = new PeerFan(s.readString(), s.readFloat(), s.readInt(), 0, 0);
+			pf.responses = s.readInt();
+			pf.best_peers = readPeers(s);
+			pf.responseID = s.readInt();
+			pf.deadline = s.readDouble();
+			pending_peer_request.put(id, pf);
+		}
+	}
+
+	// Writes a peer list, with an empty address for each empty slot like peer responses.
+	private static void writePeers(ByteStream s, Peer p[]){
+		s.writeVarInt(p.length);
+		for(int k=0;k<p.length;k++){
+			if(p[k] == null){
+				s.writeString("");
+			} else {
+				s.writeString(p[k].address);
+				s.writeFloat(p[k].position);
+			}
+		}
+	}
+
+	private static Peer[] readPeers(ByteStream s){
+		Peer p[] = new Peer[s.readVarInt()];
+		for(int k=0;k<p.length;k++){
+			String address = s.readString();
+			if(!address.equals("")){
+				p[k] = new Peer(address, s.readFloat());
+			}
+		}
+		return p;
 	}
 
 	// Returns true if the node's peer_list has been initialized.
@@ -61,10 +388,12 @@ public class HashNode extends Node{
 	public void run() {
 		while(!stopped){
 			// Constantly process received messages.
-			while(message_queue.peek() != null){
-				Message m = message_queue.poll();
+			Message m;
+			while((m = nextMessage()) != null){
 				processMessage(m);
 			} 
+			checkTimeouts();
+			safePoint();
 			try{Thread.sleep(2); } catch(InterruptedException e){}
 		}
 	}
@@ -72,109 +401,485 @@ public class HashNode extends Node{
 	//Processes a message by passing to the relevant processing function by type.
 	public void processMessage(Message m){
 		// The first byte in the message says the type of message
-		byte messagetype = m.message[0];
-		if(messagetype == REQUEST){
-			System.out.println( address +" got request from " + m.from);
-			processRequest(m);
-		}else if(messagetype == RESPONSE){
-			System.out.println( address +" got response from " + m.from);
-			processResponse(m);
-		}else if(messagetype == STOREREQUEST){
-			System.out.println( address +" got store request from " + m.from);
-			processStoreRequest(m);
-		}else if(messagetype == PEERREQUEST){
-			//System.out.println( address +" got peer request from " + m.from);
-			processPeerRequest(m);
-		}else if(messagetype == PEERRESPONSE){
-			System.out.println( address +" got peer response from " + m.from);
-			processPeerResponse(m);
+		switch(ByteStream.type(m.message)){
+			case REQUEST:
+				log(EventSink.DEBUG, "got request from", m.from);
+				processRequest(m);
+				break;
+			case RESPONSE:
+				log(EventSink.DEBUG, "got response from", m.from);
+				processResponse(m);
+				break;
+			case STOREREQUEST:
+				log(EventSink.DEBUG, "got store request from", m.from);
+				processStoreRequest(m);
+				break;
+			case PEERREQUEST:
+				processPeerRequest(m);
+				break;
+			case PEERRESPONSE:
+				log(EventSink.DEBUG, "got peer response from", m.from);
+				processPeerResponse(m);
+				break;
+			case FINDREQUEST:
+				processFindRequest(m);
+				break;
+			case RANGEREQUEST:
+				processRangeRequest(m);
+				break;
+			case MULTIREQUEST:
+				processMultiRequest(m);
+				break;
+			case MULTIRESPONSE:
+				processMultiResponse(m);
+				break;
+			case MULTISTORE:
+				processMultiStore(m);
+				break;
+		}
+	}
+
+	// Decodes a message with the schema for its type, into the fields last decoded with it.
+	// Each process method names its own schema, so every call site only ever sees one and the JIT can specialize it.
+	private MessageSchema.Fields decode(MessageSchema schema, Message m){
+		MessageSchema.Fields last = decoded[schema.type];
+		MessageSchema.Fields f = schema.decode(m.message, last);
+		if(f != last){
+			decoded[schema.type] = f;
 		}
+		return f;
 	}
 
 	// Processes a request to fetch an item from the table.
 	private void processRequest(Message m) {
 		String from = m.from;
+		// Read by hand rather than decoded, since every hop reads every request. See REQUEST_FIELDS for the fields.
 		ByteStream stream = new ByteStream(m.message);
-		stream.readByte();//Discard the type since we already checked it.
+		stream.readType();
+		int fromID = stream.readInt();
 		String key = stream.readString();
 		float keypos = getPosition(key);
 		
-		//Find the nearest node to th key among known nodes.
-		float mindist = (float)Math.abs(position - keypos);
-		String minid = address;
-		for(int k=0; k<peer_list.size(); k++){
-			Peer p = peer_list.get(k);
-			float dist = (float)Math.abs(p.position - keypos);
-			if(dist < mindist){
-				mindist = dist;
-				minid = p.address;
-			}
-		}
+		//Find the nearest node to the key among known nodes.
+		Peer next = nextHop(keypos, null);
 
 		// If this node is the nearest amongst its peers then it owns the object.
-		if(address.equals(minid)){
+		if(next == null){
 			// Send the response with the value immediately.
 			String value = table.get(key);
-			byte[] response = makeResponse(key, value); // If null value, sends empty string.
+			byte[] response = makeResponse(fromID, key, value); // If null value, sends empty string.
 			send(from, response);
-		} else if(!pending_request.containsKey(key)) {
-			// If not the owner of the object and we haven't already requested it, pass request to nearest keyed peer.
-			send(minid, m.message);
-			// Remember who sent it to us, so we know what to do with the response.
-			ArrayList<String> requesters = pending_request.get(key);
-			if(requesters == null){
-				requesters = new ArrayList<String> ();
-				requesters.add(from);
-				pending_request.put(key, requesters);
+		} else {
+			// If not the owner of the object pass request to nearest keyed peer under our own request ID.
+			forwardRequest(new PendingRequest(from, fromID, keypos, m.message), next);
+		}
+	}
+
+	// Forwards a request to the given peer under our own request ID and keeps track of it until it's answered.
+	private void forwardRequest(PendingRequest pr, Peer next){
+		if(pending_request.size() >= MAX_PENDING_REQUESTS){
+			// Drop the oldest open request to make room. Its requester will time out and retry elsewhere.
+			Iterator<Integer> oldest = pending_request.keySet().iterator();
+			PendingRequest dropped = pending_request.get(oldest.next());
+			oldest.remove();
+			dropped.drop();
+		}
+		pr.message = withRequestID(pr.message, requestID);
+		pr.forward(next);
+		// Remember who sent it to us, so we know what to do with the response.
+		pending_request.put(requestID, pr);
+		requestID++;
+	}
+
+	// Processes a request for several items from the table.
+	// Keys are grouped by the peer each one goes to next, so each peer gets a single request for all of its keys.
+	// If they all go to the same peer the request is passed on whole like a single request, otherwise the parts' responses
+	// are merged into one response once they're all back or given up on.
+	private void processMultiRequest(Message m) {
+		MessageSchema.Fields f = decode(MULTIREQUEST_FIELDS, m);
+		int fromID = f.getInt(0);
+		String key[] = f.getStrings(1);
+		LinkedHashMap<String, ArrayList<Integer>> hops = splitByNextHop(key);
+		ArrayList<Integer> mine = hops.remove(address);
+		if(mine == null && hops.size() == 1){
+			String next = hops.keySet().iterator().next();
+			forwardRequest(new PendingRequest(m.from, fromID, getPosition(key[0]), m.message), new Peer(next));
+			return;
+		}
+		PendingBatch batch = new PendingBatch(m.from, fromID, hops.size());
+		if(mine != null){
+			for(int k=0;k<mine.size();k++){
+				String owned = key[mine.get(k)];
+				batch.add(owned, table.get(owned));
+			}
+		}
+		if(hops.size() == 0){
+			batch.respond();
+			return;
+		}
+		Iterator<String> h = hops.keySet().iterator();
+		while(h.hasNext()){
+			String next = h.next();
+			String part[] = select(key, hops.get(next));
+			PendingRequest pr = new PendingRequest(null, 0, getPosition(part[0]), makeMultiRequest(part, 0));
+			pr.batch = batch;
+			forwardRequest(pr, new Peer(next));
+		}
+	}
+
+	// Processes a response to a multi request. It's either relayed whole or merged into the response of a split request.
+	private void processMultiResponse(Message m) {
+		int id = requestID(m.message);
+		PendingRequest pr = pending_request.remove(id);
+		if(pr == null){
+			if(id < 0 || id >= requestID){
+				log(EventSink.WARN, "got a multi response it didn't ask for from", m.from);
+			}
+			return;
+		}
+		if(pr.retries == 0){
+			updateRoundTrip(pr.tried.get(0), getTime() - pr.sent);
+		}
+		if(pr.batch == null){
+			send(pr.from, withRequestID(m.message, pr.fromID));
+		} else {
+			// Only decoded here, since a response relayed whole doesn't need to be.
+			MessageSchema.Fields f = decode(MULTIRESPONSE_FIELDS, m);
+			String key[] = f.getStrings(1), value[] = f.getValues(1);
+			for(int k=0;k<key.length;k++){
+				pr.batch.add(key[k], value[k]);
+			}
+			pr.batch.partDone();
+		}
+	}
+
+	// Processes a request to store several items. Owned items are stored and the rest are passed on grouped by next hop.
+	private void processMultiStore(Message m) {
+		MessageSchema.Fields f = decode(MULTISTORE_FIELDS, m);
+		String key[] = f.getStrings(0);
+		String value[] = f.getValues(0);
+		LinkedHashMap<String, ArrayList<Integer>> hops = splitByNextHop(key);
+		Iterator<String> h = hops.keySet().iterator();
+		while(h.hasNext()){
+			String next = h.next();
+			ArrayList<Integer> part = hops.get(next);
+			if(next.equals(address)){
+				for(int k=0;k<part.size();k++){
+					store(key[part.get(k)], getPosition(key[part.get(k)]), value[part.get(k)]);
+				}
+			} else if(hops.size() == 1){
+				send(next, m.message); // Nothing to split, so pass it on as is.
 			} else {
-				requesters.add(from);
+				send(next, makeMultiStore(select(key, part), select(value, part)));
 			}
 		}
 	}
 
+	// Groups the indices of keys by the address of the peer each key is routed to next.
+	// Keys this node owns are grouped under its own address.
+	private LinkedHashMap<String, ArrayList<Integer>> splitByNextHop(String key[]){
+		LinkedHashMap<String, ArrayList<Integer>> hops = new LinkedHashMap<String, ArrayList<Integer>>();
+		for(int k=0;k<key.length;k++){
+			Peer next = nextHop(getPosition(key[k]), null);
+			String to = next == null ? address : next.address;
+			ArrayList<Integer> part = hops.get(to);
+			if(part == null){
+				part = new ArrayList<Integer>();
+				hops.put(to, part);
+			}
+			part.add(k);
+		}
+		return hops;
+	}
+
+	// Returns the given elements of s.
+	private static String[] select(String s[], ArrayList<Integer> index){
+		String selected[] = new String[index.size()];
+		for(int k=0;k<selected.length;k++){
+			selected[k] = s[index.get(k)];
+		}
+		return selected;
+	}
+
 	// Processes a response to a request to fetch an item from the table.
 	private void processResponse(Message m) {
-		ByteStream stream = new ByteStream(m.message);
-		stream.readByte();//Discard the type since we already checked it.
-		String key = stream.readString();
-		// Pass the message to everyone who has requested it.
-		ArrayList<String> requesters = pending_request.remove(key);
-		if(requesters == null){
-			System.err.println(address +" - Got a response it didn't ask for!");
+		int id = requestID(m.message);
+		// Pass the message back to whoever sent us the request with their request ID.
+		PendingRequest pr = pending_request.remove(id);
+		if(pr != null){
+			if(pr.retries == 0){
+				// Only time requests that were sent once, since a response to a retried request could be for either send.
+				updateRoundTrip(pr.tried.get(0), getTime() - pr.sent);
+			}
+			send(pr.from, withRequestID(m.message, pr.fromID));
+		} else if(id < 0 || id >= requestID){
+			// Late responses to requests that were retried or dropped are expected, responses to IDs we never used are not.
+			log(EventSink.WARN, "got a response it didn't ask for from", m.from);
+		}
+	}
+
+	// Processes an iterative request. The requester drives the lookup, so no state is kept here.
+	// If this node owns the key it responds with the value, otherwise it responds with the known peers closest to the key.
+	private void processFindRequest(Message m) {
+		MessageSchema.Fields f = decode(FINDREQUEST_FIELDS, m);
+		int fromID = f.getInt(0);
+		String key = f.getString(1);
+		float keypos = getPosition(key);
+		// Owns the key exactly when processRequest would answer it here.
+		if(nextHop(keypos, null) == null){
+			send(m.from, makeResponse(fromID, key, table.get(key)));
 		} else {
-			for(int k=0;k<requesters.size();k++){
-				send(requesters.get(k), m.message);
+			send(m.from, makeFindResponse(fromID, key, closerPeers(keypos, FINDPEERS)));
+		}
+	}
+
+	// Processes a request for a range of keys. Only meaningful with an ordered placement (see KeyPlacement.ordered).
+	// It's routed like a store request to the owner of the start key, which passes it on to the next node up the ring
+	// if the range continues past what it owns, and then sends its part of the range straight to the requester in pages.
+	private void processRangeRequest(Message m) {
+		MessageSchema.Fields f = decode(RANGEREQUEST_FIELDS, m);
+		int requestNumber = f.getInt(0);
+		String replyto = f.getString(1);
+		String start = f.getString(2);
+		String end = f.getString(3);
+		int pagesize = f.getInt(4);
+		int sequence = f.getInt(5); // Sequence number of the first page we send.
+		float segment = f.getFloat(6); // Which of our positions the request was passed along the ring to, or -1 if routed.
+
+		if(segment < 0){
+			segment = getPosition(start);
+			Peer next = closestPeer(segment, null);
+			if(next != null){
+				send(next.address, m.message);
+				return;
 			}
 		}
+		// Find our part of the range. Keys nearest our other positions are in other parts of the ring, so only the arc
+		// nearest this one is read from the index.
+		int v = nearestPosition(segment);
+		float low = 0, high = Float.POSITIVE_INFINITY;
+		for(int j=0;j<positions.length;j++){
+			if(positions[j] < positions[v]){
+				low = Math.max(low, (positions[j] + positions[v]) * 0.5f);
+			} else if(positions[j] > positions[v]){
+				high = Math.min(high, (positions[v] + positions[j]) * 0.5f);
+			}
+		}
+		ArrayList<String> found = index.range(start, getPosition(start), end, low, high);
+		int pages = (found.size() + pagesize - 1) / pagesize;
+		// Pass the request on first, so the next node works on its part while we send ours.
+		Peer up = peer[v][PEERDEPTH+1];
+		boolean last = up == null || getPosition(end) <= (positions[v] + up.position) * 0.5f;
+		if(!last){
+			send(up.address, makeRangeRequest(requestNumber, replyto, start, end, pagesize, sequence + pages, up.position));
+		} else if(pages == 0){
+			pages = 1; // The requester needs to hear that the range is done even if we had nothing.
+		}
+		for(int p=0;p<pages;p++){
+			int from = p*pagesize, to = Math.min(found.size(), from + pagesize);
+			String value[] = new String[to-from];
+			for(int k=from;k<to;k++){
+				value[k-from] = table.get(found.get(k));
+			}
+			send(replyto, makeRangeResponse(requestNumber, sequence + p, last && p == pages-1,
+					found.subList(from, to).toArray(new String[to-from]), value));
+		}
 	}
 
 	// Processes a request to store an item in the table
 	private void processStoreRequest(Message m) {
+		// Only the key is needed to route it, so the value is only read by the owner.
+		// Read by hand rather than decoded, since every hop reads every store. See STOREREQUEST_FIELDS for the fields.
 		ByteStream stream = new ByteStream(m.message);
-		stream.readByte();//Discard the type since we already checked it.
+		stream.readType();
 		String key = stream.readString();
-		String value = stream.readString();
 		float keypos = getPosition(key);
 		//Find the nearest node among known nodes.
-		float mindist = (float)Math.abs(position - keypos);
-		String minid = address;
+		Peer next = nextHop(keypos, null);
+
+		// If this node owns the object.
+		if(next == null){
+			// Save the value into its table.
+			store(key, keypos, stream.readString());
+		} else {
+			// If not the owner of object pass request to nearest keyed peer.
+			send(next.address, m.message);
+		}
+	}
+
+	// Stores an item in the table and the index. keypos is the key's position.
+	private void store(String key, float keypos, String value){
+		table.put(key, value);
+		index.add(keypos, key);
+	}
+
+	// Removes an item from the table and the index and returns its value.
+	private String unstore(String key){
+		index.remove(getPosition(key), key);
+		return table.remove(key);
+	}
+
+	// Adds a round trip time measured through a peer to its estimate.
+	private void updateRoundTrip(String peeraddress, double sample){
+		double rt[] = round_trip.get(peeraddress);
+		if(rt == null){
+			round_trip.put(peeraddress, new double[]{sample, sample*0.5});
+		} else {
+			rt[1] = 0.75*rt[1] + 0.25*Math.abs(sample - rt[0]);
+			rt[0] = 0.875*rt[0] + 0.125*sample;
+		}
+	}
+
+	// Returns how long to wait for a response to a request forwarded to the given peer.
+	private double requestTimeout(String peeraddress){
+		double rt[] = round_trip.get(peeraddress);
+		if(rt == null){
+			return request_timeout;
+		}
+		return Math.max(MIN_REQUEST_TIMEOUT, rt[0] + 4*rt[1]);
+	}
+
+	// Returns the index of our position nearest to pos.
+	private int nearestPosition(float pos){
+		int nearest = 0;
+		for(int v=1;v<positions.length;v++){
+			if(Math.abs(positions[v] - pos) < Math.abs(positions[nearest] - pos)){
+				nearest = v;
+			}
+		}
+		return nearest;
+	}
+
+	// Returns the distance from keypos to the nearest of our positions.
+	private float selfDistance(float keypos){
+		return Math.abs(positions[nearestPosition(keypos)] - keypos);
+	}
+
+	// Returns true if the peer is closer to keypos than this node is (selfdist away) and isn't in exclude.
+	// This node owns keypos when no peer is, and closestPeer, nextHop and closerPeers all go by it, so recursive and
+	// iterative requests agree on who the owner is.
+	// Our own positions can be in the peer list, but they're never closer than ourselves, so they never are.
+	private boolean closer(Peer p, float keypos, float selfdist, ArrayList<String> exclude){
+		return Math.abs(p.position - keypos) < selfdist && (exclude == null || !exclude.contains(p.address));
+	}
+
+	// Returns the peer nearest to keypos that is closer than this node, or null if this node is the nearest.
+	// Peers in exclude are skipped, so retries can route around peers that didn't answer.
+	private Peer closestPeer(float keypos, ArrayList<String> exclude){
+		float mindist = selfDistance(keypos);
+		Peer min = null;
+		for(int k=0; k<peer_list.size(); k++){
+			Peer p = peer_list.get(k);
+			if(closer(p, keypos, mindist, exclude)){
+				mindist = Math.abs(p.position - keypos);
+				min = p;
+			}
+		}
+		return min;
+	}
+
+	// Returns the peer to pass a request for keypos on to, or null if this node owns it.
+	// This is the closest peer unless our link to it is congested and the link to another peer that's nearly as close
+	// isn't (see load_slack).
+	// Any peer closer than this node still gets the request nearer to the owner, so requests always arrive.
+	private Peer nextHop(float keypos, ArrayList<String> exclude){
+		Peer closest = closestPeer(keypos, exclude);
+		if(closest == null || load_slack <= 0){
+			return closest;
+		}
+		double delay = queueDelay(closest.address);
+		if(delay <= CONGESTION_MARGIN){
+			return closest;
+		}
+		float selfdist = selfDistance(keypos);
+		float closestdist = Math.abs(closest.position - keypos);
+		float limit = (float)(closestdist + (selfdist - closestdist) * load_slack);
+		Peer next = closest;
 		for(int k=0; k<peer_list.size(); k++){
 			Peer p = peer_list.get(k);
-			float dist = (float)Math.abs(p.position - keypos);
-			if(dist < mindist){
-				mindist = dist;
-				minid = p.address;
+			if(closer(p, keypos, selfdist, exclude) && Math.abs(p.position - keypos) <= limit && !p.address.equals(next.address)){
+				double pdelay = queueDelay(p.address);
+				if(pdelay + CONGESTION_MARGIN < delay){
+					next = p;
+					delay = pdelay;
+				}
 			}
+		}
+		return next;
+	}
 
+	// Returns up to amount peers that are closer to keypos than this node, closest first.
+	// It's empty exactly when closestPeer and nextHop return null.
+	private Peer[] closerPeers(float keypos, int amount){
+		float selfdist = selfDistance(keypos);
+		ArrayList<Peer> closer = new ArrayList<Peer>();
+		for(int k=0; k<peer_list.size(); k++){
+			Peer p = peer_list.get(k);
+			float dist = Math.abs(p.position - keypos);
+			if(closer(p, keypos, selfdist, null)){
+				// Insertion sort since the lists are tiny.
+				int j = closer.size();
+				while(j > 0 && Math.abs(closer.get(j-1).position - keypos) > dist){
+					j--;
+				}
+				closer.add(j, p);
+			}
+		}
+		while(closer.size() > amount){
+			closer.remove(closer.size()-1);
 		}
+		return closer.toArray(new Peer[closer.size()]);
+	}
 
-		// If this node owns the object.
-		if(address.equals(minid)){
-			// Save the value into its table.
-			table.put(key, value);
-		} else {
-			// If not the owner of object pass request to nearest keyed peer.
-			send(minid, m.message);
+	// Retries forwarded requests that have timed out and drops them once they run out of retries or peers.
+	// Answers fanned out peer requests that have timed out with the peers found so far and retries our own join.
+	private void checkTimeouts(){
+		double time = getTime();
+		if(pending_peer_request.size() > 0){
+			// Deadlines depend on each request's time budget, so these aren't in order and all need to be checked.
+			Iterator<PeerFan> f = pending_peer_request.values().iterator();
+			while(f.hasNext()){
+				PeerFan pf = f.next();
+				if(time > pf.deadline){
+					f.remove();
+					pf.respond();
+				}
+			}
+		}
+		if(join_address != null && !ready() && time - join_sent > peer_request_timeout){
+			join(join_address);
+		}
+		if(pending_request.size() == 0 || time < next_timeout_check){
+			return;
+		}
+		next_timeout_check = time + MIN_REQUEST_TIMEOUT*0.5;
+		// Each peer has its own timeout, so all forwarded requests need to be checked.
+		ArrayList<Integer> expired = new ArrayList<Integer>();
+		Iterator<Integer> i = pending_request.keySet().iterator();
+		while(i.hasNext()){
+			Integer id = i.next();
+			PendingRequest pr = pending_request.get(id);
+			// The last try is kept around for at least request_timeout, since a late response is better than none.
+			double timeout = pr.retries < MAX_REQUEST_RETRIES ? pr.timeout : Math.max(pr.timeout, request_timeout);
+			if(time - pr.sent > timeout){
+				expired.add(id);
+			}
+		}
+		for(int k=0;k<expired.size();k++){
+			Integer id = expired.get(k);
+			PendingRequest pr = pending_request.remove(id);
+			Peer next = pr.retries < MAX_REQUEST_RETRIES ? nextHop(pr.keypos, pr.tried) : null;
+			if(next != null){
+				pr.retries++;
+				pr.forward(next);
+				pending_request.put(id, pr); // Reinserting keeps the table in order of age for dropping the oldest.
+			} else if(pr.retries < MAX_REQUEST_RETRIES){
+				// Nobody else to try, so give the peer we have the time a last try gets.
+				pr.retries = MAX_REQUEST_RETRIES;
+				pending_request.put(id, pr);
+			} else {
+				pr.drop();
+			}
 		}
 	}
 
@@ -183,32 +888,32 @@ public class HashNode extends Node{
 	// This nodes will also consider adding the new node to its peer list.
 	private void processPeerRequest(Message m) {
 		String from = m.from;
-		ByteStream stream = new ByteStream(m.message);
-		stream.readByte();//Discard the type since we already checked it.
-		String cid = stream.readString(); // ID of node requesting peers.
-		float cpos  = stream.readFloat(); // Location of node requesting peers.
+		MessageSchema.Fields f = decode(PEERREQUEST_FIELDS, m);
+		String cid = f.getString(0); // ID of node requesting peers.
+		float cpos  = f.getFloat(1); // Location of node requesting peers.
 		// Range over which this node is responsible.
-		float min = stream.readFloat();
-		float max = stream.readFloat();
-		int responseID = stream.readInt();
-		System.out.println( address +" got peer request from " + m.from + "(" + min +"," + max+")");
+		float min = f.getFloat(2);
+		float max = f.getFloat(3);
+		int responseID = f.getInt(4);
+		float timeout = f.getFloat(5); // Time the sender will wait for our response.
+		if(logging(EventSink.DEBUG)){
+			log(EventSink.DEBUG, "got peer request from", m.from + " (" + min +"," + max+")");
+		}
 		int requests_sent = 0 ;
-		// Distribute the region over my peers.
-		for(int k=0;k<peer_list.size();k++){
+		// Distribute the region over my peers. Our own positions are included, since the space nearest them is ours.
+		ArrayList<Peer> known = knownPositions();
+		for(int k=0;k<known.size();k++){
+			Peer p = known.get(k);
+			if(p.address.equals(address)){
+				continue;
+			}
 			float kmin = 0, kmax=1;
-			float kpos = peer_list.get(k).position;
 			// Get region this peer covers in the space
 			if( k > 0 ){
-				kmin = (peer_list.get(k-1).position + kpos)*.5f;
-			}
-			if(k < peer_list.size()-1){
-				kmax = (peer_list.get(k+1).position + kpos)*.5f;
+				kmin = (known.get(k-1).position + p.position)*.5f;
 			}
-			// Make sure it doesn't overlap the owned space of this node.
-			if( kpos < position){
-				kmax = Math.min(kmax, (position+kpos)*0.5f);
-			} else {
-				kmin = Math.max(kmin, (position+kpos)*0.5f);
+			if(k < known.size()-1){
+				kmax = (known.get(k+1).position + p.position)*.5f;
 			}
 			// Intersect this peer's controlled region with the requested region.
 			kmax = Math.min(kmax, max);
@@ -216,132 +921,328 @@ public class HashNode extends Node{
 
 			// If there's an overlap then we need to make a request to that peer.
 			if(kmax > kmin ){
-				System.out.println("   " + peer_list.get(k).address + " (" + kmin +","+kmax+")");
-				byte krequest[] = makePeerRequest(cid, cpos, kmin, kmax, requestID);
-				send(peer_list.get(k).address, krequest);
+				if(logging(EventSink.DEBUG)){
+					log(EventSink.DEBUG, "passed peer request to", p.address + " (" + kmin +","+kmax+")");
+				}
+				byte krequest[] = makePeerRequest(cid, cpos, kmin, kmax, requestID, timeout*PEER_TIMEOUT_SHARE);
+				send(p.address, krequest);
 				requests_sent++;
-			} else {
-				System.out.println("   " + peer_list.get(k).address );
 			}
 		}
 		
 		// If we didn't distribute the request to any other nodes.
 		if(requests_sent == 0) {
 			// Respond with a peer list of just this node.
-			send(from, makePeerResponse(cpos, PeerNominate(cpos, address, position), responseID));
+			send(from, makePeerResponse(cpos, nominateSelf(cpos), responseID));
 		} else {
 			// If we did fan out then we need to create a record of it and wait for our responses before we can respond.
-			pending_peer_request.put(requestID, new PeerFan(from, cpos, requests_sent, responseID));
+			if(pending_peer_request.size() >= MAX_PENDING_PEER_REQUESTS){
+				// Answer the oldest with what it has to make room.
+				Integer oldest = pending_peer_request.keySet().iterator().next();
+				pending_peer_request.remove(oldest).respond();
+			}
+			pending_peer_request.put(requestID, new PeerFan(from, cpos, requests_sent, responseID, timeout*PEER_TIMEOUT_SHARE));
 			requestID++;
 		}
-		// Potentially merge the new node into this node's peer list if it's a better fit.
-		peer = mergePeers(position, peer, PeerNominate(position, cid, cpos));
+		// Potentially merge the new node into each of this node's peer lists if it's a better fit.
+		ArrayList<Peer> before = peer_list;
+		for(int v=0;v<positions.length;v++){
+			peer[v] = mergePeers(positions[v], peer[v], PeerNominate(positions[v], cid, cpos));
+		}
 		updatePeerList();
+		// If the new node became a direct neighbor, tell it about us directly, in case its peer request doesn't make it
+		// back to it with us in it.
+		if(!cid.equals(address)){
+			for(int v=0;v<positions.length;v++){
+				if(isPeer(v, PEERDEPTH, cid, cpos) || isPeer(v, PEERDEPTH+1, cid, cpos)){
+					send(cid, makePeerResponse(cpos, PeerNominate(cpos, address, positions[v]), ANNOUNCE));
+				}
+			}
+		}
+		if(!peer_list.equals(before)){
+			handOffKeys(before);
+		}
 	}
 
-	// Processes a response to a request to fetch peers for a new node.
-	private void processPeerResponse(Message m) {
-		ByteStream stream = new ByteStream(m.message);
-		stream.readByte();// Discard the type since we already checked it.
-		float cpos = stream.readFloat();
-		int requestID = stream.readInt();
-		// Read the returned peer list in the same way it's written.
-		Peer p[] = new Peer[stream.readShort()]; 
-		for(int k=0;k<p.length;k++){
-			String pid = stream.readString();
-			if(!pid.equals("")){
-				float ppos = stream.readFloat();
-				p[k] = new Peer(pid,ppos);
+	// Returns true if the peer in the given slot of the peer list for our position v is the given node at the given position.
+	private boolean isPeer(int v, int slot, String peeraddress, float peerposition){
+		Peer p = peer[v][slot];
+		return p != null && p.address.equals(peeraddress) && p.position == peerposition;
+	}
+
+	// Returns our peers and our own positions in order of position.
+	private ArrayList<Peer> knownPositions(){
+		ArrayList<Peer> known = new ArrayList<Peer>(peer_list);
+		for(int v=0;v<positions.length;v++){
+			Peer self = new Peer(address, positions[v]);
+			if(!known.contains(self)){
+				known.add(self);
 			}
 		}
+		Collections.sort(known, BY_POSITION);
+		return known;
+	}
+
+	// Returns a potential peer list for a node at center from every position we know, ours included.
+	private Peer[] nominateKnown(float center){
+		Peer best[] = new Peer[PEERDEPTH*2+2];
+		ArrayList<Peer> known = knownPositions();
+		for(int k=0;k<known.size();k++){
+			best = mergePeers(center, best, PeerNominate(center, known.get(k).address, known.get(k).position));
+		}
+		return best;
+	}
 
-		PeerFan pf = pending_peer_request.get(requestID);
+	// Returns a potential peer list for a node at center with each of our positions in its eligible slots.
+	private Peer[] nominateSelf(float center){
+		Peer best[] = PeerNominate(center, address, positions[0]);
+		for(int v=1;v<positions.length;v++){
+			best = mergePeers(center, best, PeerNominate(center, address, positions[v]));
+		}
+		return best;
+	}
+
+	// Passes on the keys this node no longer owns now that its peer list has changed from before, grouped into multi
+	// stores by next hop the way processMultiStore does. Called whenever the peer list changes, so keys follow their
+	// owner whichever of its positions took them over, and whether or not it's a direct neighbor. Stores still on their
+	// way here are passed on by processStoreRequest in the same way, so they aren't lost either.
+	// Only a new peer position can take keys from us, and only those in the arc of the ring nearer to it than to any of
+	// our positions, so only those keys are looked at (see KeyIndex). Peers that left the list don't move anything.
+	private void handOffKeys(ArrayList<Peer> before){
+		if(index.size() == 0){
+			return;
+		}
+		HashSet<Peer> old = new HashSet<Peer>(before);
+		float sorted[] = positions.clone();
+		Arrays.sort(sorted);
+		ArrayList<String> keys = new ArrayList<String>();
+		HashSet<String> seen = new HashSet<String>();
+		for(int k=0;k<peer_list.size();k++){
+			Peer p = peer_list.get(k);
+			if(old.contains(p) || p.address.equals(address)){
+				continue;
+			}
+			// Our positions on either side of the new one bound the arc it could take.
+			int i = Arrays.binarySearch(sorted, p.position);
+			if(i >= 0){
+				continue; // At one of our positions, so never closer than we are.
+			}
+			i = -i-1;
+			// Widened by a few steps of float rounding, since closer compares rounded distances. Keys the new peer
+			// isn't really closer to are kept by splitByNextHop anyway.
+			float from = i > 0 ? (sorted[i-1] + p.position) * 0.5f : 0;
+			float to = i < sorted.length ? (p.position + sorted[i]) * 0.5f : Float.POSITIVE_INFINITY;
+			from -= 4*Math.ulp(from);
+			to += 4*Math.ulp(to);
+			ArrayList<String> arc = index.between(from, to);
+			for(int j=0;j<arc.size();j++){
+				if(seen.add(arc.get(j))){
+					keys.add(arc.get(j));
+				}
+			}
+		}
+		if(keys.size() == 0){
+			return;
+		}
+		String key[] = keys.toArray(new String[keys.size()]);
+		LinkedHashMap<String, ArrayList<Integer>> hops = splitByNextHop(key);
+		Iterator<String> h = hops.keySet().iterator();
+		while(h.hasNext()){
+			String next = h.next();
+			ArrayList<Integer> part = hops.get(next);
+			if(next.equals(address)){
+				continue;
+			}
+			// Multi stores take at most Short.MAX_VALUE items.
+			for(int start=0;start<part.size();start+=Short.MAX_VALUE){
+				ArrayList<Integer> chunk = new ArrayList<Integer>(part.subList(start, Math.min(part.size(), start + Short.MAX_VALUE)));
+				String moved[] = select(key, chunk);
+				String value[] = new String[moved.length];
+				for(int k=0;k<moved.length;k++){
+					value[k] = unstore(moved[k]);
+				}
+				send(next, makeMultiStore(moved, value));
+			}
+		}
+	}
+
+	// Tells the direct neighbors of our position v about it, so they pass on any keys it now owns without waiting to
+	// hear about it through a peer request that may have fanned out past them.
+	// A neighbor that didn't know about us answers with the peers it knows around us, and if that turns up closer
+	// neighbors we announce ourselves to them too, so a join that got an incomplete peer list still finds the nodes
+	// next to it. Otherwise it would own keys that are really a closer node's and answer for them with nothing.
+	private void announce(int v){
+		for(int slot=PEERDEPTH;slot<=PEERDEPTH+1;slot++){
+			Peer p = peer[v][slot];
+			if(p != null && !p.address.equals(address)){
+				send(p.address, makePeerResponse(p.position, PeerNominate(p.position, address, positions[v]), ANNOUNCE));
+			}
+		}
+	}
+
+	// Processes a response to a request to fetch peers for a new node.
+	private void processPeerResponse(Message m) {
+		MessageSchema.Fields f = decode(PEERRESPONSE_FIELDS, m);
+		float cpos = f.getFloat(0);
+		int id = f.getInt(1);
+		Peer p[] = f.getPeers(2);
+
+		PeerFan pf = pending_peer_request.get(id);
 		if(pf == null){
-			if(cpos == position){ // If this was this node's peer request.
-				peer = p; // Use the returned peer list.
+			int v = nearestPosition(cpos);
+			if(cpos == positions[v]){ // If this was a peer request for one of this node's positions.
+				// Merge rather than replace, since a retried join can get more than one response.
+				ArrayList<Peer> before = peer_list;
+				peer[v] = mergePeers(positions[v], peer[v], p);
 				updatePeerList();
-			} else {
-				System.err.println(address +" - Got a peer response it didn't ask for!");
+				if(!peer_list.equals(before)){
+					if(id == ANNOUNCE){
+						// A node we didn't know about. Tell it who we know around it in case it doesn't know them.
+						for(int k=0;k<p.length;k++){
+							if(p[k] != null && p[k].address.equals(m.from)){
+								send(m.from, makePeerResponse(p[k].position, nominateKnown(p[k].position), NEIGHBORS));
+								break;
+							}
+						}
+					} else {
+						announce(v);
+					}
+					// Anything stored here before we knew these peers may belong to one of them.
+					handOffKeys(before);
+				}
+			} else if(id < NEIGHBORS || id >= requestID){
+				// Late responses to fan outs that already timed out are expected, responses to IDs we never used are not.
+				log(EventSink.WARN, "got a peer response it didn't ask for from", m.from);
 			}
 		} else { // If we have a pending peer request entry.
 			boolean done = pf.handleResponse(p); // Merge the peer response into our response.
 			if(done){ // If that was the last response we were waiting for.
 				// Send our response.
-				send(pf.from, makePeerResponse(cpos, pf.best_peers, pf.responseID));
-				pending_peer_request.remove(cpos);
-
+				pending_peer_request.remove(id);
+				pf.respond();
 			}
 		}
 	}
 
-	// A request to fetch an item from the table.
-	public static byte[] makeRequest(String key){
-		ByteStream stream = new ByteStream();
-		stream.writeByte(REQUEST);
-		stream.writeString(key);
-		return stream.getBytes();
+	// A request to fetch an item from the table. requestNumber is echoed back in the response so requesters can match them up.
+	public static byte[] makeRequest(String key, int requestNumber){
+		return REQUEST_FIELDS.writer(string_flags).putInt(requestNumber).putString(key).bytes();
 	}
 
 	// A response to a request, returning an item from the table.
-	public static byte[] makeResponse(String key, String value){
-		ByteStream stream = new ByteStream();
-		stream.writeByte(RESPONSE);
-		stream.writeString(key);
-		stream.writeString(value);
-		return stream.getBytes();
+	public static byte[] makeResponse(int requestNumber, String key, String value){
+		return RESPONSE_FIELDS.writer(string_flags).putInt(requestNumber).putString(key).putString(value).bytes();
+	}
+
+	// An iterative request for an item in the table. Nodes answer with a response or a find response, never forwarding.
+	public static byte[] makeFindRequest(String key, int requestNumber){
+		return FINDREQUEST_FIELDS.writer(string_flags).putInt(requestNumber).putString(key).bytes();
+	}
+
+	// A response to an iterative request listing peers closer to the key.
+	public static byte[] makeFindResponse(int requestNumber, String key, Peer peer[]){
+		return FINDRESPONSE_FIELDS.writer(string_flags).putInt(requestNumber).putString(key).putPeers(peer).bytes();
+	}
+
+	// A request for every item with start <= key < end, sent back to replyto in pages of at most pagesize items.
+	// Pages are numbered from sequence and the last one is flagged, so the requester knows when it has them all.
+	// segment is -1 for a new request. When a node passes the request to the next node along the ring it's the position
+	// of that node whose part is next, since a node with several positions has several parts of the ring.
+	// Only meaningful with KeyPlacement.ORDERED, since hashed keys in a range aren't on consecutive nodes.
+	public static byte[] makeRangeRequest(int requestNumber, String replyto, String start, String end, int pagesize, int sequence, float segment){
+		return RANGEREQUEST_FIELDS.writer(string_flags).putInt(requestNumber).putString(replyto).putString(start).putString(end)
+				.putInt(pagesize).putInt(sequence).putFloat(segment).bytes();
+	}
+
+	// A page of items in response to a range request.
+	public static byte[] makeRangeResponse(int requestNumber, int sequence, boolean last, String key[], String value[]){
+		return RANGERESPONSE_FIELDS.writer(string_flags).putInt(requestNumber).putInt(sequence).putByte(last ? 1 : 0).putPairs(key, value).bytes();
+	}
+
+	// Returns the request number of a request or response without reading the rest of it.
+	public static int requestID(byte[] message){
+		return new ByteStream(message).readInt(1);
+	}
+
+	// Returns the key of a request, response, find request or store request without decoding the rest of it.
+	public static String key(byte[] message){
+		ByteStream stream = new ByteStream(message);
+		if(stream.readType() != STOREREQUEST){
+			stream.readInt(); // The request number.
+		}
+		return stream.readString();
+	}
+
+	// Returns a copy of a request or response with its request number replaced.
+	// The request number always directly follows the type byte, so the rest of the message doesn't need to be parsed.
+	public static byte[] withRequestID(byte[] message, int requestNumber){
+		ByteStream stream = new ByteStream(message.clone());
+		stream.writeInt(requestNumber, 1);
+		return stream.data;
+	}
+
+	// A request for several items from the table, answered with a single multi response.
+	// Takes at most Short.MAX_VALUE keys, so split bigger loads into several requests.
+	public static byte[] makeMultiRequest(String key[], int requestNumber){
+		return MULTIREQUEST_FIELDS.writer(string_flags).putInt(requestNumber).putStrings(key).bytes();
+	}
+
+	// A response to a multi request with the items found. Keys whose part of the request was lost are left out.
+	public static byte[] makeMultiResponse(int requestNumber, String key[], String value[]){
+		return MULTIRESPONSE_FIELDS.writer(string_flags).putInt(requestNumber).putPairs(key, value).bytes();
+	}
+
+	// A request to store several items in the table. Takes at most Short.MAX_VALUE items.
+	public static byte[] makeMultiStore(String key[], String value[]){
+		return MULTISTORE_FIELDS.writer(string_flags).putPairs(key, value).bytes();
 	}
 
 	// A request to store an item in the table.
 	public static byte[] makeStoreRequest(String key, String value){
-		ByteStream stream = new ByteStream();
-		stream.writeByte(STOREREQUEST);
-		stream.writeString(key);
-		stream.writeString(value);
-		return stream.getBytes();
+		return STOREREQUEST_FIELDS.writer(string_flags).putString(key).putString(value).bytes();
 	}
 
 	// A request to fetch peers for the given node in the given range. requestNumber is a unique identifier for the request.
-	public static byte[] makePeerRequest(String address, float position, float min, float max, int requestNumber){
-		ByteStream stream = new ByteStream();
-		stream.writeByte(PEERREQUEST);
-		stream.writeString(address);
-		stream.writeFloat(position);
-		stream.writeFloat(min);
-		stream.writeFloat(max);
-		stream.writeInt(requestNumber);
-		return stream.getBytes();
+	// timeout is how long the sender will wait for the response.
+	public static byte[] makePeerRequest(String address, float position, float min, float max, int requestNumber, float timeout){
+		return PEERREQUEST_FIELDS.writer(string_flags).putString(address).putFloat(position).putFloat(min).putFloat(max)
+				.putInt(requestNumber).putFloat(timeout).bytes();
 	}
 
 	// A response of peers fetched for the given target. requestNumber is a unique identifier for the request.
 	public static byte[] makePeerResponse(float target, Peer peer[], int requestNumber){
-		ByteStream stream = new ByteStream();
-		stream.writeByte(PEERRESPONSE);
-		stream.writeFloat(target);
-		stream.writeInt(requestNumber);
-		stream.writeShort((short)peer.length); 
-		for(int k=0;k<peer.length;k++){
-			if(peer[k] == null){
-				stream.writeString("");
-			} else {
-				stream.writeString(peer[k].address);
-				stream.writeFloat(peer[k].position);
-			}
-		}
-		return stream.getBytes();
+		return PEERRESPONSE_FIELDS.writer(string_flags).putFloat(target).putInt(requestNumber).putPeers(peer).bytes();
 	}
 
-	//Syncs the peer_list to the peer array. Called every time peer is modified.
+	//Syncs the peer_list to the peer arrays. Called every time peer is modified.
 	public void updatePeerList(){
-		peer_list = new ArrayList<Peer>();
-		System.out.println(address +" updating peers:");
-		for(int k=0; k<peer.length; k++){
-			if( peer[k]!=null && ( k == 0 || !peer[k].equals(peer[k-1]))){ // Peer is nonnull non duplicate.
-				peer_list.add(peer[k]);
-				System.out.println("   " + peer[k].address);
+		ArrayList<Peer> list = new ArrayList<Peer>();
+		HashSet<Peer> added = new HashSet<Peer>();
+		for(int v=0; v<peer.length; v++){
+			for(int k=0; k<peer[v].length; k++){
+				if( peer[v][k]!=null && added.add(peer[v][k])){ // Peer is nonnull non duplicate.
+					list.add(peer[v][k]);
+				}
 			}
 		}
+		Collections.sort(list, BY_POSITION);
+		peer_list = list;
+		if(logging(EventSink.INFO)){
+			String peers = "";
+			for(int k=0; k<list.size(); k++){
+				peers += " " + list.get(k).address;
+			}
+			log(EventSink.INFO, "updated peers:", peers);
+		}
 	}
 
+	// Orders peers by their position on the ring.
+	static final Comparator<Peer> BY_POSITION = new Comparator<Peer>(){
+		public int compare(Peer a, Peer b){
+			return Float.compare(a.position, b.position);
+		}
+	};
+
 	// Keeps track of pending fanned out peer requests.
 	private class PeerFan{
 		String from; // Where we go the request from, not who made the root request.
@@ -350,15 +1251,22 @@ public class HashNode extends Node{
 		int responses; // Amount fo responses we've gotten.
 		Peer[] best_peers; // Current set of best peers for this request.
 		int responseID; // A unique identifier to let the receiver know what we're responding to.
+		double deadline; // Time at which we respond with the peers we have so far.
 
-		public PeerFan(String from, float cpos, int fanout, int responseID){
+		public PeerFan(String from, float cpos, int fanout, int responseID, float timeout){
 			// Initialize with self as a peer
-			best_peers = PeerNominate(cpos, address, position);
+			best_peers = nominateSelf(cpos);
 			this.from = from;
 			this.requests = fanout;
 			this.cpos = cpos;
 			this.responseID = responseID;
 			responses = 0 ;
+			deadline = getTime() + timeout;
+		}
+
+		// Sends the best peers found so far to whoever sent us the request.
+		public void respond(){
+			send(from, makePeerResponse(cpos, best_peers, responseID));
 		}
 
 		// Merges peers into the best peer list.
@@ -370,9 +1278,143 @@ public class HashNode extends Node{
 		}
 	}
 
+	// Keeps track of a request we forwarded, so the response can be passed back and the request retried if it gets lost.
+	private class PendingRequest{
+		String from; // Where we got the request from.
+		int fromID; // The request number the sender used, which their response needs to have.
+		float keypos; // Position of the requested key.
+		byte[] message; // The request as forwarded with our own request number.
+		ArrayList<String> tried; // Peers this request has been sent to.
+		double sent; // Time the request was last forwarded.
+		double timeout; // How long to wait for a response from the peer it was last forwarded to.
+		int retries; // Amount of times the request has been resent.
+		PendingBatch batch; // The split multi request this is a part of, or null if responses are passed back to from.
+
+		public PendingRequest(String from, int fromID, float keypos, byte[] message){
+			this.from = from;
+			this.fromID = fromID;
+			this.keypos = keypos;
+			this.message = message;
+			tried = new ArrayList<String>();
+			retries = 0;
+		}
+
+		// Sends the request on to the given peer.
+		public void forward(Peer p){
+			tried.add(p.address);
+			sent = getTime();
+			timeout = requestTimeout(p.address);
+			send(p.address, message);
+		}
+
+		// Gives up on the request.
+		public void drop(){
+			if(batch != null){
+				batch.partDone();
+			}
+		}
+	}
+
+	// Collects the items for a multi request that was split up between peers.
+	private class PendingBatch{
+		String from; // Where we got the request from.
+		int fromID; // The request number the sender used.
+		ArrayList<String> key, value; // Items found so far.
+		int parts; // Amount of forwarded parts not answered or given up on yet.
+
+		public PendingBatch(String from, int fromID, int parts){
+			this.from = from;
+			this.fromID = fromID;
+			this.parts = parts;
+			key = new ArrayList<String>();
+			value = new ArrayList<String>();
+		}
+
+		public void add(String k, String v){
+			key.add(k);
+			value.add(v);
+		}
+
+		// Marks a part as answered or given up on, and responds once none are left.
+		public void partDone(){
+			parts--;
+			if(parts == 0){
+				respond();
+			}
+		}
+
+		public void respond(){
+			send(from, makeMultiResponse(fromID, key.toArray(new String[key.size()]), value.toArray(new String[value.size()])));
+		}
+	}
+
+	// Builds the peer tables of a whole ring of nodes directly from their positions in O(N log N).
+	// The result is the same as every node having joined one at a time with nothing lost along the way:
+	// each slot holds the node on the correct side of the owner that is nearest to that slot's target.
+	// Nodes should have been created with HashNode(address, pos) and added to the network afterwards.
+	// Each position of a node with several is treated like a node of its own.
+	public static void bootstrap(HashNode node[]){
+		// Every position of every node as a peer, along with which node and which of its positions it is.
+		ArrayList<Peer> sorted = new ArrayList<Peer>();
+		HashMap<Peer, int[]> owner = new HashMap<Peer, int[]>();
+		for(int k=0;k<node.length;k++){
+			for(int v=0;v<node[k].positions.length;v++){
+				Peer p = new Peer(node[k].address, node[k].positions[v]);
+				if(owner.put(p, new int[]{k, v}) == null){
+					sorted.add(p);
+				}
+			}
+		}
+		Collections.sort(sorted, BY_POSITION);
+		float pos[] = new float[sorted.size()];
+		for(int k=0;k<pos.length;k++){
+			pos[k] = sorted.get(k).position;
+		}
+		for(int k=0;k<pos.length;k++){
+			int which[] = owner.get(sorted.get(k));
+			HashNode n = node[which[0]];
+			float target[] = getPeerTargets(pos[k], PEERDEPTH);
+			// Positions below this one are at indices [0, below) and positions above are at [above, length).
+			int below = k, above = k+1;
+			while(below > 0 && pos[below-1] == pos[k]) below--;
+			while(above < pos.length && pos[above] == pos[k]) above++;
+			for(int j=0;j<target.length;j++){
+				int nearest;
+				if(j < target.length/2){
+					nearest = nearest(pos, target[j], 0, below);
+				} else {
+					nearest = nearest(pos, target[j], above, pos.length);
+				}
+				n.peer[which[1]][j] = nearest < 0 ? null : sorted.get(nearest);
+			}
+		}
+		for(int k=0;k<node.length;k++){
+			node[k].updatePeerList();
+		}
+	}
+
+	// Returns the index in sorted positions pos[from, to) nearest to target, or -1 if the range is empty.
+	private static int nearest(float pos[], float target, int from, int to){
+		if(from >= to){
+			return -1;
+		}
+		int i = Arrays.binarySearch(pos, from, to, target);
+		if(i >= 0){
+			return i;
+		}
+		i = -i-1; // First index with a greater position.
+		if(i == from){
+			return from;
+		} else if(i == to || target - pos[i-1] <= pos[i] - target){
+			return i-1;
+		} else {
+			return i;
+		}
+	}
+
 	// Returns the position of a message from a String key.
 	public static float getPosition(String key){
-		return (new Random(key.hashCode())).nextFloat();
+		return placement.position(key);
 	}
 
 	// return 2 + depth*2 target values around center inthe range 0, 1.
@@ -435,26 +1477,3 @@ public class HashNode extends Node{
 		}
 	}
 }
-
-// Peers for the peer god. Addresses for the address throne.
-class Peer{
-	float position;
-	String address;
-
-	public Peer(String address){
-		this.address = address;
-	}
-	
-	public Peer(String address, float position){
-		this.address = address;
-		this.position = position;
-	}
-
-	public boolean equals(Object o){
-		if(o == null){
-			return false;
-		} else {
-			return address.equals(((Peer)o).address);
-		}
-	}
-}
\ No newline at end of file
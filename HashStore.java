@@ -0,0 +1,25 @@
+/* Storage for the part of the distributed hashtable a HashNode owns.
+ * MapStore keeps entries in a HashMap, which is simple but costs object headers and UTF-16 characters for every entry.
+ * CompactStore keeps them in byte arrays (or a memory mapped file) so much larger tables fit in one simulation.
+ * Use HashNode.setStore to change the store a node uses.
+ */
+
+import java.util.ArrayList;
+
+public interface HashStore{
+
+	// Returns the value stored for key or null if there isn't one.
+	public String get(String key);
+
+	// Stores value for key, replacing any value already stored.
+	public void put(String key, String value);
+
+	// Removes key and returns its value or null if it wasn't stored.
+	public String remove(String key);
+
+	// Returns the amount of keys stored.
+	public int size();
+
+	// Returns all of the stored keys. It's a copy, so the store can be changed while going through them.
+	public ArrayList<String> keys();
+}
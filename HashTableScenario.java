@@ -0,0 +1,355 @@
+/* A ring of HashNodes with a client sending them requests, as run by GUIHashNodeTest.
+ * The ring is built all at once, then the client sends commands: "key" fetches a key, "key>value" stores one,
+ * keys (or key>value pairs) separated by commas fetch (or store) several in one message, and "start..end" fetches
+ * every key from start up to end with a range request (which needs placement=ordered).
+ * Fetches are routed recursively by the nodes, or iteratively by the client if iterative is set.
+ * Answers are checked against what the client stored, so a run shows how many came back right. Once nodes have joined
+ * and the ring has had time to settle, every stored key is read back again, and any that come back empty were lost
+ * when their owner changed.
+ * Settings (see Scenario for the common ones):
+ *   nodes       nodes in the ring to start with (50)
+ *   positions   positions on the ring for each node (4)
+ *   iterative   true to look keys up iteratively (false)
+ *   commands    commands separated by ";" to send, one each step ("")
+ *   keys        after the commands, store this many keys and then fetch each of them, one each step (0)
+ *   ranges      after fetching the keys, read them all back with this many range requests (0)
+ *   placement   how keys are placed on the ring: hashed, ordered or legacy (hashed). ordered is fit to the keys setting's
+ *               keys with KeyPlacement.ordered, so they spread over the ring.
+ *   joins       nodes to join to the running ring (0)
+ *   join_every  steps between joins (100)
+ *   settle      steps after the last join and command before reading every stored key back (1000)
+ *   print       print every answer (true)
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Random;
+
+public class HashTableScenario extends Scenario{
+
+	int nodes = 0;
+	int maxnodes;
+	int positions; // Positions on the ring for each node. More of them evens out how much of the table each node holds.
+	public ClientNode client = null;
+	int client_request = 0; // Request number for the next client request.
+	IterativeLookup lookups; // Drives client lookups when in iterative mode.
+	public boolean iterative; // Whether lookups are routed recursively by the nodes or iteratively by the client.
+	Random rand;
+
+	public String result = "Send \"key\" to fetch or \"key>value\" to store.";
+	boolean print;
+
+	// Commands still to send and nodes still to join.
+	ArrayList<String> script = new ArrayList<String>();
+	int next_command = 0;
+	int joins, join_every, steps = 0;
+	int settle, last_join = -1;
+	boolean verifying = false; // Whether the stored keys are being read back after joins.
+
+	// What the client stored, to check answers against.
+	HashMap<String, String> stored = new HashMap<String, String>();
+	int sent = 0, answered = 0, correct = 0, wrong = 0, failed = 0;
+	int lost = 0; // Stored keys read back empty after joins.
+	// Range requests by request number, and how they're going.
+	HashMap<Integer, Range> ranges = new HashMap<Integer, Range>();
+	int ranges_done = 0, range_items = 0, range_wrong = 0, range_missing = 0, range_nodes = 0;
+	static final int RANGE_PAGE = 50; // Items in each page of a range response.
+
+	public HashTableScenario(Properties settings){
+		super(settings);
+	}
+
+	public void start(){
+		maxnodes = setting("nodes", 50);
+		positions = setting("positions", 4);
+		iterative = setting("iterative", false);
+		joins = setting("joins", 0);
+		join_every = Math.max(1, setting("join_every", 100));
+		settle = setting("settle", 1000);
+		print = setting("print", true);
+		rand = new Random(setting("seed", 12345));
+		String commands = setting("commands", "");
+		if(commands.length() > 0){
+			String command[] = commands.split(";");
+			for(int k=0;k<command.length;k++){
+				script.add(command[k].trim());
+			}
+		}
+		int keys = setting("keys", 0);
+		String key[] = new String[keys];
+		for(int k=0;k<keys;k++){
+			key[k] = "key" + k;
+			script.add(key[k] + ">value" + k);
+		}
+		for(int k=0;k<keys;k++){
+			script.add(key[k]);
+		}
+		// Split the keys in order into ranges with the same amount of keys in each. The last goes to the end of the keys.
+		int range_count = Math.min(keys, setting("ranges", 0));
+		String sorted[] = key.clone();
+		Arrays.sort(sorted);
+		for(int k=0;k<range_count;k++){
+			String end = k < range_count-1 ? sorted[(k+1)*keys/range_count] : sorted[keys-1] + "\uffff";
+			script.add(sorted[k*keys/range_count] + ".." + end);
+		}
+		String placement = setting("placement", "hashed");
+		if(placement.equals("ordered")){
+			HashNode.placement = keys > 0 ? KeyPlacement.ordered(key) : KeyPlacement.ORDERED;
+		} else if(placement.equals("legacy")){
+			HashNode.placement = KeyPlacement.LEGACY;
+		} else {
+			HashNode.placement = KeyPlacement.HASHED;
+		}
+
+		// Unlimited link capacity and no packet drop chance, since this table implementation doesn't consider those problems.
+		net = makeNetwork(99999999, 0.001f, .1f, 0, 100f);
+		// Build the ring directly instead of joining nodes one at a time.
+		HashNode ring[] = new HashNode[maxnodes];
+		for(int k=0;k<ring.length;k++){
+			float pos[] = randomPositions();
+			ring[k] = new HashNode("ID-"+pos[0], pos);
+			ring[k].compression = compression;
+		}
+		HashNode.bootstrap(ring);
+		for(int k=0;k<ring.length;k++){
+			double s = 1 - rand.nextDouble()*.5;
+			net.addNode(ring[k], nodeX(s), nodeY(s), 9999999);
+			nodes++;
+		}
+		client = new ClientNode("client");
+		client.compression = compression;
+		net.addNode(client,450,450,9999999);
+		lookups = new IterativeLookup(client, 3, 2);
+	}
+
+	// Adds a node randomly in a circle around (450,450) and joins it through a random node in the network.
+	public void addNode(){
+		float pos[] = randomPositions();
+		double s = 1 - rand.nextDouble()*.5;
+		String connect = net.RandomNode();
+		while(connect.equals(client.address)) connect = net.RandomNode();
+		HashNode node = new HashNode("ID-"+pos[0], pos, connect, net, nodeX(s), nodeY(s), 9999999);
+		node.compression = compression; // Only its join request goes out uncompressed.
+		nodes++;
+		System.out.println("Added node:" + node.address);
+	}
+
+	// Random ring positions for a new node.
+	private float[] randomPositions(){
+		float pos[] = new float[positions];
+		for(int k=0;k<pos.length;k++){
+			pos[k] = rand.nextFloat();
+		}
+		return pos;
+	}
+
+	// Screen position of the next node, scaled toward the center by s.
+	private float nodeX(double s){
+		return (float)(450 + Math.sin(nodes*Math.PI + nodes*2*Math.PI/maxnodes)*400*s);
+	}
+
+	private float nodeY(double s){
+		return (float)(450 + Math.cos(nodes*Math.PI + nodes*2*Math.PI/maxnodes)*400*s);
+	}
+
+	// Sends a command from the client to a random node (see the top of the file).
+	public void command(String typed){
+		int split = typed.indexOf('>');
+		String server = net.RandomNode();
+		while(server.equals(client.address))server = net.RandomNode();
+		int dots = typed.indexOf("..");
+		if(dots >= 0){ // Read every key in a range if ".." in command.
+			String start = typed.substring(0, dots), end = typed.substring(dots+2);
+			ranges.put(client_request, new Range(start, end));
+			client.send(server, HashNode.makeRangeRequest(client_request++, client.address, start, end, RANGE_PAGE, 0, -1));
+			result = "Requested range:" + typed;
+		} else if(typed.indexOf(',') >= 0){ // Submit one request for several keys if "," in command.
+			String item[] = typed.split(",");
+			if(split < 0){
+				client.send(server, HashNode.makeMultiRequest(item, client_request++));
+				result = "Requested:" + typed;
+				sent += item.length;
+			} else {
+				String key[] = new String[item.length], value[] = new String[item.length];
+				for(int k=0;k<item.length;k++){
+					int s = item[k].indexOf('>');
+					key[k] = s < 0 ? item[k] : item[k].substring(0, s);
+					value[k] = s < 0 ? "" : item[k].substring(s+1);
+					stored.put(key[k], value[k]);
+				}
+				client.send(server, HashNode.makeMultiStore(key, value));
+				result = "Requested store:" + typed;
+			}
+		} else if(split < 0 && iterative){ // Start an iterative look up from a few random nodes.
+			ArrayList<String> seeds = new ArrayList<String>();
+			while(seeds.size() < 3){
+				String seed = net.RandomNode();
+				if(!seed.equals(client.address)) seeds.add(seed);
+			}
+			lookups.lookup(typed, seeds);
+			result = "Looking up:" + typed;
+			sent++;
+		} else if(split < 0){ // Submit a look up request if no ">" in command.
+			client.send(server, HashNode.makeRequest(typed, client_request++));
+			result = "Requested:" + typed;
+			sent++;
+		} else { // Submit a store request if ">" in command.
+			String key = typed.substring(0,split);
+			String value = typed.substring(split+1,typed.length());
+			result = "Requested store:" + typed;
+			client.send(server, HashNode.makeStoreRequest(key, value));
+			stored.put(key, value);
+		}
+	}
+
+	// Sends the next scripted command, joins a node when one is due, and takes in client responses.
+	public void step(){
+		steps++;
+		if(next_command < script.size()){
+			command(script.get(next_command++));
+		}
+		if(joins > 0 && steps % join_every == 0){
+			joins--;
+			addNode();
+			last_join = steps;
+		}
+		if(!verifying && last_join >= 0 && joins == 0 && next_command >= script.size() && steps - Math.max(last_join, script.size()) >= settle){
+			// Read back every stored key now that the ring has settled.
+			verifying = true;
+			ArrayList<String> keys = new ArrayList<String>(stored.keySet());
+			Collections.sort(keys);
+			script.addAll(keys);
+		}
+		lookups.checkTimeouts();
+		Message m;
+		while((m = client.receive()) != null){
+			if(lookups.handle(m)){
+				continue;
+			}
+			byte type = ByteStream.type(m.message);
+			if(type == HashNode.RESPONSE){
+				MessageSchema.Fields f = MessageSchema.decode(m.message);
+				String key = f.getString(1);
+				String value = f.getString(2);
+				check(key, value);
+				result = "Response from " + m.from +" : " + key +" -> " + value;
+				if(print){
+					System.out.println("Client got a response from " + m.from +" : " + key +" - > " + value);
+				}
+			} else if(type == HashNode.MULTIRESPONSE){
+				MessageSchema.Fields f = MessageSchema.decode(m.message);
+				String key[] = f.getStrings(1), value[] = f.getValues(1);
+				result = "Response from " + m.from +" :";
+				for(int k=0;k<key.length;k++){
+					check(key[k], value[k]);
+					result += " " + key[k] + " -> " + value[k];
+				}
+				if(print){
+					System.out.println("Client got a multi response from " + m.from + result.substring(result.indexOf(':')+1));
+				}
+			} else if(type == HashNode.RANGERESPONSE){
+				MessageSchema.Fields f = MessageSchema.decode(m.message);
+				Range r = ranges.get(f.getInt(0));
+				if(r != null && r.page(m.from, f.getInt(1), f.getInt(2) != 0, f.getStrings(3), f.getValues(3))){
+					ranges.remove(f.getInt(0));
+				}
+			} else {
+				System.err.println("Client got an unknown message!");
+			}
+		}
+		// Display finished iterative lookups.
+		IterativeLookup.Lookup l;
+		while((l = lookups.poll()) != null){
+			if(l.found){
+				check(l.key, l.value);
+				result = "Iterative lookup : " + l.key + " -> " + l.value + " (" + l.messages + " queries, " + String.format("%4.2f", l.end - l.start) + " time)";
+			} else {
+				failed++;
+				if(verifying && l.owned && stored.containsKey(l.key)){
+					lost++; // The owner answered that it didn't have it.
+				}
+				result = "Iterative lookup failed : " + l.key + " (" + l.messages + " queries, " + l.timeouts + " timeouts)";
+			}
+			if(print){
+				System.out.println(result);
+			}
+		}
+	}
+
+	// Counts an answer, and whether it matches what was stored.
+	private void check(String key, String value){
+		answered++;
+		String expected = stored.get(key);
+		if(expected != null){
+			if(expected.equals(value)){
+				correct++;
+			} else {
+				wrong++;
+				if(verifying && (value == null || value.length() == 0)){
+					lost++;
+				}
+			}
+		}
+	}
+
+	public String status(){
+		return String.format("time %.1f", net.getTime()) + ", " + nodes + " nodes, " + sent + " keys asked for, " + answered
+				+ " answered (" + correct + " right, " + wrong + " wrong), " + failed + " lookups failed"
+				+ (ranges_done + ranges.size() > 0 ? ", " + ranges_done + " of " + (ranges_done + ranges.size()) + " ranges read ("
+						+ range_items + " items, " + range_wrong + " wrong, " + range_missing + " missing, from "
+						+ String.format("%.1f", range_nodes / (double)Math.max(1, ranges_done)) + " nodes each)" : "")
+				+ (verifying ? ", " + lost + " of " + stored.size() + " stored keys read back empty after joins" : "")
+				+ compressionStatus();
+	}
+
+	// A range request waiting for its pages.
+	class Range{
+		String start, end;
+		int pages = 0, last = -1; // Pages received so far, and the number of the last page once it's come.
+		HashSet<String> from = new HashSet<String>(); // Nodes that sent pages.
+		HashSet<String> got = new HashSet<String>();
+
+		Range(String start, String end){
+			this.start = start;
+			this.end = end;
+		}
+
+		// Takes in a page and checks its items against what was stored. Returns true once every page has come.
+		boolean page(String node, int sequence, boolean is_last, String key[], String value[]){
+			pages++;
+			from.add(node);
+			if(is_last){
+				last = sequence;
+			}
+			for(int k=0;k<key.length;k++){
+				range_items++;
+				String expected = stored.get(key[k]);
+				if(expected == null || !expected.equals(value[k]) || key[k].compareTo(start) < 0 || key[k].compareTo(end) >= 0){
+					range_wrong++;
+				}
+				got.add(key[k]);
+			}
+			if(last < 0 || pages < last+1){
+				return false;
+			}
+			ranges_done++;
+			range_nodes += from.size();
+			Iterator<String> i = stored.keySet().iterator();
+			while(i.hasNext()){
+				String k = i.next();
+				if(k.compareTo(start) >= 0 && k.compareTo(end) < 0 && !got.contains(k)){
+					range_missing++;
+				}
+			}
+			if(print){
+				System.out.println("Range " + start + ".." + end + ": " + got.size() + " items in " + pages + " pages from " + from.size() + " nodes");
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,38 @@
+/* The default KeyPlacement. Hashes the characters of a key 4 at a time and takes the top 24 bits as the position.
+ * Characters are hashed as they are rather than encoded first. It isn't faster than String.hashCode plus a Random
+ * (see PlacementBenchmark), but it allocates nothing and keys with equal hashCodes still get their own positions.
+ */
+
+class HashedPlacement implements KeyPlacement{
+
+	public float position(String key){
+		return (hash(key) >>> 40) * (1f / (1 << 24)); // 24 bits is all a float between 0 and 1 can hold evenly.
+	}
+
+	// A 64 bit hash of the characters of s, taken 4 at a time as one long. Nothing is allocated.
+	public static long hash(String s){
+		long h = 0x9E3779B97F4A7C15L;
+		int length = s.length();
+		int k = 0;
+		for(;k+4<=length;k+=4){
+			h = step(h, s.charAt(k) | (long)s.charAt(k+1) << 16 | (long)s.charAt(k+2) << 32 | (long)s.charAt(k+3) << 48);
+		}
+		long word = 0;
+		for(int shift=0;k<length;k++,shift+=16){
+			word |= (long)s.charAt(k) << shift;
+		}
+		return mix(h ^ word ^ ((long)length << 56));
+	}
+
+	// Folds 4 characters into the hash. Cheap, since mix does the real mixing at the end.
+	static long step(long h, long word){
+		return Long.rotateLeft(h ^ (word * 0xC2B2AE3D27D4EB4FL), 31) * 0x9E3779B97F4A7C15L;
+	}
+
+	// The finalizer from SplitMix64. Every input bit affects every output bit.
+	static long mix(long z){
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
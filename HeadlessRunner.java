@@ -0,0 +1,77 @@
+/* Runs a Scenario without a window, for big or long simulations and machines without a display.
+ *   java HeadlessRunner [config file] [name=value ...]
+ * The config file is name=value lines in Properties format (see hashtable.properties), and name=value arguments
+ * override it. With neither, it runs the GUIHashNodeTest ring for 30 seconds of network time.
+ * Settings for the runner, on top of the scenario's own (see Scenario and the scenario classes):
+ *   scenario    hashtable or network (hashtable)
+ *   duration    network time to run for (30)
+ *   report      network time between status lines (5)
+ *   checkpoint  a file to write the whole network to at the end, for Network.restore ("")
+ * Steps happen every Scenario.STEP milliseconds, just as in a window, but nothing asks for Network.view, so no
+ * views are ever made, and nothing from java.awt is loaded.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+public class HeadlessRunner{
+
+	public static void main(String args[]) throws IOException{
+		Properties settings = new Properties();
+		for(int k=0;k<args.length;k++){
+			int split = args[k].indexOf('=');
+			if(split > 0){
+				settings.setProperty(args[k].substring(0, split).trim(), args[k].substring(split+1));
+			} else {
+				Properties file = new Properties();
+				InputStream in = new FileInputStream(args[k]);
+				try{
+					file.load(in);
+				}finally{
+					in.close();
+				}
+				// Arguments after the file still win.
+				file.putAll(settings);
+				settings = file;
+			}
+		}
+		String name = settings.getProperty("scenario", "hashtable").trim();
+		double duration = Double.parseDouble(settings.getProperty("duration", "30"));
+		double report = Double.parseDouble(settings.getProperty("report", "5"));
+		String checkpoint = settings.getProperty("checkpoint", "").trim();
+
+		Scenario scenario = Scenario.forName(name, settings);
+		long start = System.nanoTime();
+		scenario.start();
+		Network net = scenario.net;
+		System.out.println(name + " started in " + String.format("%.2f", (System.nanoTime() - start) / 1e9) + " s");
+		double next_report = report;
+		long next_step = System.nanoTime();
+		while(net.getTime() < duration){
+			scenario.step();
+			if(net.getTime() >= next_report){
+				System.out.println(scenario.status());
+				next_report += report;
+			}
+			// Steps are kept on a fixed schedule, like a window's timer.
+			next_step += Scenario.STEP * 1000000L;
+			long wait = (next_step - System.nanoTime()) / 1000000;
+			if(wait > 0){
+				try{Thread.sleep(wait); } catch(InterruptedException e){}
+			}
+		}
+		if(checkpoint.length() > 0){
+			net.checkpoint(new File(checkpoint));
+			System.out.println("Wrote " + checkpoint);
+		}
+		System.out.println("Finished: " + scenario.status());
+		net.stop();
+		if(net.events instanceof AsyncEventSink){
+			((AsyncEventSink)net.events).close();
+		}
+		System.exit(0);
+	}
+}
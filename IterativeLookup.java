@@ -0,0 +1,240 @@
+/* Drives iterative lookups into a network of HashNodes from any node, Kademlia style.
+ * Instead of each hop forwarding the request and relaying the response back, the requester asks nodes directly
+ * and they answer with either the value (if they own the key) or the peers they know that are closer to it.
+ * Up to alpha queries are kept in flight per lookup, so a lost or slow query only costs a timeout on one of the parallel paths.
+ * A node answering with a value only claims to own the key as far as its own peers know, which can be wrong while nodes
+ * join, so a lookup keeps asking nodes closer to the key than the closest claimed owner until there are none left.
+ * It takes the value from the closest node that had one, and an empty value means the owner doesn't have the key.
+ * Pass every message the node receives to handle() and call checkTimeouts() regularly (ClientNode has no thread of its own).
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+public class IterativeLookup{
+
+	Node node; // The node the lookups are sent from.
+	int alpha; // Amount of queries kept in flight per lookup.
+	double timeout; // Network time to wait for a query before giving up on it.
+
+	HashMap<Integer, Query> queries; // Open queries (request number -> query).
+	ArrayList<Lookup> finished; // Lookups that are done and haven't been collected by poll yet.
+	int requestID = 0 ; // Number queries so we can tell their responses apart.
+
+	public IterativeLookup(Node node, int alpha, double timeout){
+		this.node = node;
+		this.alpha = alpha;
+		this.timeout = timeout;
+		queries = new HashMap<Integer, Query>();
+		finished = new ArrayList<Lookup>();
+	}
+
+	// Starts a lookup for key. seeds are the addresses of nodes to start the search from.
+	public Lookup lookup(String key, ArrayList<String> seeds){
+		Lookup l = new Lookup(key);
+		for(int k=0;k<seeds.size();k++){
+			// Positions of seeds aren't known, so they're tried in order after any node that is (see distance).
+			l.addCandidate(new Peer(seeds.get(k), Float.NaN));
+		}
+		l.fill();
+		return l;
+	}
+
+	// Processes a message received by the node.
+	// Returns true if it was a response to one of our queries, false if it should be handled elsewhere.
+	public boolean handle(Message m){
+		if(m.message.length < 5){
+			return false;
+		}
+		byte type = ByteStream.type(m.message);
+		if(type != HashNode.RESPONSE && type != HashNode.FINDRESPONSE){
+			return false;
+		}
+		Query q = queries.remove(HashNode.requestID(m.message));
+		if(q == null){
+			return false;
+		}
+		Lookup l = q.lookup;
+		l.asking.remove(q);
+		if(l.done){
+			// Another path already finished this lookup.
+			return true;
+		}
+		// The key is skipped since the query already tells us the lookup.
+		MessageSchema.Fields f = MessageSchema.decode(m.message);
+		if(type == HashNode.RESPONSE){
+			l.owner(q.peer, f.getString(2));
+		} else {
+			Peer closer[] = f.getPeers(2);
+			for(int k=0;k<closer.length;k++){
+				l.addCandidate(closer[k]);
+			}
+		}
+		l.fill();
+		return true;
+	}
+
+	// Gives up on queries that have timed out and sends new ones in their place.
+	public void checkTimeouts(){
+		if(queries.size() == 0){
+			return;
+		}
+		double time = node.getTime();
+		ArrayList<Lookup> refill = new ArrayList<Lookup>();
+		Iterator<Query> i = queries.values().iterator();
+		while(i.hasNext()){
+			Query q = i.next();
+			if(time - q.sent > timeout){
+				i.remove();
+				q.lookup.asking.remove(q);
+				q.lookup.timeouts++;
+				// A lost packet shouldn't rule a node out, so give each node a second chance.
+				if(!q.lookup.done && q.lookup.closer(q.peer) && q.lookup.retried.add(q.peer.address)){
+					q.lookup.queried.remove(q.peer.address);
+					q.lookup.addCandidate(q.peer);
+				}
+				if(!q.lookup.done && !refill.contains(q.lookup)){
+					refill.add(q.lookup);
+				}
+			}
+		}
+		for(int k=0;k<refill.size();k++){
+			refill.get(k).fill();
+		}
+	}
+
+	// Returns the next finished lookup or null if none have finished.
+	public Lookup poll(){
+		if(finished.size() == 0){
+			return null;
+		}
+		return finished.remove(0);
+	}
+
+	// Returns true if there are no lookups still running.
+	public boolean idle(){
+		return queries.size() == 0;
+	}
+
+	// A single query sent to a node as part of a lookup.
+	private class Query{
+		Lookup lookup;
+		Peer peer;
+		double sent;
+
+		public Query(Lookup lookup, Peer peer){
+			this.lookup = lookup;
+			this.peer = peer;
+			sent = node.getTime();
+		}
+	}
+
+	// The state of one lookup. Public fields describe the result once done is set.
+	public class Lookup{
+		public String key;
+		public String value; // The value found or null if the lookup failed.
+		public boolean found; // True if the value was found.
+		public boolean done;
+		public int messages; // Amount of queries sent.
+		public int timeouts; // Amount of queries that timed out.
+		public double start, end; // Network time the lookup started and finished.
+
+		float keypos;
+		ArrayList<Peer> shortlist; // Known nodes in order of distance to the key.
+		HashSet<String> queried; // Addresses already queried.
+		HashSet<String> retried; // Addresses that have been queried again after timing out.
+		ArrayList<Query> asking; // Queries in flight.
+		boolean owned = false; // Whether any node has answered as the owner of the key.
+		float owner_distance = Float.POSITIVE_INFINITY; // Distance to the key of the closest node that answered as its owner.
+		float value_distance = Float.POSITIVE_INFINITY; // Distance to the key of the closest node that answered with a value.
+
+		public Lookup(String key){
+			this.key = key;
+			keypos = HashNode.getPosition(key);
+			shortlist = new ArrayList<Peer>();
+			queried = new HashSet<String>();
+			retried = new HashSet<String>();
+			asking = new ArrayList<Query>();
+			start = node.getTime();
+		}
+
+		// Returns the distance from a node to the key. Nodes with unknown positions (the seeds) are infinitely far away.
+		float distance(Peer p){
+			return Float.isNaN(p.position) ? Float.POSITIVE_INFINITY : Math.abs(p.position - keypos);
+		}
+
+		// Takes an answer from a node claiming to own the key. An empty value is the owner not having the key.
+		void owner(Peer p, String v){
+			float dist = distance(p);
+			owned = true;
+			owner_distance = Math.min(owner_distance, dist);
+			if(v != null && v.length() > 0 && (value == null || dist < value_distance)){
+				value = v;
+				value_distance = dist;
+			}
+		}
+
+		// Adds a node to the shortlist in order of distance. A node with several positions is listed once, at the
+		// closest of them to the key that it's been heard of at.
+		void addCandidate(Peer p){
+			if(queried.contains(p.address) || p.address.equals(node.address)){
+				return;
+			}
+			float dist = distance(p);
+			for(int k=0;k<shortlist.size();k++){
+				if(shortlist.get(k).address.equals(p.address)){
+					if(distance(shortlist.get(k)) <= dist){
+						return;
+					}
+					shortlist.remove(k);
+					break;
+				}
+			}
+			int j = shortlist.size();
+			while(j > 0 && distance(shortlist.get(j-1)) > dist){
+				j--;
+			}
+			shortlist.add(j, p);
+		}
+
+		// Returns true if a node could still be closer to the key than the closest that answered as its owner.
+		// Before anyone has answered, any node could be.
+		boolean closer(Peer p){
+			return !owned || distance(p) < owner_distance;
+		}
+
+		// Queries the closest unqueried nodes that could be closer than the owner found so far until alpha queries are
+		// in flight. Finishes the lookup once no query that could find a closer owner is left, with the value found if any.
+		void fill(){
+			if(done){
+				return;
+			}
+			while(asking.size() < alpha && shortlist.size() > 0 && closer(shortlist.get(0))){
+				Peer p = shortlist.remove(0);
+				queried.add(p.address);
+				Query q = new Query(this, p);
+				asking.add(q);
+				queries.put(requestID, q);
+				node.send(p.address, HashNode.makeFindRequest(key, requestID));
+				requestID++;
+				messages++;
+			}
+			for(int k=0;k<asking.size();k++){
+				if(closer(asking.get(k).peer)){
+					return;
+				}
+			}
+			finish(value, value != null);
+		}
+
+		void finish(String value, boolean found){
+			this.value = value;
+			this.found = found;
+			done = true;
+			end = node.getTime();
+			finished.add(this);
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/* The keys a HashNode stores in order of their position on the ring, so it can find the keys in an arc of the ring
+ * without going through its whole table: the ones a new peer takes over (see HashNode.handOffKeys), and with
+ * KeyPlacement.ORDERED the ones in a range of keys (see HashNode.processRangeRequest).
+ * Keys with the same position are in order of key, so with an ordered placement the index is in order of key too.
+ * Adding, removing and finding where to start are O(log n). It holds on to the key strings, on top of the store.
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+public class KeyIndex{
+
+	TreeSet<Entry> entries;
+
+	public KeyIndex(){
+		entries = new TreeSet<Entry>();
+	}
+
+	// Adds a key at the given position. Adding a key that's already there does nothing.
+	public void add(float position, String key){
+		entries.add(new Entry(position, key));
+	}
+
+	// Removes a key added at the given position.
+	public void remove(float position, String key){
+		entries.remove(new Entry(position, key));
+	}
+
+	public int size(){
+		return entries.size();
+	}
+
+	// Returns the keys with positions from `from` up to but not including `to`, in order.
+	public ArrayList<String> between(float from, float to){
+		ArrayList<String> keys = new ArrayList<String>();
+		Iterator<Entry> i = entries.tailSet(new Entry(from, ""), true).iterator();
+		while(i.hasNext()){
+			Entry e = i.next();
+			if(e.position >= to){
+				break;
+			}
+			keys.add(e.key);
+		}
+		return keys;
+	}
+
+	// Returns the keys from start up to but not including end that have positions from `from` up to but not including
+	// `to`, in order. Only right for a placement that keeps the order of keys, where start is at position startpos.
+	public ArrayList<String> range(String start, float startpos, String end, float from, float to){
+		ArrayList<String> keys = new ArrayList<String>();
+		// Keys placed past startpos come after start, so the first one from either place is where to start.
+		Entry first = startpos >= from ? new Entry(startpos, start) : new Entry(from, "");
+		Iterator<Entry> i = entries.tailSet(first, true).iterator();
+		while(i.hasNext()){
+			Entry e = i.next();
+			if(e.position >= to || e.key.compareTo(end) >= 0){
+				break;
+			}
+			keys.add(e.key);
+		}
+		return keys;
+	}
+
+	static class Entry implements Comparable<Entry>{
+		final float position;
+		final String key;
+
+		Entry(float position, String key){
+			this.position = position;
+			this.key = key;
+		}
+
+		public int compareTo(Entry o){
+			int c = Float.compare(position, o.position);
+			return c != 0 ? c : key.compareTo(o.key);
+		}
+	}
+}
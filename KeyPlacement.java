@@ -0,0 +1,95 @@
+/* Maps keys to positions from 0 to 1 on the HashNode ring. Set HashNode.placement to choose one for a whole network.
+ * HASHED spreads keys evenly with a 64 bit hash of their characters, computed without allocating anything.
+ * ORDERED keeps keys in order so ranges of keys live on consecutive nodes (see HashNode.RANGEREQUEST). Use ordered with a
+ * sample of the keys to spread them evenly too.
+ * LEGACY is the original placement (java.util.Random seeded with String.hashCode), kept for comparison.
+ * See PlacementBenchmark for how they compare.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public interface KeyPlacement{
+
+	// Returns the position of key from 0 (inclusive) to 1 (exclusive).
+	public float position(String key);
+
+	public static final KeyPlacement HASHED = new HashedPlacement();
+	public static final KeyPlacement ORDERED = new OrderedPlacement();
+	public static final KeyPlacement LEGACY = new LegacyPlacement();
+
+	// Returns an ordered placement that spreads keys like the sample evenly over the ring, so nodes at random positions
+	// each get a fair share of them and a range of keys spans as many nodes as its share of the keys. ORDERED, which has
+	// no sample, puts every key sharing its first few characters on the same node.
+	public static KeyPlacement ordered(String sample[]){
+		return new OrderedPlacement(sample);
+	}
+}
+
+// Keeps keys in order. The ring is split into equal parts at sorted bounds taken from a sample of the keys, so keys
+// spread over the ring like the sample does, and within a part a key is placed by its characters after the ones the
+// part's bounds share, read as base 256 digits (characters past 255 count as 255, which keeps the order).
+// Without a sample there's one part, and keys are placed by their first few characters, so keys sharing a long
+// prefix share a position and end up on the same node. Positions never go down as keys go up.
+class OrderedPlacement implements KeyPlacement{
+
+	static final int DIGITS = 6; // Characters read as digits, as many as a double holds exactly.
+	static final int MAX_PARTS = 1024;
+	static final float BELOW_ONE = 1 - 1f/(1 << 24); // The largest float below 1.
+
+	final String bound[]; // Sorted and distinct. Part k is from bound[k-1] up to bound[k].
+
+	OrderedPlacement(){
+		bound = new String[0];
+	}
+
+	// Takes up to MAX_PARTS-1 evenly spaced keys of the sample as bounds.
+	OrderedPlacement(String sample[]){
+		String sorted[] = sample.clone();
+		Arrays.sort(sorted);
+		ArrayList<String> b = new ArrayList<String>();
+		int parts = Math.min(MAX_PARTS, sorted.length);
+		for(int k=1;k<parts;k++){
+			String s = sorted[(int)((long)k * sorted.length / parts)];
+			if(b.size() == 0 || !b.get(b.size()-1).equals(s)){
+				b.add(s);
+			}
+		}
+		bound = b.toArray(new String[b.size()]);
+	}
+
+	public float position(String key){
+		int part = Arrays.binarySearch(bound, key);
+		part = part >= 0 ? part+1 : -part-1; // Bounds at or below the key.
+		String lo = part > 0 ? bound[part-1] : "";
+		String hi = part < bound.length ? bound[part] : null;
+		// Every key in the part starts with what its bounds share, so only what comes after tells them apart.
+		int shared = 0;
+		if(hi != null){
+			while(shared < lo.length() && shared < hi.length() && lo.charAt(shared) == hi.charAt(shared)){
+				shared++;
+			}
+		}
+		double low = digits(lo, shared), high = hi == null ? 1 : digits(hi, shared);
+		double within = high > low ? (digits(key, shared) - low) / (high - low) : 0;
+		return Math.min((float)((part + within) / (bound.length + 1)), BELOW_ONE);
+	}
+
+	// Reads DIGITS characters of s from start on as base 256 digits after the point. Missing characters are 0.
+	static double digits(String s, int start){
+		double v = 0, scale = 1.0/256;
+		for(int k=start;k<start+DIGITS && k<s.length();k++){
+			v += Math.min(s.charAt(k), 255) * scale;
+			scale /= 256;
+		}
+		return v;
+	}
+}
+
+// The original placement. It allocates a Random for every key and inherits all of String.hashCode's collisions.
+class LegacyPlacement implements KeyPlacement{
+
+	public float position(String key){
+		return (new java.util.Random(key.hashCode())).nextFloat();
+	}
+}
@@ -0,0 +1,34 @@
+/* Evicts the least recently used item. This is the policy Cache uses by default.
+ */
+
+import java.util.ArrayList;
+
+public class LRUPolicy<KeyType> implements CachePolicy<KeyType>{
+
+	CacheList<KeyType> list = new CacheList<KeyType>();
+
+	public CacheNode<KeyType> add(KeyType key){
+		CacheNode<KeyType> n = new CacheNode<KeyType>(key, 0);
+		list.addFirst(n);
+		return n;
+	}
+
+	public void hit(CacheNode<KeyType> node){
+		list.moveToFront(node);
+	}
+
+	public void miss(KeyType key){
+	}
+
+	public void remove(CacheNode<KeyType> node){
+		list.remove(node);
+	}
+
+	public KeyType evict(){
+		return list.removeLast().key;
+	}
+
+	public void order(ArrayList<KeyType> keys){
+		list.addKeys(keys);
+	}
+}
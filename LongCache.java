@@ -0,0 +1,229 @@
+/* A fixed size least recently used cache for long keys that doesn't allocate anything after it's created.
+ * Like IntCache, but for keys too big for an int, such as a pair of ints or a hash. Ints can be used as keys as well.
+ * The hash table holds the keys themselves next to their slots, so finding a key reads one place in two parallel arrays
+ * rather than following each entry to its slot first. Each slot remembers its table entry, so evicting it doesn't have
+ * to look its key up again, and a hit on the most recently used item leaves the access order alone.
+ * Only use it from one thread at a time, like Cache.
+ * Run main to compare it with IntCache and Cache.
+ */
+
+import java.util.Random;
+
+public class LongCache<RecordType>{
+
+	static final int NONE = -1; // Marks an empty table entry.
+
+	Object record[];
+	int entry[]; // Table entry holding each slot.
+	// Slots either side of each slot in access order. The list is a circle through an extra slot at index capacity,
+	// so next[capacity] is the most recently used slot and previous[capacity] the least, and nothing needs to check for ends.
+	int previous[], next[];
+	// The table: the key in each entry and the slot holding its item, or NONE if the entry is empty.
+	// A key is at its hash or the first free entry after it.
+	long table_key[];
+	int table_slot[];
+	int mask;
+	// Where get last failed to find a key, so put doesn't have to look again right after a miss.
+	long missed_key;
+	int missed_entry = NONE;
+
+	// Allowed capacity of cache and how much is already full.
+	int capacity, filled = 0;
+
+	// Creates a cache holding up to size items. A cache needs room for at least one, since put always keeps the new item.
+	public LongCache(int size){
+		if(size < 1){
+			throw new IllegalArgumentException("LongCache size must be at least 1, not " + size);
+		}
+		capacity = size;
+		record = new Object[size];
+		entry = new int[size];
+		previous = new int[size+1];
+		next = new int[size+1];
+		previous[size] = size;
+		next[size] = size;
+		// At least 4 times the capacity, so probes and the runs delete goes through stay short.
+		int length = Integer.highestOneBit(Math.max(4*size, 2) - 1) << 1;
+		table_key = new long[length];
+		table_slot = new int[length];
+		java.util.Arrays.fill(table_slot, NONE);
+		mask = length-1;
+	}
+
+	// Returns the table entry to start looking for a key from.
+	private int hash(long k){
+		long h = k * 0x9E3779B97F4A7C15L;
+		return (int)(h >>> 32) & mask;
+	}
+
+	// Returns the table entry holding k, or the empty entry where it would go.
+	private int find(long k){
+		int i = hash(k);
+		while(table_slot[i] != NONE && table_key[i] != k){
+			i = (i+1) & mask;
+		}
+		return i;
+	}
+
+	// Fetch a Record from the cache or null if it is not present.
+	// Moves the item to the front of the access order.
+	@SuppressWarnings("unchecked")
+	public RecordType get(long k){
+		int i = find(k);
+		int s = table_slot[i];
+		if(s == NONE){
+			missed_key = k;
+			missed_entry = i;
+			return null;
+		}
+		if(next[capacity] != s){
+			unlink(s);
+			linkFirst(s);
+		}
+		return (RecordType)record[s];
+	}
+
+	// Puts a record in the cache. Replaces record with matching key if found.
+	// If cache is full evicts the least recently accessed item.
+	public void put(long k, RecordType r){
+		int i = missed_entry != NONE && missed_key == k ? missed_entry : find(k);
+		missed_entry = NONE;
+		int s = table_slot[i];
+		if(s != NONE){
+			record[s] = r;
+			return;
+		}
+		if(filled < capacity){
+			s = filled++;
+		} else {
+			// Reuse the least recently used slot.
+			s = previous[capacity];
+			unlink(s);
+			if(delete(entry[s], i)){
+				i = find(k); // Deleting shifted entries around where k goes.
+			}
+		}
+		record[s] = r;
+		table_key[i] = k;
+		table_slot[i] = s;
+		entry[s] = i;
+		linkFirst(s);
+	}
+
+	// Makes slot s the most recently used.
+	private void linkFirst(int s){
+		int first = next[capacity];
+		previous[s] = capacity;
+		next[s] = first;
+		previous[first] = s;
+		next[capacity] = s;
+	}
+
+	// Takes slot s out of the access order.
+	private void unlink(int s){
+		int p = previous[s], n = next[s];
+		next[p] = n;
+		previous[n] = p;
+	}
+
+	// Empties table entry i, moving back any later entries in its run that would no longer be found.
+	// Returns true if entry watch was in the run, since it may have changed.
+	private boolean delete(int i, int watch){
+		boolean moved = i == watch;
+		int j = i;
+		while(true){
+			j = (j+1) & mask;
+			moved |= j == watch;
+			int s = table_slot[j];
+			if(s == NONE){
+				break;
+			}
+			int h = hash(table_key[j]);
+			// Entry j can fill the gap at i unless its home is cyclically in (i, j].
+			if(((j - h) & mask) >= ((j - i) & mask)){
+				table_key[i] = table_key[j];
+				table_slot[i] = s;
+				entry[s] = i;
+				i = j;
+			}
+		}
+		table_slot[i] = NONE;
+		return moved;
+	}
+
+	// Prints the keys for the items currently in the cache, from most to least recently used.
+	public String toString(){
+		String s = "Keys:";
+		for(int n = next[capacity]; n != capacity; n = next[n]){
+			s += (n == next[capacity] ? "" : ", ") + table_key[entry[n]];
+		}
+		return s;
+	}
+
+	// Compares throughput and allocation with IntCache and Cache on the Cache.main workload, then checks it agrees with
+	// Cache on every get, with int keys and with keys that only differ in their high bits.
+	public static void main(String args[]){
+		int operations = 5000000, size = 500;
+		// The keys are made up front, so the random numbers aren't timed.
+		int trace[] = new int[operations];
+		Random rand = new Random(1);
+		for(int k=0;k<operations;k++){
+			double power = 1;
+			for(int j=0;j<5;j++){
+				power *= rand.nextDouble();
+			}
+			trace[k] = (int)(power*10000);
+		}
+		String name[] = {"Cache:     ", "IntCache:  ", "LongCache: "};
+		for(int c=0;c<name.length;c++){
+			long best = Long.MAX_VALUE, allocated = 0;
+			int hits = 0;
+			for(int run=0;run<8;run++){
+				allocated = IntCache.allocatedBytes();
+				long start = System.nanoTime();
+				hits = c == 0 ? IntCache.replay(new Cache<Integer, String>(size), trace)
+						: c == 1 ? IntCache.replay(new IntCache<String>(size), trace) : replay(new LongCache<String>(size), trace);
+				// The first few runs are warm up.
+				if(run >= 3){
+					best = Math.min(best, System.nanoTime() - start);
+				}
+				allocated = IntCache.allocatedBytes() - allocated;
+			}
+			System.out.println(name[c] + String.format("%.2f", operations * 1000.0 / best) + " million ops/s, "
+					+ (allocated < 0 ? "?" : String.format("%.1f", allocated / (double)operations)) + " bytes allocated/op, " + hits + " hits");
+		}
+		// Both are LRU, so they should hit and miss on exactly the same accesses, including with a tiny table that collides a lot.
+		int sizes[] = {1, 3, 64, size};
+		int mismatches = 0;
+		for(int z=0;z<sizes.length;z++){
+			for(int shift=0;shift<64;shift+=32){
+				Cache<Long, Long> cache = new Cache<Long, Long>(sizes[z]);
+				LongCache<Long> longs = new LongCache<Long>(sizes[z]);
+				for(int k=0;k<200000;k++){
+					long key = (long)trace[k] << shift;
+					Long a = cache.get(key), b = longs.get(key);
+					if(a == null ? b != null : !a.equals(b)){
+						mismatches++;
+					}
+					if(a == null){
+						cache.put(key, key);
+						longs.put(key, key);
+					}
+				}
+			}
+		}
+		System.out.println("Agreement with Cache: " + (mismatches == 0 ? "passed" : mismatches + " mismatches"));
+	}
+
+	static int replay(LongCache<String> cache, int trace[]){
+		int hits = 0;
+		for(int k=0;k<trace.length;k++){
+			if(cache.get(trace[k]) == null){
+				cache.put(trace[k], "value");
+			} else {
+				hits++;
+			}
+		}
+		return hits;
+	}
+}
@@ -0,0 +1,34 @@
+/* A HashStore backed by a plain HashMap. This is the default store for a HashNode.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+public class MapStore implements HashStore{
+
+	HashMap<String, String> table;
+
+	public MapStore(){
+		table = new HashMap<String, String>();
+	}
+
+	public String get(String key){
+		return table.get(key);
+	}
+
+	public void put(String key, String value){
+		table.put(key, value);
+	}
+
+	public String remove(String key){
+		return table.remove(key);
+	}
+
+	public int size(){
+		return table.size();
+	}
+
+	public ArrayList<String> keys(){
+		return new ArrayList<String>(table.keySet());
+	}
+}
@@ -0,0 +1,266 @@
+/* Compares building and reading HashNode messages through MessageSchema with the hand-written code it replaced.
+ * The old make* methods and parsing (an if chain on the type, then reading each field by hand) are kept below as Legacy
+ * for the messages a busy ring sends most: requests, responses and stores, with some peer responses and batches.
+ * Both sides read every field of every message and add them up, so neither can skip work, and the sums and built bytes
+ * are checked to be the same. Reading with the schemas has stayed a few nanoseconds a message slower, which is why
+ * HashNode reads requests and stores by hand; the sums show those reads and the declared fields still agree.
+ * Each measurement is warmed up and repeated in a few fresh JVMs (see BenchmarkFork).
+ * Run with an amount of messages as the argument (default 200000).
+ */
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class MessageCodecBenchmark{
+
+	// Message types in the mix, repeated to weight them.
+	static final byte MIX[] = {HashNode.REQUEST, HashNode.REQUEST, HashNode.REQUEST, HashNode.REQUEST,
+			HashNode.RESPONSE, HashNode.RESPONSE, HashNode.RESPONSE, HashNode.RESPONSE,
+			HashNode.STOREREQUEST, HashNode.STOREREQUEST, HashNode.STOREREQUEST, HashNode.PEERRESPONSE, HashNode.MULTISTORE};
+
+	static String key[], value[], batch_keys[][], batch_values[][];
+	static Peer peers[][];
+
+	public static void main(String args[]) throws Exception{
+		if(BenchmarkFork.run(MessageCodecBenchmark.class, args)){
+			return;
+		}
+		int amount = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		Random rand = new Random(5);
+		key = new String[amount];
+		value = new String[amount];
+		for(int k=0;k<amount;k++){
+			key[k] = "key" + rand.nextInt(1000000);
+			value[k] = "value " + Long.toHexString(rand.nextLong());
+		}
+		batch_keys = new String[64][20];
+		batch_values = new String[64][20];
+		peers = new Peer[64][];
+		for(int k=0;k<64;k++){
+			for(int j=0;j<20;j++){
+				batch_keys[k][j] = key[rand.nextInt(amount)];
+				batch_values[k][j] = value[rand.nextInt(amount)];
+			}
+			peers[k] = new Peer[(HashNode.PEERDEPTH+1)*2];
+			for(int j=0;j<peers[k].length;j++){
+				// Some slots empty, like a new node's peer list.
+				peers[k][j] = rand.nextInt(4) == 0 ? null : new Peer("ID-" + rand.nextInt(1000), rand.nextFloat());
+			}
+		}
+
+		byte schema[][] = new byte[amount][], legacy[][] = new byte[amount][];
+		long best_schema = Long.MAX_VALUE, best_legacy = Long.MAX_VALUE;
+		// Take the best of the runs after the warm up, taking turns going first so garbage from one isn't always collected
+		// during the other.
+		for(int run=0;run<2*(BenchmarkFork.WARMUP + BenchmarkFork.RUNS);run++){
+			for(int side=0;side<2;side++){
+				boolean old = (run + side) % 2 == 0;
+				byte built[][] = old ? legacy : schema;
+				long start = System.nanoTime();
+				for(int k=0;k<amount;k++){
+					built[k] = build(k, old);
+				}
+				long time = BenchmarkFork.timed(run/2) ? System.nanoTime() - start : Long.MAX_VALUE;
+				if(old){
+					best_legacy = Math.min(best_legacy, time);
+				} else {
+					best_schema = Math.min(best_schema, time);
+				}
+			}
+		}
+		int different = 0;
+		for(int k=0;k<amount;k++){
+			if(!Arrays.equals(schema[k], legacy[k])){
+				different++;
+			}
+		}
+		System.out.println("build: hand-written " + String.format("%.1f", best_legacy / (double)amount) + " ns/message, schema "
+				+ String.format("%.1f", best_schema / (double)amount) + " ns/message, "
+				+ (different == 0 ? "same bytes" : different + " messages built differently"));
+
+		best_schema = best_legacy = Long.MAX_VALUE;
+		long sum_schema = 0, sum_legacy = 0;
+		MessageSchema.Fields decoded[] = new MessageSchema.Fields[ByteStream.TYPE_MASK+1];
+		for(int run=0;run<2*(BenchmarkFork.WARMUP + BenchmarkFork.RUNS);run++){
+			for(int side=0;side<2;side++){
+				boolean old = (run + side) % 2 == 0;
+				long sum = 0;
+				long start = System.nanoTime();
+				for(int k=0;k<amount;k++){
+					sum += old ? Legacy.read(legacy[k]) : read(legacy[k], decoded);
+				}
+				long time = BenchmarkFork.timed(run/2) ? System.nanoTime() - start : Long.MAX_VALUE;
+				if(old){
+					best_legacy = Math.min(best_legacy, time);
+					sum_legacy = sum;
+				} else {
+					best_schema = Math.min(best_schema, time);
+					sum_schema = sum;
+				}
+			}
+		}
+		System.out.println("read: hand-written " + String.format("%.1f", best_legacy / (double)amount) + " ns/message, schema "
+				+ String.format("%.1f", best_schema / (double)amount) + " ns/message, "
+				+ (sum_schema == sum_legacy ? "same values" : "different values"));
+	}
+
+	// Builds message number k of the mix with HashNode's make* methods or the legacy ones.
+	static byte[] build(int k, boolean old){
+		int b = k & 63;
+		switch(MIX[k % MIX.length]){
+			case HashNode.REQUEST:
+				return old ? Legacy.makeRequest(key[k], k) : HashNode.makeRequest(key[k], k);
+			case HashNode.RESPONSE:
+				return old ? Legacy.makeResponse(k, key[k], value[k]) : HashNode.makeResponse(k, key[k], value[k]);
+			case HashNode.STOREREQUEST:
+				return old ? Legacy.makeStoreRequest(key[k], value[k]) : HashNode.makeStoreRequest(key[k], value[k]);
+			case HashNode.PEERRESPONSE:
+				return old ? Legacy.makePeerResponse(0.25f, peers[b], k) : HashNode.makePeerResponse(0.25f, peers[b], k);
+			default:
+				return old ? Legacy.makeMultiStore(batch_keys[b], batch_values[b]) : HashNode.makeMultiStore(batch_keys[b], batch_values[b]);
+		}
+	}
+
+	// Reads a message through the schemas, dispatching on its type and decoding it with that type's schema into the
+	// fields last decoded with it the way HashNode.decode does, and adds up its fields like Legacy.read.
+	static long read(byte message[], MessageSchema.Fields decoded[]){
+		MessageSchema.Fields f;
+		switch(ByteStream.type(message)){
+			case HashNode.REQUEST:
+				f = decoded[HashNode.REQUEST] = HashNode.REQUEST_FIELDS.decode(message, decoded[HashNode.REQUEST]);
+				return f.getInt(0) + f.getString(1).length();
+			case HashNode.RESPONSE:
+				f = decoded[HashNode.RESPONSE] = HashNode.RESPONSE_FIELDS.decode(message, decoded[HashNode.RESPONSE]);
+				return f.getInt(0) + f.getString(1).length() + f.getString(2).length();
+			case HashNode.STOREREQUEST:
+				f = decoded[HashNode.STOREREQUEST] = HashNode.STOREREQUEST_FIELDS.decode(message, decoded[HashNode.STOREREQUEST]);
+				return f.getString(0).length() + f.getString(1).length();
+			case HashNode.PEERRESPONSE:
+				f = decoded[HashNode.PEERRESPONSE] = HashNode.PEERRESPONSE_FIELDS.decode(message, decoded[HashNode.PEERRESPONSE]);
+				return bits(f.getFloat(0)) + f.getInt(1) + sum(f.getPeers(2));
+			case HashNode.MULTISTORE:
+				f = decoded[HashNode.MULTISTORE] = HashNode.MULTISTORE_FIELDS.decode(message, decoded[HashNode.MULTISTORE]);
+				return sum(f.getStrings(0)) + sum(f.getValues(0));
+		}
+		return 0;
+	}
+
+	static long sum(String s[]){
+		long sum = s.length;
+		for(int k=0;k<s.length;k++){
+			sum += s[k].length();
+		}
+		return sum;
+	}
+
+	static long sum(Peer p[]){
+		long sum = p.length;
+		for(int k=0;k<p.length;k++){
+			if(p[k] != null){
+				sum += p[k].address.length() + bits(p[k].position);
+			}
+		}
+		return sum;
+	}
+
+	static long bits(float f){
+		return Float.floatToIntBits(f);
+	}
+
+	// HashNode's code for the messages in MIX from before MessageSchema.
+	private static class Legacy{
+
+		// Reads a message the way HashNode's process* methods did, and adds up its fields.
+		static long read(byte message[]){
+			ByteStream stream = new ByteStream(message);
+			byte type = stream.readType();
+			if(type == HashNode.REQUEST){
+				int id = stream.readInt();
+				String key = stream.readString();
+				return id + key.length();
+			}else if(type == HashNode.RESPONSE){
+				int id = stream.readInt();
+				String key = stream.readString();
+				String value = stream.readString();
+				return id + key.length() + value.length();
+			}else if(type == HashNode.STOREREQUEST){
+				String key = stream.readString();
+				String value = stream.readString();
+				return key.length() + value.length();
+			}else if(type == HashNode.PEERRESPONSE){
+				float cpos = stream.readFloat();
+				int id = stream.readInt();
+				Peer p[] = new Peer[stream.readShort()];
+				for(int k=0;k<p.length;k++){
+					String pid = stream.readString();
+					if(!pid.equals("")){
+						p[k] = new Peer(pid, stream.readFloat());
+					}
+				}
+				return bits(cpos) + id + sum(p);
+			}else if(type == HashNode.MULTISTORE){
+				String key[] = new String[stream.readShort()];
+				String value[] = new String[key.length];
+				for(int k=0;k<key.length;k++){
+					key[k] = stream.readString();
+					value[k] = stream.readString();
+				}
+				return sum(key) + sum(value);
+			}
+			return 0;
+		}
+
+		static byte[] makeRequest(String key, int requestNumber){
+			ByteStream stream = ByteStream.forMessage();
+			stream.writeType(HashNode.REQUEST, HashNode.string_flags);
+			stream.writeInt(requestNumber);
+			stream.writeString(key);
+			return stream.getBytes();
+		}
+
+		static byte[] makeResponse(int requestNumber, String key, String value){
+			ByteStream stream = ByteStream.forMessage();
+			stream.writeType(HashNode.RESPONSE, HashNode.string_flags);
+			stream.writeInt(requestNumber);
+			stream.writeString(key);
+			stream.writeString(value);
+			return stream.getBytes();
+		}
+
+		static byte[] makeStoreRequest(String key, String value){
+			ByteStream stream = ByteStream.forMessage();
+			stream.writeType(HashNode.STOREREQUEST, HashNode.string_flags);
+			stream.writeString(key);
+			stream.writeString(value);
+			return stream.getBytes();
+		}
+
+		static byte[] makePeerResponse(float target, Peer peer[], int requestNumber){
+			ByteStream stream = ByteStream.forMessage();
+			stream.writeType(HashNode.PEERRESPONSE, HashNode.string_flags | ByteStream.INTERNED_STRINGS);
+			stream.writeFloat(target);
+			stream.writeInt(requestNumber);
+			stream.writeShort((short)peer.length);
+			for(int k=0;k<peer.length;k++){
+				if(peer[k] == null){
+					stream.writeString("");
+				} else {
+					stream.writeString(peer[k].address);
+					stream.writeFloat(peer[k].position);
+				}
+			}
+			return stream.getBytes();
+		}
+
+		static byte[] makeMultiStore(String key[], String value[]){
+			ByteStream stream = ByteStream.forMessage();
+			stream.writeType(HashNode.MULTISTORE, HashNode.string_flags);
+			stream.writeShort((short)key.length);
+			for(int k=0;k<key.length;k++){
+				stream.writeString(key[k]);
+				stream.writeString(value[k]);
+			}
+			return stream.getBytes();
+		}
+	}
+}
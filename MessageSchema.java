@@ -0,0 +1,458 @@
+/* Declares the fields of a type of message once, so the code writing it and the code reading it can't get out of step.
+ * Fields are declared in the order they're sent as "kind name", like "int request" or "string key". Kinds are
+ * int, float, short, byte, string, string[] (a short count and the strings), pair[] (a short count and key value
+ * string pairs) and peer[] (a short count and each peer's address and position, or an empty address for a missing peer).
+ * Messages are written with a Writer, which checks each value put against the next declared field, and read with decode,
+ * which reads every field into a Fields in one pass over the declared kinds. Field values are got by their number in the
+ * declaration. The wire format is the same as writing each value with ByteStream by hand.
+ * Every schema is kept in a table by its type, so a received message is decoded by looking up the schema for its type
+ * byte instead of testing types one by one. Run MessageCodecBenchmark to compare with hand-written code.
+ * Writing through a Writer costs the same as writing by hand, but decode is still a few nanoseconds a message slower
+ * than reading by hand, so HashNode reads the messages it handles on every hop (requests and stores) by hand in their
+ * declared order, and the benchmark checks that reading them both ways gives the same values.
+ */
+
+public class MessageSchema{
+
+	// Kinds of fields.
+	public static final int INT = 0, FLOAT = 1, SHORT = 2, BYTE = 3, STRING = 4, STRINGS = 5, PAIRS = 6, PEERS = 7;
+	static final String KINDS[] = {"int", "float", "short", "byte", "string", "string[]", "pair[]", "peer[]"};
+
+	// Field sequences that decode reads with straight line code rather than a loop over the fields, since most messages
+	// have one of them. A schema with any other sequence is read by the loop. Only add sequences decode handles.
+	static final String SHAPES[] = {"int string", "int string string", "string string", "float int peer[]",
+			"int string peer[]", "int string[]", "int pair[]", "pair[]"};
+
+	// The schema for each type, so messages can be decoded by their type byte.
+	private static final MessageSchema TYPES[] = new MessageSchema[ByteStream.TYPE_MASK+1];
+
+	public final byte type;
+	public final String name;
+	final int flags; // Type byte flags always written for this type, on top of those given to writer.
+	final int kind[];
+	final String field[];
+	final int shape; // Which of SHAPES the fields are, or -1.
+
+	// Declares the fields of messages of the given type and adds the schema to the table of types.
+	// flags are ByteStream type flags to always write, like INTERNED_STRINGS for messages repeating addresses.
+	public MessageSchema(byte type, String name, int flags, String... fields){
+		if(type < 0 || type >= ByteStream.TYPE_MASK){
+			throw new IllegalArgumentException("Message type " + type + " is out of range");
+		}
+		if(TYPES[type] != null){
+			throw new IllegalArgumentException("Message type " + type + " already has a schema (" + TYPES[type].name + ")");
+		}
+		this.type = type;
+		this.name = name;
+		this.flags = flags;
+		kind = new int[fields.length];
+		field = new String[fields.length];
+		for(int k=0;k<fields.length;k++){
+			String part[] = fields[k].trim().split("\\s+");
+			kind[k] = -1;
+			for(int j=0;j<KINDS.length;j++){
+				if(part.length == 2 && KINDS[j].equals(part[0])){
+					kind[k] = j;
+				}
+			}
+			if(kind[k] < 0){
+				throw new IllegalArgumentException("Bad field \"" + fields[k] + "\" in " + name);
+			}
+			field[k] = part[1];
+		}
+		String sequence = "";
+		for(int k=0;k<kind.length;k++){
+			sequence += (k > 0 ? " " : "") + KINDS[kind[k]];
+		}
+		shape = java.util.Arrays.asList(SHAPES).indexOf(sequence);
+		TYPES[type] = this;
+	}
+
+	// Returns the schema for a message type or null if there isn't one.
+	public static MessageSchema forType(byte type){
+		return type >= 0 && type < TYPES.length ? TYPES[type] : null;
+	}
+
+	// Decodes any message with a schema for its type.
+	public static Fields decode(byte message[]){
+		MessageSchema schema = forType(ByteStream.type(message));
+		if(schema == null){
+			throw new IllegalArgumentException("No schema for message type " + ByteStream.type(message));
+		}
+		return schema.decode(message, null);
+	}
+
+	// Decodes a message of this type. into is filled in and returned if it was decoded by this schema before, so a
+	// thread decoding many messages doesn't allocate anything but the values. Otherwise a new Fields is returned.
+	public Fields decode(byte message[], Fields into){
+		if(into == null || into.schema != this){
+			into = new Fields(this);
+		}
+		// Each shape has its own method, small enough to be inlined here along with the reads in it, so the stream a
+		// message is read through never has to be allocated.
+		switch(shape){
+			case 0:
+				return readIntString(message, into);
+			case 1:
+				return readIntStringString(message, into);
+			case 2:
+				return readStringString(message, into);
+			case 3:
+				return readFloatIntPeers(message, into);
+			case 4:
+				return readIntStringPeers(message, into);
+			case 5:
+				return readIntStrings(message, into);
+			case 6:
+				return readIntPairs(message, into);
+			case 7:
+				return readPairs(message, into);
+		}
+		readFields(open(message), into);
+		return into;
+	}
+
+	// Returns a stream reading the message after its type byte, which has to be this schema's type.
+	private ByteStream open(byte message[]){
+		ByteStream stream = new ByteStream(message);
+		if(stream.readType() != type){
+			throw notThisType();
+		}
+		return stream;
+	}
+
+	// Building exception messages is kept out of the methods that check for them, so those stay small enough to inline.
+	private IllegalArgumentException notThisType(){
+		return new IllegalArgumentException("Not a " + name + " message");
+	}
+
+	// Readers for each of SHAPES, in order.
+	private Fields readIntString(byte message[], Fields into){
+		ByteStream stream = open(message);
+		into.values[0] = stream.readInt();
+		into.refs[1] = stream.readString();
+		return into;
+	}
+
+	private Fields readIntStringString(byte message[], Fields into){
+		ByteStream stream = open(message);
+		into.values[0] = stream.readInt();
+		into.refs[1] = stream.readString();
+		into.refs[2] = stream.readString();
+		return into;
+	}
+
+	private Fields readStringString(byte message[], Fields into){
+		ByteStream stream = open(message);
+		into.refs[0] = stream.readString();
+		into.refs[1] = stream.readString();
+		return into;
+	}
+
+	private Fields readFloatIntPeers(byte message[], Fields into){
+		ByteStream stream = open(message);
+		into.values[0] = Float.floatToRawIntBits(stream.readFloat());
+		into.values[1] = stream.readInt();
+		into.refs[2] = readPeers(stream);
+		return into;
+	}
+
+	private Fields readIntStringPeers(byte message[], Fields into){
+		ByteStream stream = open(message);
+		into.values[0] = stream.readInt();
+		into.refs[1] = stream.readString();
+		into.refs[2] = readPeers(stream);
+		return into;
+	}
+
+	private Fields readIntStrings(byte message[], Fields into){
+		ByteStream stream = open(message);
+		into.values[0] = stream.readInt();
+		into.refs[1] = readStrings(stream);
+		return into;
+	}
+
+	private Fields readIntPairs(byte message[], Fields into){
+		ByteStream stream = open(message);
+		into.values[0] = stream.readInt();
+		readPairs(stream, into, 1);
+		return into;
+	}
+
+	private Fields readPairs(byte message[], Fields into){
+		readPairs(open(message), into, 0);
+		return into;
+	}
+
+	// Reads the fields of a message not in one of SHAPES, one kind at a time.
+	private void readFields(ByteStream stream, Fields into){
+		int values[] = into.values;
+		Object refs[] = into.refs;
+		for(int k=0;k<kind.length;k++){
+			switch(kind[k]){
+				case INT:
+					values[k] = stream.readInt();
+					break;
+				case FLOAT:
+					values[k] = Float.floatToRawIntBits(stream.readFloat());
+					break;
+				case SHORT:
+					values[k] = stream.readShort();
+					break;
+				case BYTE:
+					values[k] = stream.readByte();
+					break;
+				case STRING:
+					refs[k] = stream.readString();
+					break;
+				case STRINGS:
+					refs[k] = readStrings(stream);
+					break;
+				case PAIRS:
+					readPairs(stream, into, k);
+					break;
+				case PEERS:
+					refs[k] = readPeers(stream);
+					break;
+			}
+		}
+	}
+
+	// Lists are read in their own methods, which keeps decode small enough to be inlined along with readString.
+	private static String[] readStrings(ByteStream stream){
+		String list[] = new String[stream.readShort()];
+		for(int j=0;j<list.length;j++){
+			list[j] = stream.readString();
+		}
+		return list;
+	}
+
+	// Reads a pair[] field into refs and pair_values.
+	private static void readPairs(ByteStream stream, Fields into, int k){
+		String key[] = new String[stream.readShort()], value[] = new String[key.length];
+		for(int j=0;j<key.length;j++){
+			key[j] = stream.readString();
+			value[j] = stream.readString();
+		}
+		into.refs[k] = key;
+		into.pair_values[k] = value;
+	}
+
+	private static Peer[] readPeers(ByteStream stream){
+		Peer list[] = new Peer[stream.readShort()];
+		for(int j=0;j<list.length;j++){
+			String address = stream.readString();
+			if(!address.equals("")){
+				list[j] = new Peer(address, stream.readFloat());
+			}
+		}
+		return list;
+	}
+
+	// Writers for building messages, one per thread. See writer.
+	private static final ThreadLocal<Writer> WRITER = new ThreadLocal<Writer>(){
+		protected Writer initialValue(){
+			return new Writer();
+		}
+	};
+
+	// Starts writing a message of this type with strings in the format given by ByteStream type flags.
+	// Put every field in order and then take the message with bytes. It's the same writer every time on a thread, like
+	// ByteStream.forMessage, so take the bytes before starting another message, and don't keep the writer.
+	public Writer writer(int string_flags){
+		return WRITER.get().start(this, string_flags | flags);
+	}
+
+	public String toString(){
+		String s = name + "(" + type + "){";
+		for(int k=0;k<kind.length;k++){
+			s += (k > 0 ? ", " : "") + KINDS[kind[k]] + " " + field[k];
+		}
+		return s + "}";
+	}
+
+	// The values of a decoded message, got by their field's number in the schema.
+	public static class Fields{
+		public final MessageSchema schema;
+		// Values by field number. Numbers are in values (floats as their bits) and everything else is in refs,
+		// except the values of pair[] fields, which are in pair_values.
+		final int values[];
+		final Object refs[];
+		final String pair_values[][];
+
+		Fields(MessageSchema schema){
+			this.schema = schema;
+			values = new int[schema.kind.length];
+			refs = new Object[schema.kind.length];
+			pair_values = new String[schema.kind.length][];
+		}
+
+		// Returns an int, short or byte field.
+		public int getInt(int f){
+			return values[f];
+		}
+
+		public float getFloat(int f){
+			return Float.intBitsToFloat(values[f]);
+		}
+
+		public String getString(int f){
+			return (String)refs[f];
+		}
+
+		// Returns a string[] field, or the keys of a pair[] field.
+		public String[] getStrings(int f){
+			return (String[])refs[f];
+		}
+
+		// Returns the values of a pair[] field.
+		public String[] getValues(int f){
+			return pair_values[f];
+		}
+
+		// Returns a peer[] field. Missing peers are null.
+		public Peer[] getPeers(int f){
+			return (Peer[])refs[f];
+		}
+
+		public String toString(){
+			String s = schema.name + "{";
+			for(int k=0;k<schema.kind.length;k++){
+				s += (k > 0 ? ", " : "") + schema.field[k] + "=";
+				int kind = schema.kind[k];
+				if(kind == FLOAT){
+					s += getFloat(k);
+				} else if(kind <= BYTE){
+					s += getInt(k);
+				} else if(kind == STRING){
+					s += getString(k);
+				} else if(kind == STRINGS){
+					s += java.util.Arrays.toString(getStrings(k));
+				} else if(kind == PAIRS){
+					s += getStrings(k).length + " pairs";
+				} else {
+					s += getPeers(k).length + " peers";
+				}
+			}
+			return s + "}";
+		}
+	}
+
+	// Writes a message field by field into a stream it keeps for the purpose, like ByteStream.forMessage does, throwing
+	// an IllegalStateException if a value doesn't match the next field declared.
+	public static class Writer{
+		MessageSchema schema;
+		int kind[]; // The schema's kinds, so checking each value doesn't have to go through the schema.
+		ByteStream stream = new ByteStream(256);
+		int next = 0; // Number of the next field.
+
+		Writer(){
+		}
+
+		// Empties the writer and writes the type byte of a new message.
+		Writer start(MessageSchema schema, int flags){
+			this.schema = schema;
+			kind = schema.kind;
+			next = 0;
+			stream.reset();
+			stream.writeType(schema.type, flags);
+			return this;
+		}
+
+		public Writer putInt(int v){
+			expect(INT);
+			stream.writeInt(v);
+			return this;
+		}
+
+		public Writer putFloat(float v){
+			expect(FLOAT);
+			stream.writeFloat(v);
+			return this;
+		}
+
+		public Writer putShort(int v){
+			expect(SHORT);
+			stream.writeShort((short)v);
+			return this;
+		}
+
+		public Writer putByte(int v){
+			expect(BYTE);
+			stream.writeByte((byte)v);
+			return this;
+		}
+
+		public Writer putString(String s){
+			expect(STRING);
+			stream.writeString(s);
+			return this;
+		}
+
+		// Lists take at most Short.MAX_VALUE entries, since their count is a short, and throw an IllegalArgumentException
+		// for more.
+		public Writer putStrings(String s[]){
+			expect(STRINGS);
+			writeCount(s.length);
+			for(int k=0;k<s.length;k++){
+				stream.writeString(s[k]);
+			}
+			return this;
+		}
+
+		public Writer putPairs(String key[], String value[]){
+			expect(PAIRS);
+			writeCount(key.length);
+			for(int k=0;k<key.length;k++){
+				stream.writeString(key[k]);
+				stream.writeString(value[k]);
+			}
+			return this;
+		}
+
+		// Null peers are written as an empty address with no position.
+		public Writer putPeers(Peer peer[]){
+			expect(PEERS);
+			writeCount(peer.length);
+			for(int k=0;k<peer.length;k++){
+				if(peer[k] == null){
+					stream.writeString("");
+				} else {
+					stream.writeString(peer[k].address);
+					stream.writeFloat(peer[k].position);
+				}
+			}
+			return this;
+		}
+
+		// Returns the message. Every field must have been put.
+		public byte[] bytes(){
+			if(next != kind.length){
+				throw new IllegalStateException(schema.name + " is missing its " + schema.field[next] + " field");
+			}
+			return stream.getBytes();
+		}
+
+		private void writeCount(int length){
+			if(length > Short.MAX_VALUE){
+				throw new IllegalArgumentException(schema.name + " field " + schema.field[next-1] + " has " + length
+						+ " entries, more than " + Short.MAX_VALUE);
+			}
+			stream.writeShort((short)length);
+		}
+
+		private void expect(int k){
+			if(next >= kind.length || kind[next] != k){
+				throw mismatch(k);
+			}
+			next++;
+		}
+
+		private IllegalStateException mismatch(int k){
+			if(next >= kind.length){
+				return new IllegalStateException(schema.name + " only has " + kind.length + " fields");
+			}
+			return new IllegalStateException(schema.name + " field " + schema.field[next] + " is " + KINDS[kind[next]] + " not " + KINDS[k]);
+		}
+	}
+}
@@ -1,14 +1,26 @@
-/* This is the core class of the P2P network simulator. It handles threading, message passing, and drawing the network.
- * See GUIHashNodeTest for an example of how to use the simulator to run a distributed hashtable.
- * Key functions are addNode, setLink, getTime (time_speed is a public variable), draw, stop, randomNode, and sendMessage.
+/* This is the core class of the P2P network simulator. It handles threading and message passing.
+ * See GUIHashNodeTest for an example of how to use the simulator to run a distributed hashtable, and HeadlessRunner to
+ * run one without a window.
+ * Key functions are addNode, setLink, getTime (time_speed is a public variable), view, stop, randomNode, and sendMessage.
  * Adding links is not required. They will be created automatically using defaults, but you can override those with setLink.
  * The simulator starts a thread for itself as well as for every node. stop() stops all threads or you can stop a node by address.
+ * checkpoint writes the whole simulation to a file and restore makes a new network from one, so an experiment can start
+ * from a warmed up network instead of building it again, and several can be forked from the same state.
+ * Nothing here draws. view returns a NetworkView, a copy of what the network looks like that a window can draw at
+ * its own pace, so watching a network never holds up its threads.
+ * pause stops network time and message delivery until resume, and checkpoint also holds every node at a safe point
+ * (see Node.safePoint) while it saves, so it gets a consistent state.
+ * Run main to fork a network with requests in flight and check that every copy answers them.
  */
 
-import java.awt.Color;
-import java.awt.Graphics;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Random;
+import java.util.TreeMap;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -19,6 +31,7 @@ public class Network implements Runnable{
 	PriorityBlockingQueue<Transmission> transmit_queue; // Transmissions that have not arrived yet
 
 	boolean stopped = false; // Stops the network's thread if set to true.
+	volatile boolean paused = false; // Network time stands still and nothing is delivered while set. See pause.
 
 	Random rand; // A pseudo-random number generator, so well constructed experiments can be replicated.
 	float default_link_rate; // Rate in bytes/time for a link not manually initialized.
@@ -26,6 +39,12 @@ public class Network implements Runnable{
 	float max_random_latency; // Each link is also given an additional latency at random up to this amount.
 	float packet_drop_chance; // The chance that a packet will be dropped.
 	float clock_desynchronization; // Node clocks maybe be off from the network clock by up to this amount.
+	public EventSink events = EventSink.OFF; // Where nodes log events. See Node.log.
+
+	public float frame_rate = 30; // The most views made each second of real time. See view.
+	volatile NetworkView view = null; // The latest view.
+	volatile boolean view_wanted = false; // Set by view and cleared once a new view is made.
+	volatile Thread viewer = null; // Makes views once they're asked for.
 	
 	// Current time in the network.
 	double net_time = 0 ;
@@ -66,8 +85,18 @@ public class Network implements Runnable{
 		n.last_time = getTime();
 		n.clock_offset = (rand.nextFloat()*2f-1f)*clock_desynchronization;
 		n.network = this;
+		start(n);
+	}
+
+	// Puts a node in the network and starts its thread.
+	private void start(final Node n){
 		nodes.put(n.address, n);
-		Thread t = new Thread(n);
+		n.running = true;
+		Thread t = new Thread(new Runnable(){
+			public void run(){
+				n.runThread();
+			}
+		});
 		t.start();
 	}
 
@@ -82,7 +111,9 @@ public class Network implements Runnable{
 	// Nodes should use Node.getTime() to properly simulate clock desycnrhonization.
 	public double getTime(){
 		long current_time = System.currentTimeMillis();
-		net_time+=(current_time-last_time)*time_speed/1000.0;
+		if(!paused){
+			net_time+=(current_time-last_time)*time_speed/1000.0;
+		}
 		last_time = current_time ;
 		return net_time ;
 	}
@@ -108,6 +139,14 @@ public class Network implements Runnable{
 		}
 	}
 
+	// Returns how long a message sent now from one node to another would wait behind messages already sent on the link,
+	// on top of the link's latency. This is only the sender's own send queue, which a real sender can see; how backed up
+	// the receiver is isn't included, since the sender would have no way of knowing. It doesn't change the link.
+	public double queueDelay(String from, String to){
+		Link l = links.get(from+"-"+to);
+		return l == null ? 0 : l.queueDelay(getTime());
+	}
+
 	// Stops the threads of the network and all nodes in the network.
 	public void stop(){
 		Iterator<String> i = nodes.keySet().iterator();
@@ -122,6 +161,174 @@ public class Network implements Runnable{
 		nodes.get(node).stop();
 	}
 
+	// Stops network time and delivering messages. Nodes keep running, but only on what they've already received.
+	public void pause(){
+		paused = true;
+	}
+
+	// Starts network time and delivery again after pause.
+	public void resume(){
+		getTime(); // Moves last_time up, so the pause isn't counted.
+		paused = false;
+	}
+
+	// Waits until nodes have processed every message they're going to, which they all do within a few milliseconds once
+	// nothing new is being delivered. Nodes that never take their messages (like ClientNodes) keep them.
+	private void waitForIdle(){
+		int last = -1, same = 0;
+		while(same < 3){
+			try{Thread.sleep(5); } catch(InterruptedException e){}
+			int queued = 0;
+			Iterator<Node> i = nodes.values().iterator();
+			while(i.hasNext()){
+				queued += i.next().message_queue.size();
+			}
+			same = queued == last ? same+1 : 0;
+			last = queued;
+		}
+	}
+
+	static final String SNAPSHOT = "P2P simulation snapshot";
+	static final int SNAPSHOT_VERSION = 1;
+
+	// Writes the whole simulation to a file: the network's settings and time, every node (see Node.save), every link
+	// and every message still in flight. The network is paused while the nodes go idle and the file is written.
+	// Each node saves itself on its own thread and then waits at its safe point until the file is written, so no node
+	// changes itself, the links or the messages in flight while they're saved.
+	// The random generator is reseeded with a seed that's saved, so this network and any restored from the file go on
+	// drawing the same random numbers. Event sinks and static settings (like HashNode.placement) aren't saved.
+	public void checkpoint(File f) throws IOException{
+		boolean was_paused = paused;
+		pause();
+		// Written in a fixed order, so the same state always makes the same file.
+		Node node[] = new Node[0];
+		try{
+			waitForIdle();
+			node = new TreeMap<String, Node>(nodes).values().toArray(node);
+			ByteStream saved[] = new ByteStream[node.length];
+			for(int k=0;k<node.length;k++){
+				saved[k] = new ByteStream(256);
+				saved[k].setStringFormat(ByteStream.COMPACT_STRINGS);
+				saved[k].writeString(node[k].getClass().getName());
+				saved[k].writeString(node[k].address);
+				node[k].hold(saved[k]);
+			}
+			for(int k=0;k<node.length;k++){
+				node[k].awaitSaved();
+			}
+			Link link[] = new TreeMap<String, Link>(links).values().toArray(new Link[0]);
+			Transmission flying[] = transmit_queue.toArray(new Transmission[0]);
+			Arrays.sort(flying);
+			long seed = rand.nextLong();
+			rand.setSeed(seed);
+			StreamFile out = StreamFile.openWrite(f);
+			try{
+				ByteStream s = new ByteStream(4096);
+				s.setStringFormat(ByteStream.COMPACT_STRINGS);
+				s.writeString(SNAPSHOT);
+				s.writeInt(SNAPSHOT_VERSION);
+				s.writeFloat(default_link_rate);
+				s.writeFloat(latency_per_distance);
+				s.writeFloat(max_random_latency);
+				s.writeFloat(packet_drop_chance);
+				s.writeFloat(clock_desynchronization);
+				s.writeDouble(getTime());
+				s.writeDouble(time_speed);
+				s.writeLong(seed);
+				s.writeInt(node.length);
+				s.writeInt(link.length);
+				s.writeInt(flying.length);
+				out.writeRecord(s);
+				for(int k=0;k<node.length;k++){
+					out.writeRecord(saved[k]);
+				}
+				for(int k=0;k<link.length;k++){
+					s.reset();
+					s.setStringFormat(ByteStream.COMPACT_STRINGS);
+					link[k].save(s);
+					out.writeRecord(s);
+				}
+				for(int k=0;k<flying.length;k++){
+					s.reset();
+					s.setStringFormat(ByteStream.COMPACT_STRINGS);
+					flying[k].save(s);
+					out.writeRecord(s);
+				}
+			}finally{
+				out.close();
+			}
+		}finally{
+			for(int k=0;k<node.length;k++){
+				node[k].release();
+			}
+			if(!was_paused){
+				resume();
+			}
+		}
+	}
+
+	// Makes a new network from a file written by checkpoint, with every node's thread started.
+	// It starts paused, so anything else can be set up (like events) before calling resume.
+	// Restore the same file more than once to fork several experiments from one state.
+	public static Network restore(File f) throws IOException{
+		StreamFile in = StreamFile.openRead(f);
+		try{
+			ByteStream s = next(in);
+			if(!s.readString().equals(SNAPSHOT)){
+				throw new IOException(f + " isn't a simulation snapshot");
+			}
+			int version = s.readInt();
+			if(version != SNAPSHOT_VERSION){
+				throw new IOException(f + " is a version " + version + " snapshot, not version " + SNAPSHOT_VERSION);
+			}
+			Network net = new Network(s.readFloat(), s.readFloat(), s.readFloat(), s.readFloat(), 0, 0);
+			net.pause();
+			net.clock_desynchronization = s.readFloat();
+			net.net_time = s.readDouble();
+			net.time_speed = s.readDouble();
+			net.rand.setSeed(s.readLong());
+			int node_count = s.readInt(), link_count = s.readInt(), flying_count = s.readInt();
+			Node node[] = new Node[node_count];
+			for(int k=0;k<node_count;k++){
+				s = next(in);
+				String type = s.readString();
+				String address = s.readString();
+				try{
+					java.lang.reflect.Constructor<?> c = Class.forName(type).getDeclaredConstructor(String.class);
+					c.setAccessible(true);
+					node[k] = (Node)c.newInstance(address);
+				}catch(ReflectiveOperationException e){
+					throw new IOException("Can't make a " + type + " to restore " + address + " (it needs a constructor taking its address)", e);
+				}
+				node[k].network = net;
+				node[k].restore(s);
+			}
+			for(int k=0;k<link_count;k++){
+				Link l = net.new Link(next(in));
+				net.links.put(l.from+"-"+l.to, l);
+			}
+			for(int k=0;k<flying_count;k++){
+				net.transmit_queue.add(net.new Transmission(next(in)));
+			}
+			for(int k=0;k<node_count;k++){
+				net.start(node[k]);
+			}
+			return net;
+		}finally{
+			in.close();
+		}
+	}
+
+	// Returns the next record of a snapshot, ready to read strings from.
+	private static ByteStream next(StreamFile in) throws IOException{
+		ByteStream s = in.readRecord();
+		if(s == null){
+			throw new IOException("Snapshot ends early");
+		}
+		s.setStringFormat(ByteStream.COMPACT_STRINGS);
+		return s;
+	}
+
 	// Returns the ID of a random node in the network.
 	// Useful for connecting new nodes and creating random failures.
 	// Returns "" if there are no nodes.
@@ -138,7 +345,7 @@ public class Network implements Runnable{
 	public void run() {
 		while(!stopped){
 			double time = getTime();
-			while(transmit_queue.size() > 0 && transmit_queue.peek().arrivaltime < time){
+			while(!paused && transmit_queue.size() > 0 && transmit_queue.peek().arrivaltime < time){
 				Transmission m = transmit_queue.poll();
 				// Verify receiver node is running before delivering message.
 				Node t = nodes.get(m.to);
@@ -150,24 +357,74 @@ public class Network implements Runnable{
 		}
 	}
 
-	// Draws the network to the given graphics object.
-	// Links that have not been used within the given time will not be shown.
-	public void draw(Graphics g, float inactive_time){
-		// Draw links.
-		Iterator<String> i = links.keySet().iterator();
-		while(i.hasNext()){
-			links.get(i.next()).draw(g, inactive_time);
+	// Returns the latest view of the network for drawing, and asks for a newer one.
+	// Views are made by a low priority thread of their own, no more than frame_rate times a second and only after
+	// one is asked for, so the caller never waits on one being made and nothing is made for nobody.
+	// The first call makes a view straight away and starts the thread.
+	public NetworkView view(){
+		view_wanted = true;
+		if(viewer == null){
+			synchronized(this){
+				if(viewer == null){
+					view = makeView();
+					viewer = new Thread(new Runnable(){
+						public void run(){
+							while(!stopped){
+								long start = System.nanoTime();
+								if(view_wanted){
+									view_wanted = false;
+									view = makeView();
+								}
+								long left = (long)(1000 / frame_rate) - (System.nanoTime() - start) / 1000000;
+								try{Thread.sleep(Math.max(left, 1)); } catch(InterruptedException e){}
+							}
+						}
+					});
+					viewer.setDaemon(true);
+					viewer.setPriority(Thread.MIN_PRIORITY);
+					viewer.start();
+				}
+			}
 		}
-		// Draw nodes.
-		i = nodes.keySet().iterator();
-		while(i.hasNext()){
-			nodes.get(i.next()).draw(g);
+		return view;
+	}
+
+	// Makes a view of the network as it is now. This only reads the simulation, without locking anything nodes use,
+	// so it may see a node or link part way through an update, which is a pixel out at worst.
+	NetworkView makeView(){
+		double time = getTime();
+		Node node[] = nodes.values().toArray(new Node[0]);
+		Link link[] = links.values().toArray(new Link[0]);
+		Transmission flying[] = transmit_queue.toArray(new Transmission[0]);
+		NetworkView v = new NetworkView(time, node.length, link.length, flying.length);
+		for(int k=0;k<node.length;k++){
+			if(!node[k].stopped){
+				v.addNode(node[k].x, node[k].y, node[k].color(), node[k].shape());
+			}
 		}
-		// Draw messages.
-		Iterator<Transmission> i2 = transmit_queue.iterator();
-		while(i2.hasNext()){
-			i2.next().draw(g);
+		for(int k=0;k<link.length;k++){
+			Node f = nodes.get(link[k].from), t = nodes.get(link[k].to);
+			if(f!=null && t!=null && !f.stopped && !t.stopped){
+				int oy = offset(f, t);
+				v.addLink(f.x, f.y+oy, t.x, t.y+oy, NetworkView.loadColor(link[k].flow, link[k].maximum_flow),
+						(float)(time - link[k].lastarrival));
+			}
+		}
+		for(int k=0;k<flying.length;k++){
+			Transmission m = flying[k];
+			Node f = nodes.get(m.from), t = nodes.get(m.to);
+			if(f!=null && t!=null && !f.stopped && !t.stopped){
+				double s = (time-m.senttime) / (float)(m.arrivaltime - m.senttime);
+				int oy = offset(f, t);
+				v.addMessage((float)((1-s) * f.x + s * t.x), (float)((1-s)*f.y + s*t.y) + oy, m.dropped);
+			}
 		}
+		return v;
+	}
+
+	// Links each way between two nodes are drawn 10 pixels above or below the line between them, so both show.
+	private static int offset(Node f, Node t){
+		return f.address.compareTo(t.address) < 0 ? -10 : 10;
 	}
 
 	// Distance between nodes.
@@ -181,6 +438,97 @@ public class Network implements Runnable{
 		}
 	}
 
+	// Builds a ring and fills it with items, checkpoints it with requests for items still in flight, and restores two forks
+	// from the checkpoint. The original and both forks should go on to answer every request.
+	// Run with the amount of nodes and items as arguments (default 100 and 10000).
+	public static void main(String args[]) throws Exception{
+		int amount = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int items = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int requests = 1000;
+		long start = System.nanoTime();
+		Random rand = new Random(7);
+		Network net = new Network(99999999, 0.001f, .1f, 0, 0, 12345);
+		net.time_speed = 10;
+		HashNode ring[] = new HashNode[amount];
+		for(int k=0;k<amount;k++){
+			ring[k] = new HashNode("ID-" + k, HashNode.randomPositions(4, 1, rand));
+		}
+		HashNode.bootstrap(ring);
+		for(int k=0;k<amount;k++){
+			net.addNode(ring[k], rand.nextFloat()*800, rand.nextFloat()*800, 99999999);
+		}
+		ClientNode client = new ClientNode("client");
+		net.addNode(client, 400, 400, 99999999);
+		// Items go in through the network, so links get made along the way.
+		for(int k=0;k<items;k+=1000){
+			String key[] = new String[Math.min(1000, items-k)], value[] = new String[key.length];
+			for(int j=0;j<key.length;j++){
+				key[j] = "key" + (k+j);
+				value[j] = "value" + (k+j);
+			}
+			client.send(ring[rand.nextInt(amount)].address, HashNode.makeMultiStore(key, value));
+		}
+		int stored = 0;
+		for(int wait=0;wait<1000 && stored < items;wait++){
+			Thread.sleep(20);
+			stored = 0;
+			for(int k=0;k<amount;k++){
+				stored += ring[k].table.size();
+			}
+		}
+		System.out.println(amount + " nodes with " + stored + " of " + items + " items stored in "
+				+ String.format("%.2f", (System.nanoTime() - start) / 1e9) + " s");
+
+		for(int k=0;k<requests;k++){
+			client.send(ring[rand.nextInt(amount)].address, HashNode.makeRequest("key" + rand.nextInt(items), k));
+		}
+		File f = File.createTempFile("simulation", ".snapshot");
+		f.deleteOnExit();
+		start = System.nanoTime();
+		// Kept paused until the forks are made, so they aren't slowed down by it.
+		net.pause();
+		int in_flight = net.transmit_queue.size();
+		net.checkpoint(f);
+		System.out.println("checkpoint with " + in_flight + " messages in flight: " + String.format("%.1f", (System.nanoTime() - start) / 1e6)
+				+ " ms, " + f.length() + " bytes");
+		Network copy[] = {net, null, null};
+		for(int k=1;k<copy.length;k++){
+			start = System.nanoTime();
+			copy[k] = restore(f);
+			System.out.println("restore " + k + ": " + String.format("%.1f", (System.nanoTime() - start) / 1e6) + " ms");
+		}
+		// Checkpointing again should give the same file for the original and a fork, since they're in the same state.
+		File again[] = {File.createTempFile("simulation", ".snapshot"), File.createTempFile("simulation", ".snapshot")};
+		for(int k=0;k<2;k++){
+			again[k].deleteOnExit();
+			copy[k].checkpoint(again[k]);
+		}
+		System.out.println("checkpoint of fork 1 is " + (Arrays.equals(Files.readAllBytes(again[0].toPath()), Files.readAllBytes(again[1].toPath()))
+				? "the same as" : "different from") + " the original's");
+		for(int k=0;k<copy.length;k++){
+			copy[k].resume();
+		}
+		for(int k=0;k<copy.length;k++){
+			ClientNode c = (ClientNode)copy[k].nodes.get("client");
+			HashSet<Integer> answered = new HashSet<Integer>();
+			for(int wait=0;wait<500 && answered.size() < requests;wait++){
+				Message m;
+				while((m = c.receive()) != null){
+					if(ByteStream.type(m.message) == HashNode.RESPONSE){
+						MessageSchema.Fields r = MessageSchema.decode(m.message);
+						if(r.getString(2).equals("value" + r.getString(1).substring(3))){
+							answered.add(r.getInt(0));
+						}
+					}
+				}
+				Thread.sleep(20);
+			}
+			System.out.println((k == 0 ? "original" : "fork " + k) + ": " + answered.size() + " of " + requests + " requests answered correctly");
+			copy[k].stop();
+		}
+		System.exit(0);
+	}
+
 	// Link class for keeping track of flow rate of links.
 	private class Link{
 		String from, to;
@@ -200,6 +548,29 @@ public class Network implements Runnable{
 			this.last_time = time;
 			this.flow = max;
 		}
+
+		// Reads a link written by save.
+		public Link(ByteStream s){
+			from = s.readString();
+			to = s.readString();
+			latency = s.readFloat();
+			refill_rate = s.readFloat();
+			maximum_flow = s.readFloat();
+			flow = s.readFloat();
+			last_time = s.readDouble();
+			lastarrival = s.readDouble();
+		}
+
+		public void save(ByteStream s){
+			s.writeString(from);
+			s.writeString(to);
+			s.writeFloat(latency);
+			s.writeFloat(refill_rate);
+			s.writeFloat(maximum_flow);
+			s.writeFloat(flow);
+			s.writeDouble(last_time);
+			s.writeDouble(lastarrival);
+		}
 		// Updates the amount of available flow.
 		public void updateFlow(double time){
 			flow += refill_rate * (time - last_time);
@@ -209,6 +580,12 @@ public class Network implements Runnable{
 			last_time = time;
 		}
 
+		// Returns how long a message sent at time would wait for earlier messages to get through, without using any flow.
+		public double queueDelay(double time){
+			double available = Math.min(maximum_flow, flow + refill_rate * (time - last_time));
+			return Math.max(-available / refill_rate, 0);
+		}
+
 		// Returns the time at which the message will arrive considering pipe width and latency
 		public double sendTime(int size, double request_time){
 			updateFlow(request_time); // enforces flow build up cap out when not in use.
@@ -217,28 +594,6 @@ public class Network implements Runnable{
 			lastarrival = arrival;
 			return arrival;
 		}
-
-		// Draws a link if it's been active recently. Scales from green to black to red based on load.
-		public synchronized void draw(Graphics gr, float inactivitetime){
-			if(getTime() - lastarrival < inactivitetime){
-				int r=0,g=0;
-				float mid = maximum_flow/2;
-				if( flow < mid){
-					r = (int)(255* (mid - flow) / mid) ;
-				} else {
-					g =  (int)(255* (flow - mid) / mid) ;
-				}
-				gr.setColor(new Color(Math.min(r,255),Math.min(g,255),0));
-				Node f = nodes.get(from), t = nodes.get(to);
-				if(f!=null && t!=null && !f.stopped && !t.stopped){
-					int oy = 10;
-					if(f.address.compareTo(t.address) < 0){
-						oy = -10;
-					}
-					gr.drawLine((int)f.x, (int)f.y+oy, (int)t.x, (int)t.y+oy);
-				}
-			}
-		}
 	}
 	// Transmission class for queueing messages to arrive at future times.
 	private class Transmission implements Comparable<Transmission>{
@@ -256,26 +611,27 @@ public class Network implements Runnable{
 			this.arrivaltime = arrivaltime;
 			dropped = rand.nextFloat() < packet_drop_chance;
 		}
+
+		// Reads a transmission written by save. Whether it's dropped was already decided.
+		public Transmission(ByteStream s){
+			from = s.readString();
+			to = s.readString();
+			message = s.readBytes();
+			senttime = s.readDouble();
+			arrivaltime = s.readDouble();
+			dropped = s.readByte() != 0;
+		}
+
+		public void save(ByteStream s){
+			s.writeString(from);
+			s.writeString(to);
+			s.writeBytes(message);
+			s.writeDouble(senttime);
+			s.writeDouble(arrivaltime);
+			s.writeByte((byte)(dropped ? 1 : 0));
+		}
 		public int compareTo(Transmission o) {
-			return (int)(10000 * (arrivaltime - o.arrivaltime));
-		}
-
-		public synchronized void draw(Graphics g){
-			Node f = nodes.get(from), t = nodes.get(to);
-			if( f != null && t != null && !f.stopped && !t.stopped){
-				double s = (getTime()-senttime) / (float)(arrivaltime - senttime);
-				float x = (float)((1-s) * f.x + s * t.x), y = (float)((1-s)*f.y + s*t.y);
-				if(dropped){
-					g.setColor(Color.red);
-				}else{
-					g.setColor(Color.black);
-				}
-				int oy = 10;
-				if(f.address.compareTo(t.address) < 0){
-					oy = -10;
-				}
-				g.drawOval((int)x-2, (int)(y-2)+oy,4,4);
-			}
+			return Double.compare(arrivaltime, o.arrivaltime);
 		}
 	}
 }
\ No newline at end of file
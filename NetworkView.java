@@ -0,0 +1,194 @@
+/* A picture of a network at one moment, for drawing it without touching the simulation.
+ * Network.view returns the latest one. Views are made by the network's own low priority thread at most
+ * Network.frame_rate times a second, and only while something keeps asking for them, so a network nobody is
+ * watching (like one run by HeadlessRunner) never makes any. Making one only reads the simulation: it takes no
+ * locks that nodes or the network wait on, so drawing can't slow the simulation down however long it takes.
+ * A view never changes once it's published, so it can be drawn from any thread, as often as wanted.
+ * Nodes choose how they look with Node.color and Node.shape.
+ * Run main to compare a hashtable run nobody watches with one drawn as fast as views come.
+ */
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.util.Properties;
+
+public class NetworkView{
+
+	// Node shapes. See Node.shape.
+	public static final int CIRCLE = 0, SQUARE = 1;
+
+	public final double time; // Network time the view was made at.
+
+	// Running nodes.
+	int nodes = 0;
+	final float node_x[], node_y[];
+	final int node_color[], node_shape[];
+
+	// Links between running nodes, from (x1,y1) to (x2,y2), already offset so links each way are side by side.
+	int links = 0;
+	final float link_x1[], link_y1[], link_x2[], link_y2[];
+	final int link_color[];
+	final float link_idle[]; // Network time since a message last arrived over the link.
+
+	// Messages in flight.
+	int messages = 0;
+	final float message_x[], message_y[];
+	final boolean message_dropped[];
+
+	// Makes an empty view with room for up to the given amount of each thing. Only Network fills them in, before
+	// the view is published.
+	NetworkView(double time, int max_nodes, int max_links, int max_messages){
+		this.time = time;
+		node_x = new float[max_nodes];
+		node_y = new float[max_nodes];
+		node_color = new int[max_nodes];
+		node_shape = new int[max_nodes];
+		link_x1 = new float[max_links];
+		link_y1 = new float[max_links];
+		link_x2 = new float[max_links];
+		link_y2 = new float[max_links];
+		link_color = new int[max_links];
+		link_idle = new float[max_links];
+		message_x = new float[max_messages];
+		message_y = new float[max_messages];
+		message_dropped = new boolean[max_messages];
+	}
+
+	void addNode(float x, float y, int color, int shape){
+		node_x[nodes] = x;
+		node_y[nodes] = y;
+		node_color[nodes] = color;
+		node_shape[nodes] = shape;
+		nodes++;
+	}
+
+	void addLink(float x1, float y1, float x2, float y2, int color, float idle){
+		link_x1[links] = x1;
+		link_y1[links] = y1;
+		link_x2[links] = x2;
+		link_y2[links] = y2;
+		link_color[links] = color;
+		link_idle[links] = idle;
+		links++;
+	}
+
+	void addMessage(float x, float y, boolean dropped){
+		message_x[messages] = x;
+		message_y[messages] = y;
+		message_dropped[messages] = dropped;
+		messages++;
+	}
+
+	public int nodeCount(){
+		return nodes;
+	}
+
+	public int linkCount(){
+		return links;
+	}
+
+	public int messageCount(){
+		return messages;
+	}
+
+	// Returns the color for something with the given flow left out of its maximum, as 0xRRGGBB.
+	// Scales from green when unused to black at half its capacity to red when it's used up.
+	public static int loadColor(float flow, float maximum_flow){
+		int r=0,g=0;
+		float mid = maximum_flow/2;
+		if( flow < mid){
+			r = (int)(255* (mid - flow) / mid) ;
+		} else {
+			g =  (int)(255* (flow - mid) / mid) ;
+		}
+		return Math.min(r,255) << 16 | Math.min(g,255) << 8;
+	}
+
+	// Draws the network as it was when the view was made.
+	// Links that have not been used within the given time will not be shown.
+	public void draw(Graphics gr, float inactive_time){
+		for(int k=0;k<links;k++){
+			if(link_idle[k] < inactive_time){
+				gr.setColor(new Color(link_color[k]));
+				gr.drawLine((int)link_x1[k], (int)link_y1[k], (int)link_x2[k], (int)link_y2[k]);
+			}
+		}
+		// Connections are always drawn to (x,y+-10), so nodes should look right around that.
+		for(int k=0;k<nodes;k++){
+			gr.setColor(new Color(node_color[k]));
+			if(node_shape[k] == SQUARE){
+				gr.drawRect((int)node_x[k]-10,(int)node_y[k]-10,20,20);
+			} else {
+				gr.drawOval((int)node_x[k]-10,(int)node_y[k]-10,20,20);
+			}
+		}
+		for(int k=0;k<messages;k++){
+			gr.setColor(message_dropped[k] ? Color.red : Color.black);
+			gr.drawOval((int)message_x[k]-2, (int)message_y[k]-2,4,4);
+		}
+	}
+
+	// Runs the same HashTableScenario twice, once unwatched and once with a thread drawing every view it can get into an
+	// image, and compares how long the ring takes to answer every key. Run with the amount of nodes and keys as arguments
+	// (default 100 and 300).
+	public static void main(String args[]) throws Exception{
+		int keys = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+		for(int watched=0;watched<2;watched++){
+			Properties settings = new Properties();
+			settings.setProperty("nodes", args.length > 0 ? args[0] : "100");
+			settings.setProperty("keys", "" + keys);
+			settings.setProperty("print", "false");
+			HashTableScenario scenario = new HashTableScenario(settings);
+			scenario.start();
+			final Network net = scenario.net;
+			final int frames[] = {0};
+			Thread renderer = null;
+			if(watched == 1){
+				renderer = new Thread(new Runnable(){
+					public void run(){
+						BufferedImage image = new BufferedImage(900, 900, BufferedImage.TYPE_INT_RGB);
+						NetworkView last = null;
+						while(!net.stopped){
+							NetworkView v = net.view();
+							if(v != last){
+								Graphics g = image.getGraphics();
+								g.setColor(Color.white);
+								g.fillRect(0, 0, 900, 900);
+								v.draw(g, 2f);
+								g.dispose();
+								frames[0]++;
+								last = v;
+							}
+							try{Thread.sleep(1); } catch(InterruptedException e){}
+						}
+					}
+				});
+				renderer.start();
+			}
+			long start = System.nanoTime();
+			while(scenario.answered < keys && System.nanoTime() - start < 60e9){
+				scenario.step();
+				Thread.sleep(Scenario.STEP);
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			String line = (watched == 1 ? "watched:   " : "unwatched: ") + scenario.answered + " of " + keys + " keys answered in "
+					+ String.format("%.2f", seconds) + " s";
+			if(watched == 1){
+				long made = System.nanoTime();
+				for(int k=0;k<100;k++){
+					net.makeView();
+				}
+				line += ", " + frames[0] + " frames drawn (" + String.format("%.1f", frames[0] / seconds) + " a second), "
+						+ String.format("%.3f", (System.nanoTime() - made) / 1e8) + " ms to make a view of "
+						+ net.nodes.size() + " nodes and " + net.links.size() + " links";
+			}
+			System.out.println(line);
+			net.stop();
+			if(renderer != null){
+				renderer.join();
+			}
+		}
+		System.exit(0);
+	}
+}
@@ -1,13 +1,16 @@
 /* Extend this class to implement a new peer to peer application to run in the simulator.
  * The only method you need to override is run(), which should exit gracefully if stopped is set.
  * You can use send(address, message) to send messages in the network.
- * Received messages will be placed in the message_queue you can access at any time.
- * You can override draw if you want to make this node look different in the simulator.
+ * Received messages will be placed in the message_queue you can access at any time. Take them with nextMessage,
+ * which undoes any compression (see Compression and the compression field).
+ * You can override color and shape if you want to make this node look different in the simulator.
  * Nodes should use getTime() for timing, so their speed adjusts with the network.
+ * Use log rather than printing, since printing from every node thread makes them all wait on each other.
+ * For Network.checkpoint and Network.restore, a node needs a constructor taking just its address (it can be private),
+ * and should override save and restore if it has state of its own. A running node is saved by its own thread, so run
+ * should call safePoint regularly, at a point where the node's state is consistent (like between messages).
 */
 
-import java.awt.Color;
-import java.awt.Graphics;
 import java.util.concurrent.LinkedBlockingQueue;
 
 public abstract class Node implements Runnable{
@@ -15,6 +18,7 @@ public abstract class Node implements Runnable{
 	public String address; // The network address of the node.
 	LinkedBlockingQueue<Message> message_queue;// A queue of unprocessed messages received.
 	public boolean stopped = false; // Setting to true should cause the run method to exit.
+	public int compression = Compression.NONE; // How messages this node sends are compressed. Any can be received.
 	
 	// These variables are managed by the network.
 	public Network network;
@@ -25,6 +29,11 @@ public abstract class Node implements Runnable{
 	public double last_time; // time flow was last updated
 	public double clock_offset; // The difference between this node's clock and the network clock.
 
+	// Used by Network.checkpoint to save the node from its own thread. See hold.
+	boolean running = false; // True while the node's thread is in run.
+	private ByteStream save_to = null; // Where to save at the next safe point, or null.
+	private boolean held = false; // The thread waits in safePoint until release while set.
+
 	public Node(String address){
 		this.address = address;
 		message_queue = new LinkedBlockingQueue<Message>();
@@ -38,9 +47,19 @@ public abstract class Node implements Runnable{
 	// Send a message to a node in the network (note: reasonable arrival time is not guaranteed).
 	public void send(String to, byte[] message){
 		if(network !=null){
-			network.sendMessage(address, to, message);
+			network.sendMessage(address, to, Compression.compress(message, compression));
 		}
 	}
+
+	// Takes the next message off the message_queue, decompressed if it was sent compressed, or returns null if there are none.
+	// Decompressing happens here rather than in receive, so it's done by this node's thread and not the network's.
+	public Message nextMessage(){
+		Message m = message_queue.poll();
+		if(m != null && Compression.isCompressed(m.message)){
+			m.message = Compression.decompress(m.message);
+		}
+		return m;
+	}
 	
 	// Use this for any time keeping. It allows the rate of time passage to be adjusted at the network level.
 	// It also gives each node clock variability to simulate unsynchronized clocks over the network.
@@ -48,26 +67,130 @@ public abstract class Node implements Runnable{
 		return network.getTime() + clock_offset;
 	}
 	
+	// Returns true if events at the given level (see EventSink) are being logged.
+	// Check this before building a detail string, so nothing is built when logging is off.
+	public boolean logging(int level){
+		return network != null && network.events.enabled(level);
+	}
+
+	// Logs an event to the network's event sink, if it takes events at the given level.
+	public void log(int level, String event, String detail){
+		if(logging(level)){
+			network.events.event(getTime(), level, address, event, detail);
+		}
+	}
+
+	// Returns how long a message sent to the given node now would be held up behind messages this node already sent
+	// on the link to it. Use it to steer traffic away from congested links.
+	public double queueDelay(String to){
+		return network == null ? 0 : network.queueDelay(address, to);
+	}
+
+	// Writes the state of the node for Network.checkpoint, apart from its address and class, which the network writes.
+	// Override this and restore to add a node's own state, calling the super versions first.
+	public void save(ByteStream s){
+		s.writeFloat(x);
+		s.writeFloat(y);
+		s.writeFloat(refill_rate);
+		s.writeFloat(maximum_flow);
+		s.writeFloat(flow);
+		s.writeDouble(last_time);
+		s.writeDouble(clock_offset);
+		s.writeByte((byte)compression);
+		s.writeByte((byte)(stopped ? 1 : 0));
+		// Messages received but not taken yet.
+		Message m[] = message_queue.toArray(new Message[0]);
+		s.writeVarInt(m.length);
+		for(int k=0;k<m.length;k++){
+			s.writeString(m[k].from);
+			s.writeBytes(m[k].message);
+		}
+	}
+
+	// Reads the state written by save into a node just made by Network.restore. The node's network is set, but its
+	// thread isn't started until every node is restored.
+	public void restore(ByteStream s){
+		x = s.readFloat();
+		y = s.readFloat();
+		refill_rate = s.readFloat();
+		maximum_flow = s.readFloat();
+		flow = s.readFloat();
+		last_time = s.readDouble();
+		clock_offset = s.readDouble();
+		compression = s.readByte();
+		stopped = s.readByte() != 0;
+		int amount = s.readVarInt();
+		for(int k=0;k<amount;k++){
+			String from = s.readString();
+			message_queue.add(new Message(from, s.readBytes()));
+		}
+	}
+
+	// Saves the node into s if Network.checkpoint asked for it, and then waits until the checkpoint is done, so nothing
+	// changes while the rest of the network is saved. run should call it regularly where the node's state is consistent.
+	protected final synchronized void safePoint(){
+		if(save_to != null){
+			save(save_to);
+			save_to = null;
+			notifyAll();
+			while(held && running){
+				try{wait(); } catch(InterruptedException e){}
+			}
+		}
+	}
+
+	// Asks the node to save itself into s at its next safe point and then wait there until release. A node whose thread
+	// isn't running is saved straight away, since nothing else changes it.
+	synchronized void hold(ByteStream s){
+		held = true;
+		save_to = s;
+		if(!running){
+			save(s);
+			save_to = null;
+		}
+	}
+
+	// Waits until the node has saved itself after hold.
+	synchronized void awaitSaved(){
+		while(save_to != null){
+			try{wait(); } catch(InterruptedException e){}
+		}
+	}
+
+	// Lets the node's thread go on after hold.
+	synchronized void release(){
+		held = false;
+		notifyAll();
+	}
+
+	// Runs the node on its own thread. Called by Network.
+	void runThread(){
+		try{
+			run();
+		}finally{
+			synchronized(this){
+				running = false;
+				// A checkpoint waiting on this node still gets it.
+				safePoint();
+			}
+		}
+	}
+
 	// Stops the node. the network will stop communicating with a stopped node.
 	public void stop(){
 		stopped = true;
 	}
 	
-	// This method draws your node. It will be called by the Network draw function.
-	// You can override it to make different types of nodes look different (or print app specific info by the node).
-	// Keep in mind connections are always to (x,y+-10) though.
-	public synchronized void draw(Graphics gr){
-		if(!stopped){
-			int r=0,g=0;
-			float mid = maximum_flow/2;
-			if( flow < mid){
-				r = (int)(255* (mid - flow) / mid) ;
-			} else {
-				g =  (int)(255* (flow - mid) / mid) ;
-			}
-			gr.setColor(new Color(Math.min(r,255),Math.min(g,255),0));
-			gr.drawOval((int)x-10,(int)y-10,20,20);
-		}
+	// The color this node is drawn in, as 0xRRGGBB. By default it shows how busy its download is (see NetworkView.loadColor).
+	// You can override it and shape to make different types of nodes look different. They're called by the thread
+	// making NetworkViews, so they should only read the node's state, without locking anything.
+	public int color(){
+		return NetworkView.loadColor(flow, maximum_flow);
+	}
+
+	// The shape this node is drawn as, NetworkView.CIRCLE or NetworkView.SQUARE.
+	public int shape(){
+		return NetworkView.CIRCLE;
 	}
 	
 // The following two methods are used by Network to manage flow into and out of the node.
@@ -80,6 +203,7 @@ public abstract class Node implements Runnable{
 		flow -= size ; 
 		return arrival;
 	}
+
 	// Update the stored download flow of this node.
 	public void updateFlow(double time){
 		flow += refill_rate * (time - last_time);
@@ -0,0 +1,30 @@
+/* A peer as a HashNode knows it: another node's address and one of its positions on the ring.
+ * Peers for the peer god. Addresses for the address throne.
+ */
+
+class Peer{
+	float position;
+	String address;
+
+	public Peer(String address){
+		this.address = address;
+	}
+	
+	public Peer(String address, float position){
+		this.address = address;
+		this.position = position;
+	}
+
+	// Peers are the same if they're the same node at the same position, since a node can have several positions.
+	public boolean equals(Object o){
+		if(o == null){
+			return false;
+		} else {
+			return address.equals(((Peer)o).address) && position == ((Peer)o).position;
+		}
+	}
+
+	public int hashCode(){
+		return address.hashCode() * 31 + Float.floatToIntBits(position);
+	}
+}
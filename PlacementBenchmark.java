@@ -0,0 +1,274 @@
+/* Compares KeyPlacement functions on how evenly they spread keys over the ring and how fast they are.
+ * Load imbalance is the most keys any one node owns over the average. It's measured with evenly spaced nodes,
+ * which isolates the placement function, and with randomly placed nodes like GUIHashNodeTest uses.
+ * Random nodes are also measured with several positions each (see HashNode.randomPositions), including nodes with
+ * different rates, where imbalance is the most keys any node owns over its share by rate.
+ * Ordered placements are compared the same way, with and without a sample of the keys to fit them to.
+ * Run with a key count as the argument (default 1000000).
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+public class PlacementBenchmark{
+
+	public static void main(String args[]){
+		int amount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		String keys[] = new String[amount];
+		Random rand = new Random(12345);
+		for(int k=0;k<amount;k++){
+			// A mix of short sequential keys (where String.hashCode is weakest) and longer random ones.
+			if(k % 2 == 0){
+				keys[k] = "k" + k;
+			} else {
+				keys[k] = "user:" + Long.toHexString(rand.nextLong()) + "/" + (k % 97);
+			}
+		}
+		checkHash(keys);
+		collisions();
+
+		KeyPlacement placement[] = {KeyPlacement.LEGACY, KeyPlacement.HASHED};
+		String name[] = {"legacy", "hashed"};
+		int nodes[] = {50, 1000};
+		for(int p=0;p<placement.length;p++){
+			float pos[] = new float[amount];
+			// Take the best of a few runs, so the first ones act as warm up.
+			long time = Long.MAX_VALUE, allocated = 0;
+			for(int run=0;run<5;run++){
+				// Fresh copies, since String caches its hashCode and keys arriving in messages are always new strings.
+				for(int k=0;k<amount;k++){
+					keys[k] = new String(keys[k].toCharArray());
+				}
+				allocated = allocatedBytes();
+				long start = System.nanoTime();
+				for(int k=0;k<amount;k++){
+					pos[k] = placement[p].position(keys[k]);
+				}
+				time = Math.min(time, System.nanoTime() - start);
+				allocated = allocatedBytes() - allocated;
+			}
+			HashSet<Float> distinct = new HashSet<Float>();
+			for(int k=0;k<amount;k++){
+				distinct.add(pos[k]);
+			}
+			System.out.println(name[p] + ": " + String.format("%.1f", time / (double)amount) + " ns/key, "
+					+ (allocated < 0 ? "?" : String.format("%.1f", allocated / (double)amount)) + " bytes allocated/key, "
+					+ distinct.size() + " distinct positions");
+			for(int n=0;n<nodes.length;n++){
+				System.out.println("   " + nodes[n] + " even nodes: imbalance " + String.format("%.3f", imbalance(pos, evenNodes(nodes[n])))
+						+ ", " + nodes[n] + " random nodes: imbalance " + String.format("%.3f", imbalance(pos, randomNodes(nodes[n], 777))));
+			}
+		}
+		ordered(keys, nodes);
+		// Only the node positions change from here on, so any one placement will do.
+		float pos[] = new float[amount];
+		for(int k=0;k<amount;k++){
+			pos[k] = KeyPlacement.HASHED.position(keys[k]);
+		}
+		int positions[] = {1, 4, 16, 64};
+		for(int n=0;n<nodes.length;n++){
+			String line = nodes[n] + " random nodes with positions each:";
+			for(int v=0;v<positions.length;v++){
+				float rate[] = new float[nodes[n]];
+				Arrays.fill(rate, positions[v]);
+				line += " " + positions[v] + ": " + String.format("%.3f", virtualImbalance(pos, rate, 1, 777));
+			}
+			System.out.println(line);
+		}
+		for(int n=0;n<nodes.length;n++){
+			// Rates from 1 to 8, so some nodes should own 8 times the keys of others.
+			Random r = new Random(99);
+			float rate[] = new float[nodes[n]];
+			for(int k=0;k<rate.length;k++){
+				rate[k] = 1 + r.nextInt(8);
+			}
+			String line = nodes[n] + " random nodes with rates 1 to 8, imbalance by rate with positions per unit of rate:";
+			float per_position[] = {8, 1, 0.125f};
+			for(int v=0;v<per_position.length;v++){
+				line += " " + (1/per_position[v]) + ": " + String.format("%.3f", virtualImbalance(pos, rate, per_position[v], 777));
+			}
+			System.out.println(line);
+		}
+	}
+
+	// Compares KeyPlacement.ORDERED with an ordered placement fit to a 1% sample of the keys, and checks that both
+	// keep the keys in order. Without a sample the keys sharing "user:" or "k" and a digit pile up on a few nodes.
+	static void ordered(String keys[], int nodes[]){
+		Random rand = new Random(5);
+		String sample[] = new String[keys.length/100 + 1];
+		for(int k=0;k<sample.length;k++){
+			sample[k] = keys[rand.nextInt(keys.length)];
+		}
+		KeyPlacement placement[] = {KeyPlacement.ORDERED, KeyPlacement.ordered(sample)};
+		String name[] = {"ordered", "ordered with a sample"};
+		String sorted[] = keys.clone();
+		Arrays.sort(sorted);
+		for(int p=0;p<placement.length;p++){
+			float pos[] = new float[keys.length];
+			long time = Long.MAX_VALUE;
+			for(int run=0;run<5;run++){
+				long start = System.nanoTime();
+				for(int k=0;k<keys.length;k++){
+					pos[k] = placement[p].position(keys[k]);
+				}
+				time = Math.min(time, System.nanoTime() - start);
+			}
+			HashSet<Float> distinct = new HashSet<Float>();
+			for(int k=0;k<keys.length;k++){
+				distinct.add(pos[k]);
+			}
+			int out_of_order = 0;
+			for(int k=1;k<sorted.length;k++){
+				if(placement[p].position(sorted[k]) < placement[p].position(sorted[k-1])){
+					out_of_order++;
+				}
+			}
+			System.out.println(name[p] + ": " + String.format("%.1f", time / (double)keys.length) + " ns/key, "
+					+ distinct.size() + " distinct positions, " + out_of_order + " keys out of order");
+			for(int n=0;n<nodes.length;n++){
+				System.out.println("   " + nodes[n] + " random nodes: imbalance " + String.format("%.3f", imbalance(pos, randomNodes(nodes[n], 777))));
+			}
+		}
+	}
+
+	// Returns the most keys owned by a node over the mean, where keys belong to the nearest node.
+	static double imbalance(float pos[], float node[]){
+		int load[] = new int[node.length];
+		for(int k=0;k<pos.length;k++){
+			load[nearest(node, pos[k])]++;
+		}
+		int max = 0;
+		for(int k=0;k<load.length;k++){
+			max = Math.max(max, load[k]);
+		}
+		return max / (pos.length / (double)node.length);
+	}
+
+	// Returns the most keys owned by a node over its share by rate, where each node has positions from
+	// HashNode.randomPositions and keys belong to the node with the nearest position.
+	static double virtualImbalance(float pos[], float rate[], float rate_per_position, int seed){
+		Random rand = new Random(seed);
+		float position[][] = new float[rate.length][];
+		int count = 0;
+		double total_rate = 0;
+		for(int k=0;k<rate.length;k++){
+			position[k] = HashNode.randomPositions(rate[k], rate_per_position, rand);
+			count += position[k].length;
+			total_rate += rate[k];
+		}
+		// Sort the positions, keeping track of which node each one belongs to.
+		long order[] = new long[count];
+		int n = 0;
+		for(int k=0;k<rate.length;k++){
+			for(int v=0;v<position[k].length;v++){
+				order[n++] = ((long)Float.floatToIntBits(position[k][v]) << 32) | k; // Positive floats sort like their bits.
+			}
+		}
+		Arrays.sort(order);
+		float node[] = new float[count];
+		for(int k=0;k<count;k++){
+			node[k] = Float.intBitsToFloat((int)(order[k] >>> 32));
+		}
+		int load[] = new int[rate.length];
+		for(int k=0;k<pos.length;k++){
+			load[(int)order[nearest(node, pos[k])]]++;
+		}
+		double max = 0;
+		for(int k=0;k<load.length;k++){
+			max = Math.max(max, load[k] / (pos.length * rate[k] / total_rate));
+		}
+		return max;
+	}
+
+	// Returns the index of the sorted position in node nearest to p.
+	static int nearest(float node[], float p){
+		int i = Arrays.binarySearch(node, p);
+		if(i < 0){
+			i = -i-1;
+			if(i == node.length || (i > 0 && p - node[i-1] <= node[i] - p)){
+				i--;
+			}
+		}
+		return i;
+	}
+
+	// Shows what String.hashCode collisions do to the legacy placement.
+	// "Aa" and "BB" have the same hashCode, so every string made of 10 of them does too.
+	static void collisions(){
+		String keys[] = new String[1 << 10];
+		for(int k=0;k<keys.length;k++){
+			String s = "";
+			for(int j=0;j<10;j++){
+				s += ((k >> j) & 1) == 0 ? "Aa" : "BB";
+			}
+			keys[k] = s;
+		}
+		HashSet<Float> legacy = new HashSet<Float>(), hashed = new HashSet<Float>();
+		for(int k=0;k<keys.length;k++){
+			legacy.add(KeyPlacement.LEGACY.position(keys[k]));
+			hashed.add(KeyPlacement.HASHED.position(keys[k]));
+		}
+		System.out.println(keys.length + " keys with equal hashCodes: legacy " + legacy.size() + " distinct positions, hashed " + hashed.size());
+	}
+
+	// Nodes placed in the middle of equal slices of the ring.
+	static float[] evenNodes(int amount){
+		float node[] = new float[amount];
+		for(int k=0;k<amount;k++){
+			node[k] = (k + 0.5f) / amount;
+		}
+		return node;
+	}
+
+	// Nodes placed at random like GUIHashNodeTest does.
+	static float[] randomNodes(int amount, int seed){
+		Random rand = new Random(seed);
+		float node[] = new float[amount];
+		for(int k=0;k<amount;k++){
+			node[k] = rand.nextFloat();
+		}
+		Arrays.sort(node);
+		return node;
+	}
+
+	// Makes sure HashedPlacement taking 4 characters at a time matches hashing them one by one.
+	static void checkHash(String keys[]){
+		String samples[] = {"", "a", "ascii key", "\u00e9", "\u20acuro", "\ud83d\ude00 emoji", "1234", "12345678", "123456789abcdefgh"};
+		int wrong = 0;
+		for(int k=0;k<samples.length + 1000;k++){
+			String s = k < samples.length ? samples[k] : keys[k - samples.length];
+			if(HashedPlacement.hash(s) != hashChars(s.toCharArray())){
+				wrong++;
+			}
+		}
+		System.out.println("Hash check: " + (wrong == 0 ? "passed" : wrong + " mismatches"));
+	}
+
+	// Reference version of HashedPlacement.hash, one character at a time.
+	static long hashChars(char c[]){
+		long h = 0x9E3779B97F4A7C15L;
+		long word = 0;
+		int shift = 0;
+		for(int k=0;k<c.length;k++){
+			word |= (long)c[k] << shift;
+			shift += 16;
+			if(shift == 64){
+				h = HashedPlacement.step(h, word);
+				word = 0;
+				shift = 0;
+			}
+		}
+		return HashedPlacement.mix(h ^ word ^ ((long)c.length << 56));
+	}
+
+	// Bytes allocated by this thread so far, or -1 if the JVM can't say.
+	static long allocatedBytes(){
+		try{
+			return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}catch(Throwable e){
+			return -1;
+		}
+	}
+}
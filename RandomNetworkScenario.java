@@ -0,0 +1,72 @@
+/* Dumb TestNodes messaging each other on a congested network, as run by GUINetworkTest.
+ * Nodes spawn and die at random and randomly select a list of targets to message (round robin).
+ * Nodes will also add nodes they receive messages from to their target list.
+ * Settings (see Scenario for the common ones):
+ *   nodes   nodes to start with (10)
+ *   spawn   chance of a new node each step (0.003)
+ *   kill    chance of a random node stopping each step (0.001)
+ */
+
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.Random;
+
+public class RandomNetworkScenario extends Scenario{
+
+	float spawn, kill;
+	int added = 0, stopped = 0;
+	Random rand;
+
+	public RandomNetworkScenario(Properties settings){
+		super(settings);
+	}
+
+	// Initialize the network and some random nodes.
+	public void start(){
+		spawn = setting("spawn", 0.003f);
+		kill = setting("kill", 0.001f);
+		rand = new Random(setting("seed", 12345));
+		net = makeNetwork(30, 0.01f, .1f, 0.2f, 100f);
+		int amount = setting("nodes", 10);
+		// Start with some random nodes.
+		for(int k=0;k<amount;k++){
+			ArrayList<String> target = new ArrayList<String>();
+			if(k > 3){
+				for(int j=0;j<3;j++){
+					target.add(net.RandomNode());
+				}
+			}
+			Node node = new TestNode(""+k, target, (float)(.1+rand.nextDouble()), 10);
+			node.compression = compression;
+			net.addNode(node,
+					(float)(300 + Math.sin(k * 2 * Math.PI / amount)*200),
+					(float)(300 + Math.cos(k * 2 * Math.PI / amount)*200),
+					20);
+		}
+		added = amount;
+	}
+
+	public void step(){
+		// Kill nodes at random.
+		if(rand.nextDouble() < kill){
+			net.stop(net.RandomNode());
+			stopped++;
+		}
+		// Add nodes at random.
+		if(rand.nextDouble() < spawn){
+			ArrayList<String> target = new ArrayList<String>();
+			for(int j=0;j<3;j++){
+				target.add(net.RandomNode());
+			}
+			Node node = new TestNode(""+(int)(rand.nextDouble()*10000), target, (float)(.1+rand.nextDouble()), 10);
+			node.compression = compression;
+			net.addNode(node, (float)(100 + rand.nextDouble()*800), (float)(100 + rand.nextDouble()*500),20);
+			added++;
+		}
+	}
+
+	public String status(){
+		return String.format("time %.1f", net.getTime()) + ", " + added + " nodes added, " + stopped + " stopped, "
+				+ net.links.size() + " links, " + net.transmit_queue.size() + " messages in flight" + compressionStatus();
+	}
+}
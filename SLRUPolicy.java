@@ -0,0 +1,65 @@
+/* Segmented LRU. New items go into a probation segment and only move to the protected segment if they're used again,
+ * so items used once (like a scan) are evicted from probation before anything that has been used twice.
+ * Items pushed out of the protected segment get another chance in probation.
+ */
+
+import java.util.ArrayList;
+
+public class SLRUPolicy<KeyType> implements CachePolicy<KeyType>{
+
+	static final int PROBATION = 0, PROTECTED = 1;
+
+	CacheList<KeyType> probation = new CacheList<KeyType>();
+	CacheList<KeyType> protect = new CacheList<KeyType>();
+	int protected_capacity; // Most items in the protected segment.
+
+	// Creates a policy for a cache of the given size with 80% of it protected.
+	public SLRUPolicy(int capacity){
+		this(capacity, 0.8);
+	}
+
+	public SLRUPolicy(int capacity, double protected_share){
+		protected_capacity = Math.max(1, (int)(capacity * protected_share));
+	}
+
+	public CacheNode<KeyType> add(KeyType key){
+		CacheNode<KeyType> n = new CacheNode<KeyType>(key, PROBATION);
+		probation.addFirst(n);
+		return n;
+	}
+
+	public void hit(CacheNode<KeyType> node){
+		if(node.list == PROTECTED){
+			protect.moveToFront(node);
+			return;
+		}
+		probation.remove(node);
+		node.list = PROTECTED;
+		protect.addFirst(node);
+		if(protect.size > protected_capacity){
+			CacheNode<KeyType> demoted = protect.removeLast();
+			demoted.list = PROBATION;
+			probation.addFirst(demoted);
+		}
+	}
+
+	public void miss(KeyType key){
+	}
+
+	public void remove(CacheNode<KeyType> node){
+		(node.list == PROTECTED ? protect : probation).remove(node);
+	}
+
+	public KeyType evict(){
+		CacheNode<KeyType> n = probation.removeLast();
+		if(n == null){
+			n = protect.removeLast();
+		}
+		return n.key;
+	}
+
+	public void order(ArrayList<KeyType> keys){
+		protect.addKeys(keys);
+		probation.addKeys(keys);
+	}
+}
@@ -0,0 +1,98 @@
+/* A simulation to run, either in a window (GUIHashNodeTest, GUINetworkTest) or without one (HeadlessRunner).
+ * start builds the network from the scenario's settings, and then step is called every STEP milliseconds of real time
+ * to drive it, by the window's timer or by the runner. Nothing in a scenario draws; windows draw Network.view.
+ * Settings are name=value pairs, like a config file read into a Properties. Anything missing has a default.
+ * Settings every scenario takes:
+ *   seed    the network's random seed (12345)
+ *   speed   network time_speed (1)
+ *   events  the level of node events printed: none, warn, info or debug (warn)
+ *   compression  how every node compresses what it sends: none, static, adaptive or dictionary (none). See Compression.
+ *           The status line then ends with Compression.report.
+ */
+
+import java.util.Properties;
+
+public abstract class Scenario{
+
+	public static final int STEP = 10; // Real milliseconds between steps.
+
+	public Network net;
+	Properties settings;
+	int compression = Compression.NONE; // The compression setting, for the scenario to give every node it makes.
+
+	public Scenario(Properties settings){
+		this.settings = settings == null ? new Properties() : settings;
+	}
+
+	// Builds the network and starts its threads.
+	public abstract void start();
+
+	// Moves the scenario along. Called every STEP milliseconds from one thread.
+	public abstract void step();
+
+	// Returns a line about how the scenario is going.
+	public abstract String status();
+
+	// Makes the network with the given defaults for links and the common settings above.
+	Network makeNetwork(float default_link_rate, float latency_per_distance, float max_random_latency,
+			float packet_drop_chance, float clock_desynchronization){
+		Network n = new Network(default_link_rate, latency_per_distance, max_random_latency, packet_drop_chance,
+				clock_desynchronization, setting("seed", 12345));
+		n.time_speed = setting("speed", 1f);
+		String modes[] = {"none", "static", "adaptive", "dictionary"};
+		String mode = setting("compression", "none");
+		compression = -1;
+		for(int k=0;k<modes.length;k++){
+			if(modes[k].equalsIgnoreCase(mode)){
+				compression = k;
+			}
+		}
+		if(compression < 0){
+			throw new IllegalArgumentException("No compression called " + mode + " (try none, static, adaptive or dictionary)");
+		}
+		Compression.resetReport();
+		String events[] = {"none", "warn", "info", "debug"};
+		String level = setting("events", "warn");
+		for(int k=0;k<events.length;k++){
+			if(events[k].equalsIgnoreCase(level) && k > EventSink.NONE){
+				n.events = new AsyncEventSink(k, System.out, 1 << 14);
+			}
+		}
+		return n;
+	}
+
+	// Returns how messages have been compressed so far to end a status line with, or nothing if they aren't.
+	String compressionStatus(){
+		return compression == Compression.NONE ? "" : ", " + Compression.report();
+	}
+
+	// Returns a setting, or the default if it isn't set.
+	String setting(String name, String default_value){
+		return settings.getProperty(name, default_value).trim();
+	}
+
+	int setting(String name, int default_value){
+		String s = settings.getProperty(name);
+		return s == null ? default_value : Integer.parseInt(s.trim());
+	}
+
+	float setting(String name, float default_value){
+		String s = settings.getProperty(name);
+		return s == null ? default_value : Float.parseFloat(s.trim());
+	}
+
+	boolean setting(String name, boolean default_value){
+		String s = settings.getProperty(name);
+		return s == null ? default_value : Boolean.parseBoolean(s.trim());
+	}
+
+	// Makes the scenario with the given name: "hashtable" (see HashTableScenario) or "network" (see RandomNetworkScenario).
+	public static Scenario forName(String name, Properties settings){
+		if(name.equals("hashtable")){
+			return new HashTableScenario(settings);
+		} else if(name.equals("network")){
+			return new RandomNetworkScenario(settings);
+		}
+		throw new IllegalArgumentException("No scenario called " + name + " (try hashtable or network)");
+	}
+}
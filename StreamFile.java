@@ -0,0 +1,204 @@
+/* Reads or writes a file a piece at a time through ByteStreams, so files too big to hold in memory (long traces and
+ * simulation snapshots) can be processed with a fixed amount of memory.
+ * Reading maps a window of the file into memory at a time with a MappedByteBuffer and copies pieces out of it into one
+ * reused ByteStream. Writing collects small writes into a buffer and streams it through a FileChannel.
+ * Records written with writeRecord carry their length, so readRecord can hand them back one at a time.
+ * For files small enough to read whole, ByteStream.read and BitStream.read are simpler.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class StreamFile{
+
+	static final int WINDOW = 64 << 20; // Bytes mapped at once when reading.
+
+	FileChannel channel;
+	boolean writing;
+	long size; // Size of the file when reading.
+	long position = 0; // Where the next read or write goes in the file.
+	MappedByteBuffer mapped; // The window of the file mapped for reading, or null.
+	long mapped_at; // Where the window starts in the file.
+	ByteStream chunk = new ByteStream(4096); // Handed back by every read, so reads don't allocate.
+	static final int BUFFER = 1 << 16; // Writes smaller than this are collected before going to the file.
+	ByteStream buffer; // Written bytes not in the file yet.
+
+	// Opens a file for reading.
+	public static StreamFile openRead(File f) throws IOException{
+		StreamFile s = new StreamFile();
+		s.channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+		s.size = s.channel.size();
+		return s;
+	}
+
+	// Creates or empties a file and opens it for writing.
+	public static StreamFile openWrite(File f) throws IOException{
+		StreamFile s = new StreamFile();
+		s.channel = FileChannel.open(f.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		s.writing = true;
+		s.buffer = new ByteStream(BUFFER);
+		return s;
+	}
+
+	// Returns the size of the file being read, or how much has been written.
+	public long size(){
+		return writing ? position : size;
+	}
+
+	// Returns how far into the file reading or writing has got.
+	public long position(){
+		return position;
+	}
+
+	// Returns the next length bytes of the file (or all that's left if there's less), or null at the end of the file.
+	// The stream is reused by the next read, so copy it with new ByteStream(stream) to keep it.
+	public ByteStream read(int length) throws IOException{
+		length = (int)Math.min(length, size - position);
+		if(length <= 0){
+			return null;
+		}
+		if(mapped == null || position + length > mapped_at + mapped.limit()){
+			// Move the window so it starts here, making it bigger if one read needs more than a window.
+			mapped_at = position;
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Math.max(WINDOW, length), size - position));
+		}
+		chunk.reset();
+		chunk.extendToLength(length);
+		mapped.get((int)(position - mapped_at), chunk.data, 0, length);
+		chunk.filledsize = length;
+		chunk.writepointer = length;
+		position += length;
+		return chunk;
+	}
+
+	// Returns the next record written by writeRecord, or null at the end of the file.
+	// The stream is reused by the next read, so copy it with new ByteStream(stream) to keep it.
+	public ByteStream readRecord() throws IOException{
+		ByteStream header = read(4);
+		if(header == null){
+			return null;
+		}
+		if(header.filledSize() < 4){
+			throw new IOException("File ends in the middle of a record length at " + position);
+		}
+		int length = header.readInt();
+		if(length == 0){
+			chunk.reset();
+			return chunk;
+		}
+		ByteStream record = read(length);
+		if(record == null || record.filledSize() < length){
+			throw new IOException("File ends in the middle of a " + length + " byte record at " + position);
+		}
+		return record;
+	}
+
+	// Writes everything written to stream to the end of the file.
+	public void write(ByteStream stream) throws IOException{
+		int length = stream.filledSize();
+		if(buffer.filledSize() + length > BUFFER){
+			flush();
+		}
+		if(length >= BUFFER){
+			writeFully(stream);
+		} else {
+			buffer.append(stream);
+		}
+		position += length;
+	}
+
+	// Writes a stream as a record: its length and then its bytes.
+	public void writeRecord(ByteStream stream) throws IOException{
+		if(buffer.filledSize() + 4 > BUFFER){
+			flush();
+		}
+		buffer.writeInt(stream.filledSize());
+		position += 4;
+		write(stream);
+	}
+
+	// Writes out anything collected in the buffer.
+	private void flush() throws IOException{
+		writeFully(buffer);
+		buffer.reset();
+	}
+
+	// Writes all of a stream straight to the file.
+	private void writeFully(ByteStream stream) throws IOException{
+		ByteBuffer b = ByteBuffer.wrap(stream.data, stream.start, stream.filledSize());
+		while(b.hasRemaining()){
+			channel.write(b);
+		}
+	}
+
+	// Closes the file. Anything written is on disk once this returns.
+	public void close() throws IOException{
+		mapped = null;
+		if(writing){
+			flush();
+			channel.force(false);
+		}
+		channel.close();
+	}
+
+	// Reads a whole file into an array. A single read can stop short, so this keeps reading until it has everything.
+	public static byte[] readAll(File f) throws IOException{
+		FileChannel c = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+		try{
+			long size = c.size();
+			if(size > Integer.MAX_VALUE - 8){
+				throw new IOException(f + " is too big to read whole (" + size + " bytes), read it a piece at a time with StreamFile");
+			}
+			ByteBuffer b = ByteBuffer.allocate((int)size);
+			while(b.hasRemaining() && c.read(b) >= 0){
+			}
+			if(b.hasRemaining()){
+				throw new IOException(f + " got shorter while reading it");
+			}
+			return b.array();
+		}finally{
+			c.close();
+		}
+	}
+
+	// Writes a file of records bigger than its window and reads it back, checking every record.
+	// Run with a record count as the argument (default 1000000).
+	public static void main(String args[]) throws IOException{
+		int amount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		File f = File.createTempFile("StreamFile", ".bin");
+		f.deleteOnExit();
+		long start = System.nanoTime();
+		StreamFile out = openWrite(f);
+		ByteStream record = new ByteStream();
+		for(int k=0;k<amount;k++){
+			record.reset();
+			if(k % 1000 != 999){ // Some records are empty.
+				record.writeInt(k);
+				record.writeString("record " + k + " " + "x".repeat(k % 100));
+			}
+			out.writeRecord(record);
+		}
+		long size = out.size();
+		out.close();
+		long written = System.nanoTime() - start;
+		start = System.nanoTime();
+		StreamFile in = openRead(f);
+		int count = 0, wrong = 0;
+		ByteStream r;
+		while((r = in.readRecord()) != null){
+			if(count % 1000 == 999 ? r.filledSize() != 0
+					: r.readInt() != count || !r.readString().equals("record " + count + " " + "x".repeat(count % 100))){
+				wrong++;
+			}
+			count++;
+		}
+		in.close();
+		long read = System.nanoTime() - start;
+		System.out.println(amount + " records, " + size + " bytes: written in " + written / 1000000 + " ms, read in " + read / 1000000 + " ms, "
+				+ (count == amount && wrong == 0 ? "all read back correctly" : count + " read, " + wrong + " wrong"));
+	}
+}
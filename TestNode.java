@@ -4,6 +4,7 @@
  */
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 
 public class TestNode extends Node{
 
@@ -21,6 +22,49 @@ public class TestNode extends Node{
 		lastmessage = new HashMap<String, Double>();
 	}
 
+	// For Network.restore, which fills in the rest with restore.
+	private TestNode(String id){
+		this(id, new ArrayList<String>(), 0, 0);
+	}
+
+	// Writes the targets and timing for Network.checkpoint.
+	public void save(ByteStream s){
+		super.save(s);
+		s.writeVarInt(target.size());
+		for(int k=0;k<target.size();k++){
+			s.writeString(target.get(k));
+		}
+		s.writeVarInt(lastmessage.size());
+		Iterator<String> i = lastmessage.keySet().iterator();
+		while(i.hasNext()){
+			String from = i.next();
+			s.writeString(from);
+			s.writeDouble(lastmessage.get(from));
+		}
+		s.writeDouble(wait);
+		s.writeDouble(lasttime);
+		s.writeInt(size);
+		s.writeInt(which);
+	}
+
+	// Reads what save wrote.
+	public void restore(ByteStream s){
+		super.restore(s);
+		int amount = s.readVarInt();
+		for(int k=0;k<amount;k++){
+			target.add(s.readString());
+		}
+		amount = s.readVarInt();
+		for(int k=0;k<amount;k++){
+			String from = s.readString();
+			lastmessage.put(from, s.readDouble());
+		}
+		wait = s.readDouble();
+		lasttime = s.readDouble();
+		size = s.readInt();
+		which = s.readInt();
+	}
+
 	public void run(){ 
 		while(!stopped){
 			double time = getTime();
@@ -51,6 +95,7 @@ public class TestNode extends Node{
 				// Keep track of last time we got a message for removing targets.
 				lastmessage.put(m.from, getTime());
 			}
+			safePoint();
 			try{Thread.sleep(2); } catch(InterruptedException e){}
 		}
 	}
@@ -0,0 +1,168 @@
+/* W-TinyLFU (Einziger, Friedman and Manes), the policy behind Caffeine.
+ * New items go into a small LRU window. An item pushed out of the window only gets into the main cache (a segmented
+ * LRU, see SLRUPolicy) if it has been used more often than the item the main cache would evict for it.
+ * How often keys are used is estimated with a count-min sketch of 4 bit counters that are all halved every so often,
+ * so it follows changes in popularity and costs a few bytes per item no matter how many keys are seen.
+ * The window lets new items build up a count before they have to compete, which helps with bursts of recent keys.
+ */
+
+import java.util.ArrayList;
+
+public class TinyLFUPolicy<KeyType> implements CachePolicy<KeyType>{
+
+	static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+
+	CacheList<KeyType> window = new CacheList<KeyType>();
+	CacheList<KeyType> probation = new CacheList<KeyType>();
+	CacheList<KeyType> protect = new CacheList<KeyType>();
+	int window_capacity, main_capacity, protected_capacity;
+	CountMinSketch sketch;
+
+	// Creates a policy for a cache of the given size with 1% of it as the window.
+	public TinyLFUPolicy(int capacity){
+		this(capacity, 0.01);
+	}
+
+	public TinyLFUPolicy(int capacity, double window_share){
+		window_capacity = Math.max(1, (int)(capacity * window_share));
+		main_capacity = Math.max(1, capacity - window_capacity);
+		protected_capacity = Math.max(1, (int)(main_capacity * 0.8));
+		sketch = new CountMinSketch(capacity);
+	}
+
+	public CacheNode<KeyType> add(KeyType key){
+		sketch.increment(key);
+		CacheNode<KeyType> n = new CacheNode<KeyType>(key, WINDOW);
+		window.addFirst(n);
+		if(window.size > window_capacity && probation.size + protect.size < main_capacity){
+			// The main cache isn't full yet, so there's nothing to compete with.
+			CacheNode<KeyType> moved = window.removeLast();
+			moved.list = PROBATION;
+			probation.addFirst(moved);
+		}
+		return n;
+	}
+
+	public void hit(CacheNode<KeyType> node){
+		sketch.increment(node.key);
+		if(node.list == WINDOW){
+			window.moveToFront(node);
+		} else if(node.list == PROTECTED){
+			protect.moveToFront(node);
+		} else {
+			probation.remove(node);
+			node.list = PROTECTED;
+			protect.addFirst(node);
+			if(protect.size > protected_capacity){
+				CacheNode<KeyType> demoted = protect.removeLast();
+				demoted.list = PROBATION;
+				probation.addFirst(demoted);
+			}
+		}
+	}
+
+	public void miss(KeyType key){
+		sketch.increment(key);
+	}
+
+	public void remove(CacheNode<KeyType> node){
+		listOf(node).remove(node);
+	}
+
+	public KeyType evict(){
+		if(window.size > window_capacity && probation.size + protect.size > 0){
+			// The window's least recently used item competes with the main cache's victim for a place in the main cache.
+			CacheNode<KeyType> candidate = window.removeLast();
+			CacheNode<KeyType> victim = probation.tail != null ? probation.tail : protect.tail;
+			if(sketch.frequency(candidate.key) > sketch.frequency(victim.key)){
+				listOf(victim).remove(victim);
+				candidate.list = PROBATION;
+				probation.addFirst(candidate);
+				return victim.key;
+			}
+			return candidate.key;
+		}
+		// Otherwise items were removed from the window, so evict from the main cache (or the window if that's empty).
+		CacheNode<KeyType> n = probation.removeLast();
+		if(n == null) n = protect.removeLast();
+		if(n == null) n = window.removeLast();
+		return n.key;
+	}
+
+	// Whether the window's oldest item or probation's goes next depends on their frequencies, so the window is just put
+	// between the protected and probation segments.
+	public void order(ArrayList<KeyType> keys){
+		protect.addKeys(keys);
+		window.addKeys(keys);
+		probation.addKeys(keys);
+	}
+
+	private CacheList<KeyType> listOf(CacheNode<KeyType> node){
+		return node.list == WINDOW ? window : node.list == PROBATION ? probation : protect;
+	}
+}
+
+// Estimates how many times each key has been seen with 4 rows of 4 bit counters. A key's estimate is the smallest of
+// its counters, which can only be too high (from collisions), never too low.
+// Once there have been 10 increments per expected item all counters are halved, so old popularity fades.
+class CountMinSketch{
+	long table[]; // 16 counters per long.
+	int mask; // Counters per row - 1.
+	int additions = 0, sample_size;
+	static final long SEEDS[] = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+	CountMinSketch(int expected){
+		int counters = Integer.highestOneBit(Math.max(expected, 16) - 1) << 1;
+		mask = counters - 1;
+		table = new long[counters * 4 / 16];
+		sample_size = 10 * Math.max(expected, 16);
+	}
+
+	// Returns the index of key's counter in the given row.
+	private int index(int hash, int row){
+		long h = (hash + SEEDS[row]) * SEEDS[row];
+		h ^= h >>> 32;
+		return row * (mask + 1) + ((int)h & mask);
+	}
+
+	private static int spread(Object key){
+		int h = key.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private int get(int i){
+		return (int)(table[i >>> 4] >>> ((i & 15) << 2)) & 15;
+	}
+
+	public int frequency(Object key){
+		int hash = spread(key);
+		int min = 15;
+		for(int row=0;row<4;row++){
+			min = Math.min(min, get(index(hash, row)));
+		}
+		return min;
+	}
+
+	public void increment(Object key){
+		int hash = spread(key);
+		boolean added = false;
+		for(int row=0;row<4;row++){
+			int i = index(hash, row);
+			if(get(i) < 15){
+				table[i >>> 4] += 1L << ((i & 15) << 2);
+				added = true;
+			}
+		}
+		if(added && ++additions >= sample_size){
+			reset();
+		}
+	}
+
+	// Halves every counter, shifting all 16 in a long at once.
+	private void reset(){
+		for(int k=0;k<table.length;k++){
+			table[k] = (table[k] >>> 1) & 0x7777777777777777L;
+		}
+		additions /= 2;
+	}
+}